@@ -0,0 +1,102 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.core;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nl.justobjects.pushlet.util.PushletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per event of the steps every multicast event goes through: creating
+ * and cloning it for each subscriber, rendering it for the client adapters
+ * and parsing it back, and reading the subscription it matched from redis.
+ * <p/>
+ * The event looks like a stock tick of TestEventPullSources, with a field
+ * that needs escaping in JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventBenchmark {
+  private Event event;
+  private String xml;
+  private String subscriptionJson;
+  private BrowserAdapter browserAdapter;
+
+  @Setup
+  public void setUp() throws PushletException {
+    //@wjw_node Subscription.create()要读配置,从classpath上的pushlet.properties读
+    Config.load(System.getProperty("pushlet.config.dir", "."));
+    event = createEvent();
+    xml = event.toXML();
+
+    Subscription subscription = Subscription.create("/stocks/aex", "label", "name");
+    subscription.setFilter("rate>50 && name^='A'");
+    subscriptionJson = subscription.toJsonString();
+
+    //@wjw_node event2JavaScript()不用response,只有push()才写出去
+    browserAdapter = new BrowserAdapter(null);
+  }
+
+  @Benchmark
+  public Event createDataEvent() {
+    return createEvent();
+  }
+
+  @Benchmark
+  public Object cloneEvent() {
+    return event.clone();
+  }
+
+  @Benchmark
+  public String toXML() {
+    return event.toXML();
+  }
+
+  @Benchmark
+  public String toJson() {
+    return event.toJson();
+  }
+
+  @Benchmark
+  public Event parse() throws IOException {
+    return EventParser.parse(xml);
+  }
+
+  @Benchmark
+  public String event2JavaScript() throws IOException {
+    return browserAdapter.event2JavaScript(event);
+  }
+
+  @Benchmark
+  public Subscription subscriptionFromJson() throws PushletException {
+    return Subscription.fromJsonString(subscriptionJson);
+  }
+
+  private static Event createEvent() {
+    Event event = Event.createDataEvent("/stocks/aex");
+    event.setField(Protocol.P_ID, "1234567890");
+    event.setField("number", 12);
+    event.setField("name", "ABN AMRO");
+    event.setField("rate", "52.81");
+    event.setField("time", 1350000000000L);
+    event.setField("comment", "c:\\aex\\ticks </b> é");
+    return event;
+  }
+}
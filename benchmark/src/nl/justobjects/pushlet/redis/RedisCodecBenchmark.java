@@ -0,0 +1,76 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import nl.justobjects.pushlet.core.Config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The encoding EventQueue.encode()/decode() use for every queued event, per
+ * codec. The codecs are called directly: loading EventQueue would connect to
+ * redis.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RedisCodecBenchmark {
+
+  @Param({ "nl.justobjects.pushlet.redis.JsonCodec", "nl.justobjects.pushlet.redis.BinaryCodec" })
+  public String codecClass;
+
+  private RedisCodec codec;
+  private Map<String, String> fields;
+  private byte[] data;
+
+  @Setup
+  public void setUp() throws Exception {
+    //@wjw_node RedisCodec的静态初始化要读配置,从classpath上的pushlet.properties读
+    Config.load(System.getProperty("pushlet.config.dir", "."));
+    codec = (RedisCodec) Class.forName(codecClass).newInstance();
+
+    fields = new HashMap<String, String>();
+    fields.put("p_event", "data");
+    fields.put("p_subject", "/stocks/aex");
+    fields.put("p_id", "1234567890");
+    fields.put("p_sid", "abc:/stocks/aex");
+    fields.put("number", "12");
+    fields.put("name", "ABN AMRO");
+    fields.put("rate", "52.81");
+    fields.put("comment", "\"quoted\" </script> é");
+    data = codec.encode(fields);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return codec.encode(fields);
+  }
+
+  @Benchmark
+  public Map<String, String> decode() {
+    return RedisCodec.decode(data);
+  }
+
+  @Benchmark
+  public Map<String, String> roundTrip() {
+    return RedisCodec.decode(codec.encode(fields));
+  }
+}
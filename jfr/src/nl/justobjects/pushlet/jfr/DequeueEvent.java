@@ -0,0 +1,14 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("pushlet.Dequeue")
+@Label("Dequeue")
+@Description("Events taken from the queue of a session (EventQueue.deQueueAll)")
+class DequeueEvent extends StageEvent {
+}
@@ -0,0 +1,62 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.jfr;
+
+import nl.justobjects.pushlet.util.Probe;
+
+/**
+ * Records the stages of the event path as JDK Flight Recorder events
+ * pushlet.Publish, pushlet.Fanout, pushlet.Enqueue, pushlet.Dequeue and
+ * pushlet.Flush, e.g.
+ * <p/>
+ * <code>jcmd &lt;pid&gt; JFR.start name=pushlet settings=profile</code>
+ * <p/>
+ * While no recording has the events enabled a span is not even created.
+ */
+public class JfrProbe extends Probe {
+  //@wjw_node 每个阶段一个不提交的原型事件,只用来问isEnabled()
+  private final StageEvent[] prototypes = { new PublishEvent(), new FanoutEvent(), new EnqueueEvent(),
+      new DequeueEvent(), new FlushEvent() };
+
+  public Object begin(int stage) {
+    if (prototypes[stage].isEnabled() == false) {
+      return null;
+    }
+
+    StageEvent event;
+    switch (stage) {
+    case PUBLISH:
+      event = new PublishEvent();
+      break;
+    case FANOUT:
+      event = new FanoutEvent();
+      break;
+    case ENQUEUE:
+      event = new EnqueueEvent();
+      break;
+    case DEQUEUE:
+      event = new DequeueEvent();
+      break;
+    default:
+      event = new FlushEvent();
+    }
+    event.begin();
+    return event;
+  }
+
+  public void end(Object span, String subject, int count, long bytes) {
+    if (span == null) {
+      return;
+    }
+
+    StageEvent event = (StageEvent) span;
+    event.end();
+    if (event.shouldCommit()) {
+      event.subject = subject;
+      event.count = count;
+      event.bytes = bytes;
+      event.commit();
+    }
+  }
+}
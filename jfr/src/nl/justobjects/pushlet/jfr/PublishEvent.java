@@ -0,0 +1,14 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("pushlet.Publish")
+@Label("Publish")
+@Description("An event published by a client (Controller.doPublish)")
+class PublishEvent extends StageEvent {
+}
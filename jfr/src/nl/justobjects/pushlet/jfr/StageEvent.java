@@ -0,0 +1,27 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * A stage of the event path; the duration is the span from begin() to
+ * commit().
+ */
+@Category("Pushlet")
+@StackTrace(false)
+abstract class StageEvent extends jdk.jfr.Event {
+  @Label("Subject")
+  String subject;
+
+  @Label("Count")
+  int count;
+
+  @Label("Bytes")
+  @DataAmount
+  long bytes;
+}
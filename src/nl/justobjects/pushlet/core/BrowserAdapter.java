@@ -9,7 +9,10 @@ import java.util.Iterator;
 
 import javax.servlet.http.HttpServletResponse;
 
+import nl.justobjects.pushlet.util.Counter;
 import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
+import nl.justobjects.pushlet.util.Probe;
 
 /**
  * Generic implementation of ClientAdapter for browser clients.
@@ -18,6 +21,8 @@ import nl.justobjects.pushlet.util.Log;
  * @version $Id: BrowserAdapter.java,v 1.6 2007/11/09 13:15:35 justb Exp $
  */
 public class BrowserAdapter implements ClientAdapter, Protocol {
+  private static final Counter charsSent = Metrics.counter("adapter_chars", "adapter", "browser");
+  private static final Counter flushes = Metrics.counter("adapter_flushes", "adapter", "browser");
 
   public static final String START_DOCUMENT = "<html><head><meta http-equiv=\"Pragma\" content=\"no-cache\"><meta http-equiv=\"Expires\" content=\"Tue, 31 Dec 1997 23:59:59 GMT\"></head>"
       + "<body>"
@@ -54,7 +59,11 @@ public class BrowserAdapter implements ClientAdapter, Protocol {
    * Push Event to client.
    */
   public void push(Event anEvent) throws IOException {
-    Log.debug("BCA event=" + anEvent.toXML());
+    if (Log.isDebugEnabled()) {
+      Log.debug("BCA event=" + anEvent.toXML());
+    }
+    Object span = Probe.getInstance().begin(Probe.FLUSH);
+    int bytesBefore = bytesSent;
 
     // Check if we should refresh
     if (anEvent.getEventType().equals(Protocol.E_REFRESH)) {
@@ -74,6 +83,7 @@ public class BrowserAdapter implements ClientAdapter, Protocol {
     } else {
       send(event2JavaScript(anEvent));
     }
+    Probe.getInstance().end(span, anEvent.getSubject(), 1, bytesSent - bytesBefore);
   }
 
   /**
@@ -103,7 +113,11 @@ public class BrowserAdapter implements ClientAdapter, Protocol {
     servletRsp.flushBuffer();
 
     bytesSent += s.length();
-    Log.debug("bytesSent= " + bytesSent);
+    charsSent.add(s.length());
+    flushes.increment();
+    if (Log.isDebugEnabled()) {
+      Log.debug("bytesSent= " + bytesSent);
+    }
     // Log.debug("BCA sent event: " + s);
   }
 
@@ -4,7 +4,15 @@
 package nl.justobjects.pushlet.core;
 
 import java.io.File;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import nl.justobjects.pushlet.util.Log;
 import nl.justobjects.pushlet.util.PushletException;
@@ -18,7 +26,40 @@ import nl.justobjects.pushlet.util.Sys;
  */
 public class Config implements ConfigDefs {
   private static final String PROPERTIES_FILE = "pushlet.properties";
-  private static Properties properties;
+
+  /**
+   * The current configuration; replaced as a whole on reload, so a reader
+   * always sees one consistent version without locking.
+   */
+  private static volatile Snapshot snapshot = new Snapshot(new Properties());
+
+  private static String dirPath;
+  private static volatile File watchedFile;
+  private static volatile long watchedModified;
+  private static Timer reloadTimer;
+
+  /**
+   * Immutable copy of the properties with the numbers parsed once, plus the
+   * classes and constructors looked up for it.
+   */
+  private static final class Snapshot {
+    final Map<String, String> values = new HashMap<String, String>();
+    final Map<String, Long> numbers = new HashMap<String, Long>();
+    final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+    final ConcurrentMap<String, Constructor<?>> constructors = new ConcurrentHashMap<String, Constructor<?>>();
+
+    Snapshot(Properties theProperties) {
+      for (String name : theProperties.stringPropertyNames()) {
+        String value = theProperties.getProperty(name);
+        values.put(name, value);
+        try {
+          numbers.put(name, Long.valueOf(value));
+        } catch (NumberFormatException e) {
+          // Not a number
+        }
+      }
+    }
+  }
 
   /**
    * Factory method: create object from property denoting class name.
@@ -30,9 +71,17 @@ public class Config implements ConfigDefs {
    *           when class cannot be instantiated
    */
   public static Object createObject(String aClassNameProp, String aDefault) throws PushletException {
-    Class clazz = getClass(aClassNameProp, aDefault);
+    Class<?> clazz = getClass(aClassNameProp, aDefault);
+    //@wjw_node 无参构造函数按类缓存在当前配置里,每次创建Session/Subscriber等对象时不用再查找
+    Snapshot current = snapshot;
+    Constructor<?> constructor = current.constructors.get(clazz.getName());
     try {
-      return clazz.newInstance();
+      if (constructor == null) {
+        constructor = clazz.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        current.constructors.put(clazz.getName(), constructor);
+      }
+      return constructor.newInstance();
     } catch (Throwable t) {
       // Usually a misconfiguration
       throw new PushletException("Cannot instantiate class for " + aClassNameProp + "=" + clazz, t);
@@ -53,47 +102,144 @@ public class Config implements ConfigDefs {
     // from configured class name
     String clazz = (aDefault == null ? getProperty(aClassNameProp) : getProperty(aClassNameProp, aDefault));
 
+    Snapshot current = snapshot;
+    Class<?> result = current.classes.get(clazz);
+    if (result != null) {
+      return result;
+    }
     try {
-      return Class.forName(clazz);
+      result = Class.forName(clazz);
     } catch (ClassNotFoundException t) {
       // Usually a misconfiguration
       throw new PushletException("Cannot find class for " + aClassNameProp + "=" + clazz, t);
     }
+    current.classes.put(clazz, result);
+    return result;
   }
 
   /**
    * Initialize event sources from properties file.
    */
   public static void load(String aDirPath) {
-    // Load Event sources using properties file.
+    dirPath = aDirPath;
+    Properties properties = read();
+    if (properties == null) {
+      // Give up
+      return;
+    }
+    snapshot = new Snapshot(properties);
+    Log.info("Config: loaded values=" + properties);
+
+    startReloadTimer();
+  }
+
+  /**
+   * Read the properties file again and replace the configuration at once.
+   * Applies to what is read from the config afterwards, e.g. the settings and
+   * classes of new sessions, and to the log level and tracing; the
+   * singletons and redis keep what they were started with.
+   */
+  public static void reload() {
+    Properties properties = read();
+    if (properties == null) {
+      Log.warn("Config: reload failed, keeping the current values");
+      return;
+    }
+    snapshot = new Snapshot(properties);
+    Log.info("Config: reloaded values=" + properties);
+
+    if (hasProperty(LOG_LEVEL)) {
+      Log.setLevel(getIntProperty(LOG_LEVEL));
+    }
+    EventTrace.init();
+  }
+
+  private static Properties read() {
+    Properties properties;
     try {
       // Try loading through classpath first (e.g. in WEB-INF/classes or from .jar)
       Log.info("Config: loading " + PROPERTIES_FILE + " from classpath");
       properties = Sys.loadPropertiesResource(PROPERTIES_FILE);
+      watchedFile = resourceFile();
     } catch (Throwable t) {
       // Try from provided dir (e.g. WEB_INF/pushlet.properties)
-      String filePath = aDirPath + File.separator + PROPERTIES_FILE;
+      String filePath = dirPath + File.separator + PROPERTIES_FILE;
       Log.info("Config: cannot load " + PROPERTIES_FILE + " from classpath, will try from " + filePath);
 
       try {
         properties = Sys.loadPropertiesFile(filePath);
+        watchedFile = new File(filePath);
       } catch (Throwable t2) {
         Log.fatal("Config: cannot load properties file from " + filePath, t);
+        return null;
+      }
+    }
+
+    if (watchedFile != null) {
+      watchedModified = watchedFile.lastModified();
+    }
+    return properties;
+  }
 
-        // Give up
-        return;
+  /**
+   * The properties file on the classpath, null when it is not a plain file
+   * (e.g. in a .jar).
+   */
+  private static File resourceFile() {
+    try {
+      URL url = Sys.class.getClassLoader().getResource(PROPERTIES_FILE);
+      if (url != null && "file".equals(url.getProtocol())) {
+        return new File(url.toURI());
       }
+    } catch (Throwable t) {
+      // Cannot be watched
     }
+    return null;
+  }
 
-    Log.info("Config: loaded values=" + properties);
+  /**
+   * With "config.reload.check.millis" check the properties file for changes
+   * and reload it when modified.
+   */
+  private static synchronized void startReloadTimer() {
+    long checkMillis = getLongProperty(CONFIG_RELOAD_CHECK_MILLIS, 0);
+    if (checkMillis <= 0 || reloadTimer != null) {
+      return;
+    }
+
+    reloadTimer = new Timer("ConfigReload", true);
+    reloadTimer.schedule(new TimerTask() {
+      public void run() {
+        try {
+          File file = watchedFile;
+          if (file != null && file.lastModified() != watchedModified) {
+            reload();
+          }
+        } catch (Throwable t) {
+          Log.warn("Config: error checking " + PROPERTIES_FILE, t);
+        }
+      }
+    }, checkMillis, checkMillis);
+    Log.info("Config: check " + watchedFile + " for changes every " + checkMillis + "ms");
+  }
+
+  /**
+   * Stop checking the properties file for changes.
+   */
+  public static synchronized void stop() {
+    if (reloadTimer != null) {
+      reloadTimer.cancel();
+      reloadTimer = null;
+    }
   }
 
   public static String getProperty(String aName, String aDefault) {
-    return properties.getProperty(aName, aDefault);
+    String value = snapshot.values.get(aName);
+    return value == null ? aDefault : value;
   }
 
   public static String getProperty(String aName) {
-    String value = properties.getProperty(aName);
+    String value = snapshot.values.get(aName);
     if (value == null) {
       throw new IllegalArgumentException("Unknown property: " + aName);
     }
@@ -101,34 +247,52 @@ public class Config implements ConfigDefs {
   }
 
   public static boolean getBoolProperty(String aName) {
-    String value = getProperty(aName);
-    try {
-      return value.equals("true");
-    } catch (Throwable t) {
-      throw new IllegalArgumentException("Illegal property value: " + aName + " val=" + value);
-    }
+    return getProperty(aName).equals("true");
   }
 
   public static int getIntProperty(String aName) {
-    String value = getProperty(aName);
-    try {
-      return Integer.parseInt(value);
-    } catch (Throwable t) {
+    long value = getLongProperty(aName);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
       throw new IllegalArgumentException("Illegal property value: " + aName + " val=" + value);
     }
+    return (int) value;
   }
 
   public static long getLongProperty(String aName) {
-    String value = getProperty(aName);
-    try {
-      return Long.parseLong(value);
-    } catch (Throwable t) {
+    Snapshot current = snapshot;
+    Long value = current.numbers.get(aName);
+    if (value == null) {
+      throw new IllegalArgumentException("Illegal property value: " + aName + " val=" + getProperty(aName));
+    }
+    return value.longValue();
+  }
+
+  /**
+   * Number property, aDefault when it is not set. Reads the number parsed
+   * when the config was loaded.
+   */
+  public static int getIntProperty(String aName, int aDefault) {
+    long value = getLongProperty(aName, aDefault);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
       throw new IllegalArgumentException("Illegal property value: " + aName + " val=" + value);
     }
+    return (int) value;
+  }
+
+  public static long getLongProperty(String aName, long aDefault) {
+    Snapshot current = snapshot;
+    Long value = current.numbers.get(aName);
+    if (value == null) {
+      if (current.values.containsKey(aName)) {
+        throw new IllegalArgumentException("Illegal property value: " + aName + " val=" + current.values.get(aName));
+      }
+      return aDefault;
+    }
+    return value.longValue();
   }
 
   public static boolean hasProperty(String aName) {
-    return properties.containsKey(aName);
+    return snapshot.values.containsKey(aName);
   }
 
 }
@@ -16,11 +16,18 @@ public interface ConfigDefs {
   public static final String CONTROLLER_CLASS = "controller.class";
   public static final String DISPATCHER_CLASS = "dispatcher.class";
   public static final String LOGGER_CLASS = "logger.class";
+  public static final String LOGGER_ASYNC_FILE = "logger.async.file";
+  public static final String LOGGER_ASYNC_CAPACITY = "logger.async.capacity";
   public static final String SESSION_MANAGER_CLASS = "sessionmanager.class";
   public static final String SESSION_CLASS = "session.class";
   public static final String SUBSCRIBER_CLASS = "subscriber.class";
   public static final String SUBSCRIPTION_CLASS = "subscription.class";
 
+  /**
+   * Check the properties file for changes every this many ms, 0 for never.
+   */
+  public static final String CONFIG_RELOAD_CHECK_MILLIS = "config.reload.check.millis";
+
   /**
    * Session management.
    */
@@ -31,6 +38,11 @@ public interface ConfigDefs {
   public static final String SESSION_TIMEOUT_MINS = "session.timeout.mins";
 
   public static final String SOURCES_ACTIVATE = "sources.activate";
+  public static final String SOURCES_PULL_SCHEDULER_THREADS = "sources.pull.scheduler.threads";
+  public static final String SOURCES_PULL_THREADS = "sources.pull.threads";
+  public static final String SOURCES_PULL_TIMEOUT_MILLIS = "sources.pull.timeout.millis";
+  public static final String SOURCES_DEMAND_CHECK_MILLIS = "sources.demand.check.millis";
+  public static final String SOURCES_LEASE_MILLIS = "sources.lease.millis";
 
   /**
    * Logging
@@ -49,6 +61,10 @@ public interface ConfigDefs {
   public static final String QUEUE_SIZE = "queue.size";
   public static final String QUEUE_READ_TIMEOUT_MILLIS = "queue.read.timeout.millis";
   public static final String QUEUE_WRITE_TIMEOUT_MILLIS = "queue.write.timeout.millis";
+  public static final String QUEUE_OVERFLOW_POLICY = "queue.overflow.policy";
+  public static final String HEARTBEAT_INTERVAL_MILLIS = "heartbeat.interval.millis";
+  public static final String HEARTBEAT_TICK_MILLIS = "heartbeat.tick.millis";
+  public static final String HEARTBEAT_WRITER_THREADS = "heartbeat.writer.threads";
 
   /**
    * Listening modes.
@@ -68,10 +84,23 @@ public interface ConfigDefs {
   public static final String REDIS_MANAGER_CLASS = "redismanager.class";
   public static final String REDIS_DEBUG = "redis.debug";
   public static final String REDIS_SERVERLIST = "redis.serverlist";
+  public static final String REDIS_CLUSTER = "redis.cluster";
   public static final String REDIS_MINCONN = "redis.minconn";
   public static final String REDIS_MAXCONN = "redis.maxconn";
   public static final String REDIS_SOCKETTO = "redis.socketto";
   public static final String REDIS_PAGESIZE = "redis.pagesize";
+  public static final String REDIS_PIPELINE_BATCH = "redis.pipeline.batch";
+  public static final String REDIS_CODEC_CLASS = "redis.codec.class";
+  public static final String REDIS_CODEC_COMPRESS_THRESHOLD = "redis.codec.compress.threshold";
+  public static final String REDIS_MEMORY_LATENCY_MICROS = "redis.memory.latency.micros";
+
+  /**
+   * Metrics.
+   */
+  public static final String METRICS_LABELS_MAX = "metrics.labels.max";
+  public static final String PROBE_CLASS = "probe.class";
+  public static final String TRACE_ENABLED = "trace.enabled";
+  public static final String TRACE_CLIENT = "trace.client";
 }
 
 /*
@@ -5,6 +5,8 @@ package nl.justobjects.pushlet.core;
 
 import java.io.IOException;
 
+import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Probe;
 import nl.justobjects.pushlet.util.PushletException;
 
 /**
@@ -14,6 +16,7 @@ import nl.justobjects.pushlet.util.PushletException;
  * @version $Id: Controller.java,v 1.9 2007/11/23 14:33:07 justb Exp $
  */
 public class Controller implements Protocol, ConfigDefs {
+  static Probe probe = Probe.getInstance();
 
   private Session session;
 
@@ -35,7 +38,7 @@ public class Controller implements Protocol, ConfigDefs {
   public static Controller create(Session aSession) throws PushletException {
     Controller controller;
     try {
-      controller = (Controller) Config.getClass(CONTROLLER_CLASS, "nl.justobjects.pushlet.core.Controller").newInstance();
+      controller = (Controller) Config.createObject(CONTROLLER_CLASS, "nl.justobjects.pushlet.core.Controller");
     } catch (Throwable t) {
       throw new PushletException("Cannot instantiate Controller from config", t);
     }
@@ -55,7 +58,9 @@ public class Controller implements Protocol, ConfigDefs {
       // Set remote IP address of client
       session.setAddress(aCommand.httpReq.getRemoteAddr());
 
-      debug("doCommand() event=" + aCommand.reqEvent);
+      if (Log.isDebugEnabled()) {
+        debug("doCommand() event=" + aCommand.reqEvent);
+      }
 
       // Get event type
       String eventType = aCommand.reqEvent.getEventType();
@@ -95,7 +100,8 @@ public class Controller implements Protocol, ConfigDefs {
       }
 
       // Handle response back to client
-      if (eventType.endsWith(Protocol.E_LISTEN) || eventType.equals(Protocol.E_REFRESH)) {
+      if ((eventType.endsWith(Protocol.E_LISTEN) || eventType.equals(Protocol.E_REFRESH))
+          && !aCommand.getResponseEvent().getEventType().equals(E_NACK)) {
         // Data channel events
         // Loops until refresh or connection closed
         getSubscriber().fetchEvents(aCommand);
@@ -255,8 +261,18 @@ public class Controller implements Protocol, ConfigDefs {
       // Optional label for subscription
       String label = aCommand.reqEvent.getField(Protocol.P_SUBSCRIPTION_LABEL);
 
-      // Add a subscription
-      Subscription subscription = getSubscriber().addSubscription(subject, label);
+      // Add a subscription, nack a request with invalid parameters
+      Subscription subscription;
+      try {
+        subscription = getSubscriber().addSubscription(createSubscription(aCommand.reqEvent));
+      } catch (InvalidParameterException e) {
+        Event responseEvent = new Event(E_NACK);
+        responseEvent.setField(P_ID, session.getId());
+        responseEvent.setField(P_REASON, e.getMessage());
+        aCommand.setResponseEvent(responseEvent);
+        warn("doListen() rejected: " + e.getMessage());
+        return;
+      }
 
       // Add subscription id and optional label to listen-ack event
       listenAckEvent.setField(P_SUBSCRIPTION_ID, subscription.getSubject());
@@ -285,6 +301,7 @@ public class Controller implements Protocol, ConfigDefs {
    */
   protected void doPublish(Command aCommand,boolean aToOnline) {
     Event responseEvent = null;
+    Object span = probe.begin(Probe.PUBLISH);
 
     try {
       String subject = aCommand.reqEvent.getField(Protocol.P_SUBJECT);
@@ -303,12 +320,15 @@ public class Controller implements Protocol, ConfigDefs {
           Dispatcher.getInstance().unicast(aCommand.reqEvent, to);
         } else {
           // No to: multicast
-          debug("doPublish() event=" + aCommand.reqEvent);
+          if (Log.isDebugEnabled()) {
+            debug("doPublish() event=" + aCommand.reqEvent);
+          }
           Dispatcher.getInstance().multicast(aCommand.reqEvent);
         }
 
         // Acknowledge
         responseEvent = new Event(E_PUBLISH_ACK);
+        probe.end(span, subject, 1, 0);
       }
 
     } catch (Throwable t) {
@@ -331,6 +351,61 @@ public class Controller implements Protocol, ConfigDefs {
     aCommand.setResponseEvent(new Event(E_REFRESH_ACK));
   }
 
+  /**
+   * Subscription requested by a listen or subscribe request: subject, optional
+   * label and the optional filter, conflation and rate limit of its delivery.
+   * A p_rate or p_interval that is not a number &gt;= 0, or a p_filter that
+   * does not parse, gives an InvalidParameterException whose message is the
+   * reason of the nack.
+   */
+  protected Subscription createSubscription(Event aRequest) throws PushletException {
+    Subscription subscription = Subscription.create(aRequest.getField(P_SUBJECT), aRequest.getField(P_SUBSCRIPTION_LABEL),
+        aRequest.getField(P_CONFLATE));
+    String rate = aRequest.getField(P_RATE);
+    if (rate != null) {
+      double value = -1;
+      try {
+        value = Double.parseDouble(rate);
+      } catch (NumberFormatException e) {
+        // rejected below
+      }
+      if (!(value >= 0) || Double.isInfinite(value)) {
+        throw new InvalidParameterException("invalid " + P_RATE + "=" + rate + ", expected events per second >= 0");
+      }
+      subscription.setRate(value);
+    }
+    String interval = aRequest.getField(P_INTERVAL);
+    if (interval != null) {
+      long value = -1;
+      try {
+        value = Long.parseLong(interval);
+      } catch (NumberFormatException e) {
+        // rejected below
+      }
+      if (value < 0) {
+        throw new InvalidParameterException("invalid " + P_INTERVAL + "=" + interval + ", expected milliseconds >= 0");
+      }
+      subscription.setInterval(value);
+    }
+    try {
+      subscription.setFilter(aRequest.getField(P_FILTER));
+    } catch (PushletException e) {
+      throw new InvalidParameterException(e.getMessage());
+    }
+    return subscription;
+  }
+
+  /**
+   * A request parameter the controller rejects with a nack.
+   */
+  protected static class InvalidParameterException extends PushletException {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidParameterException(String aMessage) {
+      super(aMessage);
+    }
+  }
+
   /**
    * Handle Subscribe request.
    */
@@ -347,7 +422,7 @@ public class Controller implements Protocol, ConfigDefs {
         responseEvent.setField(P_REASON, "no subject provided");
       } else {
         String label = aCommand.reqEvent.getField(Protocol.P_SUBSCRIPTION_LABEL);
-        subscription = getSubscriber().addSubscription(subject, label);
+        subscription = getSubscriber().addSubscription(createSubscription(aCommand.reqEvent));
 
         // Acknowledge
         responseEvent = new Event(E_SUBSCRIBE_ACK);
@@ -360,6 +435,11 @@ public class Controller implements Protocol, ConfigDefs {
         info("subscribed to " + subject + " sid=" + subscription.getSubject());
       }
 
+    } catch (InvalidParameterException e) {
+      responseEvent = new Event(E_NACK);
+      responseEvent.setField(P_ID, session.getId());
+      responseEvent.setField(P_REASON, e.getMessage());
+      warn("doSubscribe() rejected: " + e.getMessage());
     } catch (Throwable t) {
       responseEvent = new Event(E_NACK);
       responseEvent.setField(P_ID, session.getId());
@@ -448,7 +528,9 @@ public class Controller implements Protocol, ConfigDefs {
    * Info.
    */
   protected void info(String s) {
-    session.info("[Controller] " + s);
+    if (Log.isInfoEnabled()) {
+      session.info("[Controller] " + s);
+    }
   }
 
   /**
@@ -462,7 +544,9 @@ public class Controller implements Protocol, ConfigDefs {
    * Exceptional print util.
    */
   protected void debug(String s) {
-    session.debug("[Controller] " + s);
+    if (Log.isDebugEnabled()) {
+      session.debug("[Controller] " + s);
+    }
   }
 
 }
@@ -4,11 +4,22 @@
 package nl.justobjects.pushlet.core;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 import nl.justobjects.pushlet.redis.RedisManager;
+import nl.justobjects.pushlet.redis.ScanResult;
+import nl.justobjects.pushlet.util.Counter;
 import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
+import nl.justobjects.pushlet.util.Probe;
 import nl.justobjects.pushlet.util.PushletException;
 
 /**
@@ -19,6 +30,17 @@ import nl.justobjects.pushlet.util.PushletException;
  */
 public class Dispatcher implements Protocol, ConfigDefs {
   static RedisManager redis = RedisManager.getInstance();
+  static Probe probe = Probe.getInstance();
+
+  /**
+   * Published events by mode; fan-out ("dispatch_fanout": subscribers reached)
+   * and duration ("dispatch_duration") are recorded per subject.
+   */
+  static final Counter broadcasts = Metrics.counter("publish_events", "mode", "broadcast");
+  static final Counter multicasts = Metrics.counter("publish_events", "mode", "multicast");
+  static final Counter unicasts = Metrics.counter("publish_events", "mode", "unicast");
+  static final Metrics.Family fanouts = Metrics.histogramFamily("dispatch_fanout", "subject");
+  static final Metrics.Family durations = Metrics.timerFamily("dispatch_duration", "subject");
 
   /**
    * Singleton pattern: single instance.
@@ -53,6 +75,9 @@ public class Dispatcher implements Protocol, ConfigDefs {
    * Send event to all subscribers.
    */
   public void broadcast(Event anEvent) {
+    broadcasts.increment();
+    EventTrace.stamp(anEvent, EventTrace.DISPATCH);
+    Object span = probe.begin(Probe.FANOUT);
     try {
       // Let the SessionManager loop through Sessions, calling
       // our Visitor Method for each Session. This is done to guard
@@ -62,6 +87,7 @@ public class Dispatcher implements Protocol, ConfigDefs {
       args[1] = anEvent; //@wjw_node 此处args[0]留出来给SessionManager.getInstance().apply来填充为相关的session
       Method method = sessionManagerVisitor.getMethod(SessionManagerVisitor.VISIT_BROADCAST);
       SessionManager.getInstance().apply(sessionManagerVisitor, method, args);
+      probe.end(span, anEvent.getSubject(), SessionManager.getInstance().getSessionCount(), 0);
     } catch (Throwable t) {
       Log.error("Error calling SessionManager.apply: ", t);
     }
@@ -71,42 +97,157 @@ public class Dispatcher implements Protocol, ConfigDefs {
    * Send event to subscribers matching Event subject.
    */
   public void multicast(Event anEvent) {
+    multicast(anEvent.getSubject(), Collections.singletonList(anEvent));
+  }
+
+  /**
+   * Send events to subscribers matching their subjects. The events of one
+   * subject reach each subscriber in one queue write, in list order.
+   */
+  public void multicast(List<Event> events) {
+    Map<String, List<Event>> subjectEvents = new LinkedHashMap<String, List<Event>>();
+    for (Event oneEvent : events) {
+      List<Event> sameSubject = subjectEvents.get(oneEvent.getSubject());
+      if (sameSubject == null) {
+        sameSubject = new ArrayList<Event>();
+        subjectEvents.put(oneEvent.getSubject(), sameSubject);
+      }
+      sameSubject.add(oneEvent);
+    }
+
+    for (Map.Entry<String, List<Event>> entry : subjectEvents.entrySet()) {
+      multicast(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void multicast(String aSubject, List<Event> events) {
+    multicasts.add(events.size());
+    for (Event oneEvent : events) {
+      EventTrace.stamp(oneEvent, EventTrace.DISPATCH);
+    }
+    Object span = probe.begin(Probe.FANOUT);
+    long start = System.nanoTime();
+    int fanout = 0;
     //TODO@wjw_note 以后可以考虑在多播和广播中,使用后台线程池来发送消息,这样可以立即对用户进行响应.
-    java.util.Set<String> allSessionId = null;
-    int start = 0;
+    //@wjw_node 每一页的session都用分片感知的批量操作一次取回,而不是每个session逐个往返redis.
+    //@wjw_node 用ZSCAN游标遍历,集合在遍历中变化也不会漏掉;ZSCAN在rehash时会在后面的页里再次返回同一成员,
+    //visited在整个遍历中去重(同SessionManager.apply),否则这样的subscriber会收到两次事件
+    Set<String> visited = new HashSet<String>();
+    String cursor = ScanResult.SCAN_POINTER_START;
     Session tempSession;
-    while (true) {
-      allSessionId = redis.zrange(Subscriber.PUSHLET_ZSET_SUBJECT_PREFIX + anEvent.getSubject(), start, start + RedisManager.pagesize);
-      if (allSessionId.size() == 0) {
-        break;
+    do {
+      ScanResult<String> scanResult = redis.zscan(Subscriber.PUSHLET_ZSET_SUBJECT_PREFIX + aSubject, cursor, RedisManager.pagesize + 1);
+      cursor = scanResult.getCursor();
+      List<String> page = new ArrayList<String>(scanResult.getResult().size());
+      for (String oneSessionId : scanResult.getResult()) {
+        if (visited.add(oneSessionId)) {
+          page.add(oneSessionId);
+        }
+      }
+      if (page.size() == 0) {
+        continue;
+      }
+
+      String[] ids = page.toArray(new String[page.size()]);
+      List<String> strSubjects = redis.hmget(Subscriber.PUSHLET_SUBJECT_PREFIX + aSubject, ids);
+
+      Map<String, String> subscriptionFields = new HashMap<String, String>(ids.length);
+      List<String> hkeys = new ArrayList<String>(ids.length * 2);
+      for (int i = 0; i < ids.length; i++) {
+        if (strSubjects.get(i) != null) {
+          subscriptionFields.put(Session.keyOf(Subscriber.PUSHLET_SUBSCRIPTION_PREFIX, ids[i]), strSubjects.get(i));
+          hkeys.add(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, ids[i]));
+          hkeys.add(Session.keyOf(Subscriber.PUSHLET_SUBSCRIBER_PREFIX, ids[i]));
+        }
+      }
+      if (subscriptionFields.size() == 0) {
+        continue;
       }
-      start = start + allSessionId.size();
-      for (String oneSessionId : allSessionId) {
+      Map<String, String> strSubscriptions = redis.hget(subscriptionFields);
+      Map<String, Map<String, String>> allStatus = redis.hgetAll(hkeys);
+
+      //@wjw_node 本页的事件先全部异步入队(由自动pipeline合并发送),再统一等待结果;同一个subscriber的多个事件只写一次队列
+      List<Subscriber> queuedSubscribers = new ArrayList<Subscriber>(ids.length);
+      List<Subscription> queuedSubscriptions = new ArrayList<Subscription>(ids.length);
+      List<List<Event>> queuedEvents = new ArrayList<List<Event>>(ids.length);
+      List<Future<Object>> queued = new ArrayList<Future<Object>>(ids.length);
+      for (String oneSessionId : ids) {
+        String strSubscription = strSubscriptions.get(Session.keyOf(Subscriber.PUSHLET_SUBSCRIPTION_PREFIX, oneSessionId));
+        if (strSubscription == null) {
+          continue;
+        }
         try {
-          tempSession = Session.create(oneSessionId);
+          tempSession = Session.create(oneSessionId, allStatus.get(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, oneSessionId)),
+              allStatus.get(Session.keyOf(Subscriber.PUSHLET_SUBSCRIBER_PREFIX, oneSessionId)));
           tempSession.getSubscriber().start();
 
-          sessionManagerVisitor.visitMulticast(tempSession, anEvent);
+          //@wjw_node 先用订阅的过滤条件筛选,不匹配的事件不clone也不入队
+          Subscription subscription = tempSession.getSubscriber().match(events.get(0), strSubscription);
+          if (subscription == null) {
+            continue;
+          }
+          List<Event> clonedEvents = null;
+          for (Event oneEvent : events) {
+            if (subscription.matches(oneEvent)) {
+              if (clonedEvents == null) {
+                clonedEvents = new ArrayList<Event>(events.size());
+              }
+              clonedEvents.add(sessionManagerVisitor.personalize(oneEvent, subscription));
+            }
+          }
+          if (clonedEvents == null) {
+            continue;
+          }
+
+          Future<Object> oneQueued = tempSession.getSubscriber().onEventsAsync(clonedEvents, subscription);
+          if (oneQueued != null) {
+            queuedSubscribers.add(tempSession.getSubscriber());
+            queuedSubscriptions.add(subscription);
+            queuedEvents.add(clonedEvents);
+            queued.add(oneQueued);
+          }
         } catch (Exception e) {
           e.printStackTrace();
         }
       }
-    }
+
+      for (int i = 0; i < queued.size(); i++) {
+        try {
+          queuedSubscribers.get(i).onEventsQueued(queued.get(i), queuedEvents.get(i), queuedSubscriptions.get(i));
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+      fanout += queued.size();
+    } while (ScanResult.SCAN_POINTER_START.equals(cursor) == false);
+
+    fanouts.get(aSubject).record(fanout);
+    durations.get(aSubject).record(System.nanoTime() - start);
+    probe.end(span, aSubject, fanout, 0);
   }
 
   /**
    * Send event to specific subscriber.
    */
   public void unicast(Event event, String aSessionId) {
-    // Get subscriber to send event to
-    Session session = SessionManager.getInstance().getSession(false, aSessionId);
-    if (session == null) {
-      Log.warn("unicast: session with id=" + aSessionId + " does not exist");
-      return;
-    }
+    unicasts.increment();
+    EventTrace.stamp(event, EventTrace.DISPATCH);
+    Object span = probe.begin(Probe.FANOUT);
+    int fanout = 0;
+    try {
+      // Get subscriber to send event to
+      Session session = SessionManager.getInstance().getSession(false, aSessionId);
+      if (session == null) {
+        Log.warn("unicast: session with id=" + aSessionId + " does not exist");
+        return;
+      }
 
-    // Send Event to subscriber.
-    session.getSubscriber().onEvent((Event) event.clone());
+      // Send Event to subscriber.
+      session.getSubscriber().onEvent((Event) event.clone());
+      fanout = 1;
+    } finally {
+      probe.end(span, event.getSubject(), fanout, 0);
+    }
   }
 
   /**
@@ -168,24 +309,38 @@ public class Dispatcher implements Protocol, ConfigDefs {
      * Visitor method called by SessionManager.
      */
     public void visitMulticast(Session aSession, Event event) {
-      Subscriber subscriber = aSession.getSubscriber();
-      Event clonedEvent;
       Subscription subscription;
 
       // Send only if the subscriber's criteria
       // match the event.
-      if ((subscription = subscriber.match(event)) != null) {
-        // Personalize event
-        clonedEvent = (Event) event.clone();
-
-        // Set subscription id and optional label
-        clonedEvent.setField(P_SUBSCRIPTION_ID, subscription.getSubject());
-        if (subscription.getLabel() != null) {
-          event.setField(P_SUBSCRIPTION_LABEL, subscription.getLabel());
-        }
+      if ((subscription = aSession.getSubscriber().match(event)) != null) {
+        visitMulticast(aSession, event, subscription);
+      }
+    }
+
+    /**
+     * Send to a Session whose matching Subscription is already known.
+     */
+    public void visitMulticast(Session aSession, Event event, Subscription subscription) {
+      if (!subscription.matches(event)) {
+        return;
+      }
+      aSession.getSubscriber().onEvent(personalize(event, subscription), subscription);
+    }
+
+    /**
+     * Copy of the event carrying the subscription id and optional label.
+     */
+    Event personalize(Event event, Subscription subscription) {
+      // Personalize event
+      Event clonedEvent = (Event) event.clone();
 
-        subscriber.onEvent(clonedEvent);
+      // Set subscription id and optional label
+      clonedEvent.setField(P_SUBSCRIPTION_ID, subscription.getSubject());
+      if (subscription.getLabel() != null) {
+        event.setField(P_SUBSCRIPTION_LABEL, subscription.getLabel());
       }
+      return clonedEvent;
     }
   }
 }
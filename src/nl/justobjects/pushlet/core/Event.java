@@ -62,6 +62,14 @@ public class Event implements Protocol, Serializable {
     return getField(P_SUBJECT);
   }
 
+  /**
+   * Goes in the high priority lane of the queues: marked "p_priority=high"
+   * or an abort.
+   */
+  public boolean isHighPriority() {
+    return PRIORITY_HIGH.equals(getField(P_PRIORITY)) || E_ABORT.equals(getEventType());
+  }
+
   public void setField(String name, String value) {
     attributes.put(name, value);
   }
@@ -0,0 +1,302 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.justobjects.pushlet.util.PushletException;
+
+/**
+ * Compiled predicate over event fields, given as "p_filter" with a subscription,
+ * e.g. <code>rate&gt;50 &amp;&amp; name^='a'</code>.
+ * <p/>
+ * Grammar: <code>expr := and ('||' and)*</code>,
+ * <code>and := unary ('&amp;&amp;' unary)*</code>,
+ * <code>unary := '!' unary | '(' expr ')' | field op value</code>. Operators
+ * are = == != &gt; &gt;= &lt; &lt;= and ^= (starts with), $= (ends with), *=
+ * (contains). A value is a number, a bare word or a quoted string. Comparisons
+ * are numeric when both sides are numbers, else on the strings; a missing
+ * field matches nothing but !=.
+ * <p/>
+ * An expression is compiled once into a tree of matchers and cached, so the
+ * subscriptions read back from redis for every multicast share it; matching
+ * an event does not allocate.
+ */
+public abstract class EventFilter {
+  private static final int MAX_CACHED = 4096;
+  private static final Map<String, EventFilter> compiled = new ConcurrentHashMap<String, EventFilter>();
+
+  /**
+   * Does the event pass the filter.
+   */
+  public abstract boolean matches(Event event);
+
+  /**
+   * Compiled filter for an expression, from the cache when seen before.
+   *
+   * @throws PushletException
+   *           on a syntax error
+   */
+  public static EventFilter compile(String anExpression) throws PushletException {
+    EventFilter filter = compiled.get(anExpression);
+    if (filter == null) {
+      filter = new Parser(anExpression).parse();
+      if (compiled.size() >= MAX_CACHED) {
+        compiled.clear();
+      }
+      compiled.put(anExpression, filter);
+    }
+    return filter;
+  }
+
+  /**
+   * The number in the string, NaN if it is none. Only plain decimals with at
+   * least one digit, parsed without allocating.
+   */
+  static double toNumber(String s) {
+    int length = s.length();
+    int i = 0;
+    boolean negative = false;
+    if (length > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+      negative = s.charAt(0) == '-';
+      i++;
+    }
+    if (i == length) {
+      return Double.NaN;
+    }
+
+    double value = 0;
+    double scale = 0;
+    boolean digits = false;
+    for (; i < length; i++) {
+      char c = s.charAt(i);
+      if (c >= '0' && c <= '9') {
+        digits = true;
+        if (scale == 0) {
+          value = value * 10 + (c - '0');
+        } else {
+          value += (c - '0') * scale;
+          scale /= 10;
+        }
+      } else if (c == '.' && scale == 0) {
+        scale = 0.1;
+      } else {
+        return Double.NaN;
+      }
+    }
+    if (!digits) {
+      return Double.NaN;
+    }
+    return negative ? -value : value;
+  }
+
+  private static class And extends EventFilter {
+    private final EventFilter left;
+    private final EventFilter right;
+
+    And(EventFilter left, EventFilter right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    public boolean matches(Event event) {
+      return left.matches(event) && right.matches(event);
+    }
+  }
+
+  private static class Or extends EventFilter {
+    private final EventFilter left;
+    private final EventFilter right;
+
+    Or(EventFilter left, EventFilter right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    public boolean matches(Event event) {
+      return left.matches(event) || right.matches(event);
+    }
+  }
+
+  private static class Not extends EventFilter {
+    private final EventFilter filter;
+
+    Not(EventFilter filter) {
+      this.filter = filter;
+    }
+
+    public boolean matches(Event event) {
+      return !filter.matches(event);
+    }
+  }
+
+  private static class Compare extends EventFilter {
+    private final String field;
+    private final String op;
+    private final String value;
+    private final double number;
+
+    Compare(String field, String op, String value) {
+      this.field = field;
+      this.op = op;
+      this.value = value;
+      this.number = toNumber(value);
+    }
+
+    public boolean matches(Event event) {
+      String actual = event.getField(field);
+      if (actual == null) {
+        return op.equals("!=");
+      }
+
+      if (op.equals("^=")) {
+        return actual.startsWith(value);
+      }
+      if (op.equals("$=")) {
+        return actual.endsWith(value);
+      }
+      if (op.equals("*=")) {
+        return actual.indexOf(value) >= 0;
+      }
+
+      int comparison;
+      double actualNumber = Double.isNaN(number) ? Double.NaN : toNumber(actual);
+      if (Double.isNaN(actualNumber)) {
+        comparison = actual.compareTo(value);
+      } else {
+        comparison = Double.compare(actualNumber, number);
+      }
+
+      if (op.equals("=") || op.equals("==")) {
+        return comparison == 0;
+      }
+      if (op.equals("!=")) {
+        return comparison != 0;
+      }
+      if (op.equals(">")) {
+        return comparison > 0;
+      }
+      if (op.equals(">=")) {
+        return comparison >= 0;
+      }
+      if (op.equals("<")) {
+        return comparison < 0;
+      }
+      return comparison <= 0;
+    }
+  }
+
+  /**
+   * Recursive descent parser for the grammar above.
+   */
+  private static class Parser {
+    private static final String[] OPERATORS = { "==", "!=", ">=", "<=", "^=", "$=", "*=", "=", ">", "<" };
+
+    private final String expression;
+    private int pos = 0;
+
+    Parser(String expression) {
+      this.expression = expression;
+    }
+
+    EventFilter parse() throws PushletException {
+      EventFilter filter = parseOr();
+      skipSpaces();
+      if (pos < expression.length()) {
+        throw error("unexpected '" + expression.charAt(pos) + "'");
+      }
+      return filter;
+    }
+
+    private EventFilter parseOr() throws PushletException {
+      EventFilter filter = parseAnd();
+      while (consume("||")) {
+        filter = new Or(filter, parseAnd());
+      }
+      return filter;
+    }
+
+    private EventFilter parseAnd() throws PushletException {
+      EventFilter filter = parseUnary();
+      while (consume("&&")) {
+        filter = new And(filter, parseUnary());
+      }
+      return filter;
+    }
+
+    private EventFilter parseUnary() throws PushletException {
+      if (consume("!")) {
+        return new Not(parseUnary());
+      }
+      if (consume("(")) {
+        EventFilter filter = parseOr();
+        if (!consume(")")) {
+          throw error("missing ')'");
+        }
+        return filter;
+      }
+
+      String field = parseWord();
+      skipSpaces();
+      for (String op : OPERATORS) {
+        if (expression.startsWith(op, pos)) {
+          pos += op.length();
+          return new Compare(field, op, parseValue());
+        }
+      }
+      throw error("missing operator after " + field);
+    }
+
+    private String parseValue() throws PushletException {
+      skipSpaces();
+      if (pos < expression.length() && (expression.charAt(pos) == '\'' || expression.charAt(pos) == '"')) {
+        char quote = expression.charAt(pos);
+        int end = expression.indexOf(quote, pos + 1);
+        if (end < 0) {
+          throw error("unterminated string");
+        }
+        String value = expression.substring(pos + 1, end);
+        pos = end + 1;
+        return value;
+      }
+      return parseWord();
+    }
+
+    private String parseWord() throws PushletException {
+      skipSpaces();
+      int start = pos;
+      while (pos < expression.length()) {
+        char c = expression.charAt(pos);
+        if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.' && c != '/' && c != '+') {
+          break;
+        }
+        pos++;
+      }
+      if (pos == start) {
+        throw error("field or value expected");
+      }
+      return expression.substring(start, pos);
+    }
+
+    private boolean consume(String token) {
+      skipSpaces();
+      if (expression.startsWith(token, pos)) {
+        pos += token.length();
+        return true;
+      }
+      return false;
+    }
+
+    private void skipSpaces() {
+      while (pos < expression.length() && Character.isWhitespace(expression.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private PushletException error(String reason) {
+      return new PushletException("Invalid filter at " + pos + ": " + reason + " in " + expression);
+    }
+  }
+}
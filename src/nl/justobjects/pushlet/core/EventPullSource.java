@@ -3,6 +3,16 @@
 
 package nl.justobjects.pushlet.core;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import nl.justobjects.pushlet.util.Log;
 
 /**
@@ -14,24 +24,70 @@ import nl.justobjects.pushlet.util.Log;
 
 /**
  * ABC for specifc EventPullSources.
+ * <p/>
+ * All sources share one small scheduler ("sources.pull.scheduler.threads")
+ * instead of a sleeping thread each: after every pull the next one is
+ * scheduled getSleepTime() later. The pulls themselves run on a small shared
+ * pool ("sources.pull.threads"), so a slow pullEvent() only delays its own
+ * source; it is interrupted after getPullTimeout() ms. Only the pull is: the
+ * multicast of its events never is, an interrupt there would stop the session
+ * of whichever subscriber was being queued. A source never has two pulls in
+ * progress.
  */
-abstract public class EventPullSource implements EventSource, Runnable {
+abstract public class EventPullSource implements EventSource, SubjectSource, Runnable {
   private volatile boolean alive = false;
   private volatile boolean active = false;
-  private static int threadNum = 0;
-  private Thread thread;
+
+  private static ScheduledExecutorService scheduler;
+  private static ThreadPoolExecutor pullExecutor;
+
+  private ScheduledFuture<?> nextPull;
+  private Pull pulling;
 
   public EventPullSource() {
   }
 
   abstract protected long getSleepTime();
 
-  abstract protected Event pullEvent();
+  /**
+   * Produce the next event, null if there is nothing to send. Override either
+   * this method or {@link #pullEvents()}.
+   */
+  protected Event pullEvent() {
+    return null;
+  }
+
+  /**
+   * Produce all events ready since the last pull. They are multicast together,
+   * so each subscriber gets them in one queue write. Default is the single
+   * {@link #pullEvent()}.
+   */
+  protected List<Event> pullEvents() {
+    Event event = pullEvent();
+    if (event == null) {
+      return Collections.emptyList();
+    }
+    return Collections.singletonList(event);
+  }
+
+  /**
+   * Subjects produced, null (always active) unless overridden.
+   */
+  public String[] getSubjects() {
+    return null;
+  }
+
+  /**
+   * Max time in ms a pullEvent() may take before it is interrupted, 0 for no
+   * limit. Default is "sources.pull.timeout.millis".
+   */
+  protected long getPullTimeout() {
+    return Config.getLongProperty(ConfigDefs.SOURCES_PULL_TIMEOUT_MILLIS, 0);
+  }
 
-  public void start() {
-    thread = new Thread(this, "EventPullSource-" + (++threadNum));
-    thread.setDaemon(true);
-    thread.start();
+  public synchronized void start() {
+    alive = true;
+    scheduleNextPull();
   }
 
   public boolean isAlive() {
@@ -39,22 +95,25 @@ abstract public class EventPullSource implements EventSource, Runnable {
   }
 
   /**
-   * Stop the event generator thread.
+   * Stop pulling events.
    */
-  public void stop() {
+  public synchronized void stop() {
     alive = false;
 
-    if (thread != null) {
-      thread.interrupt();
-      thread = null;
+    if (nextPull != null) {
+      nextPull.cancel(false);
+      nextPull = null;
+    }
+    if (pulling != null) {
+      pulling.interrupt();
+      pulling = null;
     }
-
   }
 
   /**
-   * Activate the event generator thread.
+   * Activate: schedule the next pull.
    */
-  public void activate() {
+  public synchronized void activate() {
     if (active) {
       return;
     }
@@ -63,63 +122,188 @@ abstract public class EventPullSource implements EventSource, Runnable {
       start();
       return;
     }
-    Log.debug(getClass().getName() + ": notifying...");
-    notifyAll();
+    Log.debug(getClass().getName() + ": rescheduling...");
+    scheduleNextPull();
   }
 
   /**
-   * Deactivate the event generator thread.
+   * Deactivate: cancel the next pull. If there are no subscribers it wastes
+   * CPU to remain producing events...
    */
-  public void passivate() {
+  public synchronized void passivate() {
     if (!active) {
       return;
     }
     active = false;
+    if (nextPull != null) {
+      nextPull.cancel(false);
+      nextPull = null;
+    }
   }
 
   /**
-   * Main loop: sleep, generate event and publish.
+   * One cycle: generate events and publish.
    */
   public void run() {
-    Log.debug(getClass().getName() + ": starting...");
-    alive = true;
-    while (alive) {
-      try {
-        Thread.sleep(getSleepTime());
+    try {
+      // Derived class should produce events.
+      multicast(pullEvents());
+    } catch (Throwable t) {
+      Log.warn("EventPullSource exception while pulling ", t);
+    }
+  }
 
-        // Stopped during sleep: end loop.
-        if (!alive) {
-          break;
+  /**
+   * Publish the pulled events.
+   */
+  private void multicast(List<Event> events) {
+    try {
+      if (null == events || events.isEmpty() || !alive) { //@wjw_add 判断当event为空时是没有合适的消息,不予处理
+        return;
+      }
+
+      // Let the publisher push them to subscribers.
+      if (events.size() == 1) {
+        Dispatcher.getInstance().multicast(events.get(0)); //TODO@ 把event广播出去
+      } else {
+        Dispatcher.getInstance().multicast(events);
+      }
+    } catch (Throwable t) {
+      Log.warn("EventPullSource exception while multicasting ", t);
+      t.printStackTrace();
+    }
+  }
+
+  private synchronized void scheduleNextPull() {
+    if (!alive || !active || nextPull != null || pulling != null) {
+      return;
+    }
+    nextPull = getScheduler().schedule(new Runnable() {
+      public void run() {
+        startPull();
+      }
+    }, getSleepTime(), TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void startPull() {
+    nextPull = null;
+    if (!alive || !active) {
+      return;
+    }
+
+    final Pull thisPull = new Pull();
+    pulling = thisPull;
+    pullExecutor.execute(thisPull);
+
+    final long timeout = getPullTimeout();
+    if (timeout > 0) {
+      scheduler.schedule(new Runnable() {
+        public void run() {
+          if (thisPull.interrupt()) {
+            Log.warn(EventPullSource.this.getClass().getName() + ": pullEvent() took longer than " + timeout
+                + "ms, interrupted");
+          }
         }
+      }, timeout, TimeUnit.MILLISECONDS);
+    }
+  }
 
-        // If passivated wait until we get
-        // get notify()-ied. If there are no subscribers
-        // it wasts CPU to remain producing events...
+  /**
+   * A pull finished; ignored when it is not the current one, e.g. a pull
+   * interrupted by stop() that ends after start() launched the next.
+   */
+  private synchronized void pullDone(Pull thisPull) {
+    if (pulling != thisPull) {
+      return;
+    }
+    pulling = null;
+    scheduleNextPull();
+  }
+
+  /**
+   * One pull: pullEvents(), which the timeout or stop() may interrupt, then
+   * the multicast of its events, which nothing interrupts.
+   */
+  private class Pull implements Runnable {
+    private boolean pulling = true;
+    private Thread thread;
+
+    public void run() {
+      try {
         synchronized (this) {
-          while (!active) {
-            Log.debug(getClass().getName() + ": waiting...");
-            wait();
+          if (!pulling) {
+            return;
           }
+          thread = Thread.currentThread();
         }
 
-      } catch (InterruptedException e) {
-        break;
-      }
+        List<Event> events = null;
+        try {
+          // Derived class should produce events.
+          events = pullEvents();
+        } catch (Throwable t) {
+          Log.warn("EventPullSource exception while pulling ", t);
+        }
 
-      try {
-        // Derived class should produce an event.
-        Event event = pullEvent();
-        if (null == event) {  //@wjw_add 判断当event为空时是没有合适的消息,不予处理
-          continue;
+        synchronized (this) {
+          thread = null;
+          if (!pulling) {
+            //@wjw_node 已超时或已stop():丢掉这次的事件,清掉interrupt()留下的中断标志,不让它影响这个线程后面的任务
+            Thread.interrupted();
+            return;
+          }
+          pulling = false;
         }
+        multicast(events);
+      } finally {
+        pullDone(this);
+      }
+    }
 
-        // Let the publisher push it to subscribers.
-        Dispatcher.getInstance().multicast(event); //TODO@ 把event广播出去
-      } catch (Throwable t) {
-        Log.warn("EventPullSource exception while multicasting ", t);
-        t.printStackTrace();
+    /**
+     * Interrupt the pull unless it already got its events.
+     * 
+     * @return true when it was still pulling
+     */
+    synchronized boolean interrupt() {
+      if (!pulling) {
+        return false;
       }
+      pulling = false;
+      if (thread != null) {
+        thread.interrupt();
+      }
+      return true;
+    }
+  }
+
+  static synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      int threads = Config.getIntProperty(ConfigDefs.SOURCES_PULL_SCHEDULER_THREADS, 2);
+      scheduler = Executors.newScheduledThreadPool(threads, new DaemonThreadFactory("EventPullScheduler-"));
+
+      //@wjw_node 每个source最多只有一个pull在进行,所以队列的长度不会超过source的个数
+      int pullThreads = Config.getIntProperty(ConfigDefs.SOURCES_PULL_THREADS, 8);
+      pullExecutor = new ThreadPoolExecutor(pullThreads, pullThreads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("EventPullSource-"));
+      pullExecutor.allowCoreThreadTimeOut(true);
+      Log.info("EventPullSource scheduler started, threads=" + threads + " pull threads=" + pullThreads);
+    }
+    return scheduler;
+  }
+
+  static class DaemonThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private int threadNum = 0;
+
+    DaemonThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    public synchronized Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, prefix + (++threadNum));
+      thread.setDaemon(true);
+      return thread;
     }
-    Log.debug(getClass().getName() + ": stopped");
   }
 }
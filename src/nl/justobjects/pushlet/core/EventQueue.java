@@ -3,17 +3,43 @@
 
 package nl.justobjects.pushlet.core;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import nl.justobjects.pushlet.redis.MemoryStore;
+import nl.justobjects.pushlet.redis.RedisCodec;
+import nl.justobjects.pushlet.redis.RedisFuture;
 import nl.justobjects.pushlet.redis.RedisManager;
+import nl.justobjects.pushlet.redis.RedisScript;
+import nl.justobjects.pushlet.util.Counter;
+import nl.justobjects.pushlet.util.Histogram;
+import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
+import nl.justobjects.pushlet.util.Probe;
+
+import internal.redis.clients.util.SafeEncoder;
 
 /**
  * FIFO queue with guarded suspension. <b>Purpose</b><br>
  * <p/>
  * <b>Implementation</b><br>
- * FIFO queue class implemented with circular array. The enQueue() and deQueue()
- * methods use guarded suspension according to a readers/writers pattern,
- * implemented with java.lang.Object.wait()/notify().
+ * FIFO queue of a session kept in redis. Writers never wait: enQueueAllAsync()
+ * hands a full queue to the overflow policy. The deQueue() methods poll until
+ * an event arrives or the wait time is up.
  * <p/>
  * <b>Examples</b><br>
  * <p/>
@@ -24,15 +50,486 @@ import nl.justobjects.pushlet.redis.RedisManager;
  */
 public class EventQueue { //@wjw_node 属于 Subscriber 的事件队列
   static RedisManager redis = RedisManager.getInstance();
-  private static final String PUSHLET_EVENTQUEUE_PREFIX = "p:eq:";
+  static Probe probe = Probe.getInstance();
+  static final String PUSHLET_EVENTQUEUE_PREFIX = "p:eq:";
+  static final String PUSHLET_CONFLATED_PREFIX = "p:ec:";
+  static final String PUSHLET_THROTTLE_PREFIX = "p:et:";
+  static final String PUSHLET_PRIORITY_PREFIX = "p:ep:";
   private static final int SLEEP_TIME = 200;
 
+  /**
+   * What to do with an event for a full queue ("queue.overflow.policy").
+   */
+  public static final String OVERFLOW_DROP_OLDEST = "drop-oldest";
+  public static final String OVERFLOW_DROP_NEWEST = "drop-newest";
+  public static final String OVERFLOW_CONFLATE = "conflate";
+  public static final String OVERFLOW_DISCONNECT = "disconnect";
+
+  /**
+   * Counters of the overflow and delivery policy actions, over all queues.
+   */
+  static final Counter droppedNewest = Metrics.counter("queue_overflow", "action", "dropped_newest");
+  static final Counter evictedOldest = Metrics.counter("queue_overflow", "action", "evicted_oldest");
+  static final Counter conflated = Metrics.counter("queue_overflow", "action", "conflated");
+  static final Counter throttled = Metrics.counter("queue_overflow", "action", "throttled");
+  static final Counter disconnected = Metrics.counter("queue_overflow", "action", "disconnected");
+
+  /**
+   * Time of the queue writes (submit to reply) and reads, and the number of
+   * events a subscriber finds queued when it drains.
+   */
+  static final Histogram enqueueTimer = Metrics.timer("queue_enqueue");
+  static final Histogram dequeueTimer = Metrics.timer("queue_dequeue");
+  static final Histogram depth = Metrics.histogram("queue_depth");
+
+  /**
+   * Lua function release(capacity, now) for the scripts on the queue keys
+   * (KEYS[1] queue, KEYS[2] conflated hash, KEYS[3] throttle hash): queue the
+   * deferred events of KEYS[2] whose bucket has a token again, as far as
+   * there is room, and return the number still deferred. Deferred events are
+   * "&gt;bucket\nkey" (latest per conflation key) and "&lt;bucket\nseq" (one
+   * per event without a key); sorted on the field they leave each bucket in
+   * the order they came. The bucket's rate and size were saved next to it by
+   * the enqueue that deferred the event, with the number deferred for the
+   * bucket ("bucket:d"); KEYS[3] field "&gt;" counts all deferred events so
+   * that queues without any skip the scan.
+   */
+  static final String RELEASE_LUA = "local function release(capacity, now)\n"
+      + "  local deferred = tonumber(redis.call('hget', KEYS[3], '>')) or 0\n"
+      + "  if deferred <= 0 then\n"
+      + "    return 0\n"
+      + "  end\n"
+      + "  local room = capacity - redis.call('llen', KEYS[1])\n"
+      + "  local fields = {}\n"
+      + "  for _, field in ipairs(redis.call('hkeys', KEYS[2])) do\n"
+      + "    local c = string.byte(field, 1)\n"
+      + "    if c == 60 or c == 62 then\n"
+      + "      fields[#fields + 1] = field\n"
+      + "    end\n"
+      + "  end\n"
+      + "  table.sort(fields)\n"
+      + "  local buckets = {}\n"
+      + "  for _, field in ipairs(fields) do\n"
+      + "    local nl = string.find(field, '\\n', 2, true)\n"
+      + "    local bucket, key = string.sub(field, 2, nl - 1), string.sub(field, nl + 1)\n"
+      + "    local tokens = buckets[bucket]\n"
+      + "    if tokens == nil then\n"
+      + "      local b = redis.call('hmget', KEYS[3], bucket, bucket .. ':t', bucket .. ':r', bucket .. ':b')\n"
+      + "      local burst = tonumber(b[4]) or 1\n"
+      + "      tokens = math.min(burst, (tonumber(b[1]) or burst) + math.max(0, now - (tonumber(b[2]) or now)) * (tonumber(b[3]) or 0))\n"
+      + "    end\n"
+      + "    if room > 0 and tokens >= 1 then\n"
+      + "      local data = redis.call('hget', KEYS[2], field)\n"
+      + "      redis.call('hdel', KEYS[2], field)\n"
+      + "      redis.call('hincrby', KEYS[3], bucket .. ':d', -1)\n"
+      + "      deferred = redis.call('hincrby', KEYS[3], '>', -1)\n"
+      + "      if string.byte(field, 1) == 60 then\n"
+      + "        redis.call('lpush', KEYS[1], data)\n"
+      + "        room = room - 1\n"
+      + "      else\n"
+      + "        if redis.call('hexists', KEYS[2], key) == 0 then\n"
+      + "          redis.call('lpush', KEYS[1], '\\0' .. key)\n"
+      + "          room = room - 1\n"
+      + "        end\n"
+      + "        redis.call('hset', KEYS[2], key, data)\n"
+      + "      end\n"
+      + "      tokens = tokens - 1\n"
+      + "    end\n"
+      + "    buckets[bucket] = tokens\n"
+      + "  end\n"
+      + "  for bucket, tokens in pairs(buckets) do\n"
+      + "    redis.call('hmset', KEYS[3], bucket, tostring(tokens), bucket .. ':t', tostring(now))\n"
+      + "  end\n"
+      + "  return deferred\n"
+      + "end\n";
+
+  /**
+   * Queue the (conflation key, lane, event) triples in ARGV[8..n] in order.
+   * Lane "h" is the high priority lane KEYS[4]: such events are only bound by
+   * capacity ARGV[1] and none of the policies below apply to them.
+   * <p/>
+   * Other events go to KEYS[1] while it is below capacity ARGV[1]. An event
+   * with a key already queued only replaces the value in the hash KEYS[2] and
+   * needs no room; a new key is queued as a marker "\0key" pointing into that
+   * hash. One round-trip instead of LLEN followed by LPUSH per event.
+   * <p/>
+   * With a rate limit (ARGV[3] tokens per ms, bucket size ARGV[4]) every queued
+   * event takes a token from the bucket ARGV[5] in the hash KEYS[3], refilled
+   * up to ARGV[2], the time now. An event finding no token is deferred: held
+   * in KEYS[2], the latest one per conflation key and every event without
+   * one, and queued by {@link #RELEASE_LUA} once the bucket has a token
+   * again. A bucket holds at most ARGV[1] deferred events, an event beyond
+   * that is dropped as newest. Replacing a conflated event costs no token.
+   * <p/>
+   * A full queue is handled by the overflow policy ARGV[7]: drop-newest drops
+   * the event, drop-oldest evicts the oldest queued event, conflate keeps only
+   * the latest event of subscription ARGV[6] (evicting the oldest to make room
+   * for it) and disconnect stops at the event. Returns {handled, dropped
+   * newest, evicted oldest, conflated, throttled}: the first "handled" events
+   * were queued, dropped, conflated or deferred.
+   */
+  public static final RedisScript ENQUEUE_SCRIPT = new RedisScript(RELEASE_LUA
+      + "local now = tonumber(ARGV[2])\n"
+      + "release(tonumber(ARGV[1]), now)\n"
+      + "local room = tonumber(ARGV[1]) - redis.call('llen', KEYS[1])\n"
+      + "local perMs = tonumber(ARGV[3])\n"
+      + "local policy = ARGV[7]\n"
+      + "local tokens = -1\n"
+      + "if perMs > 0 then\n"
+      + "  local burst = tonumber(ARGV[4])\n"
+      + "  local bucket = redis.call('hmget', KEYS[3], ARGV[5], ARGV[5] .. ':t')\n"
+      + "  tokens = tonumber(bucket[1]) or burst\n"
+      + "  local last = tonumber(bucket[2]) or now\n"
+      + "  tokens = math.min(burst, tokens + math.max(0, now - last) * perMs)\n"
+      + "end\n"
+      + "local done, newest, oldest, conflated, throttled = 0, 0, 0, 0, 0\n"
+      + "for i = 8, #ARGV, 3 do\n"
+      + "  if ARGV[i + 1] == 'h' then\n"
+      + "    if redis.call('llen', KEYS[4]) >= tonumber(ARGV[1]) then\n"
+      + "      break\n"
+      + "    end\n"
+      + "    redis.call('lpush', KEYS[4], ARGV[i + 2])\n"
+      + "  else\n"
+      + "    local key = ARGV[i]\n"
+      + "    if key == '' and room <= 0 and policy == 'conflate' then\n"
+      + "      key = '~' .. ARGV[6]\n"
+      + "    end\n"
+      + "    if key ~= '' and redis.call('hexists', KEYS[2], key) == 1 then\n"
+      + "      redis.call('hset', KEYS[2], key, ARGV[i + 2])\n"
+      + "      conflated = conflated + 1\n"
+      + "    elseif tokens >= 0 and tokens < 1 then\n"
+      + "      local field = '>' .. ARGV[5] .. '\\n' .. key\n"
+      + "      if key ~= '' and redis.call('hexists', KEYS[2], field) == 1 then\n"
+      + "        redis.call('hset', KEYS[2], field, ARGV[i + 2])\n"
+      + "        throttled = throttled + 1\n"
+      + "      elseif (tonumber(redis.call('hget', KEYS[3], ARGV[5] .. ':d')) or 0) >= tonumber(ARGV[1]) then\n"
+      + "        newest = newest + 1\n"
+      + "      else\n"
+      + "        if key == '' then\n"
+      + "          field = string.format('<%s\\n%015d', ARGV[5], redis.call('hincrby', KEYS[3], ARGV[5] .. ':s', 1))\n"
+      + "        end\n"
+      + "        redis.call('hset', KEYS[2], field, ARGV[i + 2])\n"
+      + "        redis.call('hincrby', KEYS[3], ARGV[5] .. ':d', 1)\n"
+      + "        redis.call('hincrby', KEYS[3], '>', 1)\n"
+      + "        throttled = throttled + 1\n"
+      + "      end\n"
+      + "    else\n"
+      + "      if room <= 0 and (policy == 'drop-oldest' or policy == 'conflate') then\n"
+      + "        local evicted = redis.call('rpop', KEYS[1])\n"
+      + "        if evicted then\n"
+      + "          if string.byte(evicted, 1) == 0 then\n"
+      + "            redis.call('hdel', KEYS[2], string.sub(evicted, 2))\n"
+      + "          end\n"
+      + "          oldest = oldest + 1\n"
+      + "          room = room + 1\n"
+      + "        end\n"
+      + "      end\n"
+      + "      if room > 0 then\n"
+      + "        if key == '' then\n"
+      + "          redis.call('lpush', KEYS[1], ARGV[i + 2])\n"
+      + "        else\n"
+      + "          redis.call('lpush', KEYS[1], '\\0' .. key)\n"
+      + "          redis.call('hset', KEYS[2], key, ARGV[i + 2])\n"
+      + "        end\n"
+      + "        room = room - 1\n"
+      + "        if tokens >= 1 then\n"
+      + "          tokens = tokens - 1\n"
+      + "        end\n"
+      + "      elseif policy == 'drop-newest' then\n"
+      + "        newest = newest + 1\n"
+      + "      else\n"
+      + "        break\n"
+      + "      end\n"
+      + "    end\n"
+      + "  end\n"
+      + "  done = done + 1\n"
+      + "end\n"
+      + "if perMs > 0 then\n"
+      + "  redis.call('hmset', KEYS[3], ARGV[5], tostring(tokens), ARGV[5] .. ':t', ARGV[2], ARGV[5] .. ':r', ARGV[3], ARGV[5] .. ':b', ARGV[4])\n"
+      + "end\n"
+      + "return {done, newest, oldest, conflated, throttled}", new Enqueue());
+
+  /**
+   * Take the whole queue in one round-trip: the high priority lane KEYS[3]
+   * first, then KEYS[1], each in LPOP order, markers replaced by the latest
+   * conflated event. Deferred events stay in KEYS[2].
+   */
+  public static final RedisScript DRAIN_SCRIPT = new RedisScript("local events = redis.call('lrange', KEYS[3], 0, -1)\n"
+      + "local items = redis.call('lrange', KEYS[1], 0, -1)\n"
+      + "for i = 1, #items do\n"
+      + "  local item = items[i]\n"
+      + "  if string.byte(item, 1) == 0 then\n"
+      + "    local key = string.sub(item, 2)\n"
+      + "    item = redis.call('hget', KEYS[2], key)\n"
+      + "    redis.call('hdel', KEYS[2], key)\n"
+      + "  end\n"
+      + "  if item then\n"
+      + "    events[#events + 1] = item\n"
+      + "  end\n"
+      + "end\n"
+      + "redis.call('del', KEYS[1], KEYS[3])\n"
+      + "return events", new RedisScript.Emulation() {
+    public Object eval(MemoryStore redis, List<String> keys, List<byte[]> args) {
+      List<Object> events = new ArrayList<Object>(redis.lrange(keys.get(2), 0, -1));
+      for (byte[] item : redis.lrange(keys.get(0), 0, -1)) {
+        if (item.length > 0 && item[0] == 0) {
+          String key = SafeEncoder.encode(Arrays.copyOfRange(item, 1, item.length));
+          item = redis.hget(keys.get(1), key);
+          redis.hdel(keys.get(1), key);
+        }
+        if (item != null) {
+          events.add(item);
+        }
+      }
+      redis.del(keys.get(0), keys.get(2));
+      return events;
+    }
+  });
+
+  /**
+   * Take the head of the queue, high priority lane KEYS[3] first, a marker
+   * replaced by its conflated event.
+   */
+  public static final RedisScript POP_SCRIPT = new RedisScript("local item = redis.call('lpop', KEYS[3])\n"
+      + "if item then\n"
+      + "  return item\n"
+      + "end\n"
+      + "item = redis.call('lpop', KEYS[1])\n"
+      + "if item and string.byte(item, 1) == 0 then\n"
+      + "  local key = string.sub(item, 2)\n"
+      + "  item = redis.call('hget', KEYS[2], key)\n"
+      + "  redis.call('hdel', KEYS[2], key)\n"
+      + "end\n"
+      + "return item", new RedisScript.Emulation() {
+    public Object eval(MemoryStore redis, List<String> keys, List<byte[]> args) {
+      byte[] item = redis.lpop(keys.get(2));
+      if (item != null) {
+        return item;
+      }
+      item = redis.lpop(keys.get(0));
+      if (item != null && item.length > 0 && item[0] == 0) {
+        String key = SafeEncoder.encode(Arrays.copyOfRange(item, 1, item.length));
+        item = redis.hget(keys.get(1), key);
+        redis.hdel(keys.get(1), key);
+      }
+      return item;
+    }
+  });
+
+  /**
+   * Number of events in both lanes.
+   */
+  public static final RedisScript SIZE_SCRIPT = new RedisScript("return redis.call('llen', KEYS[1]) + redis.call('llen', KEYS[2])",
+      new RedisScript.Emulation() {
+        public Object eval(MemoryStore redis, List<String> keys, List<byte[]> args) {
+          return redis.llen(keys.get(0)) + redis.llen(keys.get(1));
+        }
+      });
+
+  /**
+   * Queue the deferred events that have a token by now ARGV[2] into the queue
+   * of capacity ARGV[1]; number of events still deferred. Run by a timer on
+   * the node that deferred them, so that they also leave when no further
+   * event comes to release them.
+   */
+  public static final RedisScript RELEASE_SCRIPT = new RedisScript(RELEASE_LUA
+      + "return release(tonumber(ARGV[1]), tonumber(ARGV[2]))", new RedisScript.Emulation() {
+    public Object eval(MemoryStore redis, List<String> keys, List<byte[]> args) {
+      return release(redis, keys, Long.parseLong(SafeEncoder.encode(args.get(0))), Long.parseLong(SafeEncoder.encode(args.get(1))));
+    }
+  });
+
+  /**
+   * RELEASE_LUA in Java, for MemoryRedisManager.
+   */
+  private static long release(MemoryStore redis, List<String> keys, long capacity, long now) {
+    byte[] count = redis.hget(keys.get(2), ">");
+    long deferred = count == null ? 0 : Long.parseLong(SafeEncoder.encode(count));
+    if (deferred <= 0) {
+      return 0;
+    }
+    long room = capacity - redis.llen(keys.get(0));
+    List<String> fields = new ArrayList<String>();
+    for (String field : redis.hkeys(keys.get(1))) {
+      if (field.startsWith("<") || field.startsWith(">")) {
+        fields.add(field);
+      }
+    }
+    Collections.sort(fields);
+    Map<String, Double> buckets = new java.util.LinkedHashMap<String, Double>();
+    for (String field : fields) {
+      int nl = field.indexOf('\n', 1);
+      String bucket = field.substring(1, nl);
+      String key = field.substring(nl + 1);
+      Double tokens = buckets.get(bucket);
+      if (tokens == null) {
+        List<byte[]> b = redis.hmget(keys.get(2), bucket, bucket + ":t", bucket + ":r", bucket + ":b");
+        double burst = b.get(3) == null ? 1 : Double.parseDouble(SafeEncoder.encode(b.get(3)));
+        double perMs = b.get(2) == null ? 0 : Double.parseDouble(SafeEncoder.encode(b.get(2)));
+        long last = b.get(1) == null ? now : Long.parseLong(SafeEncoder.encode(b.get(1)));
+        tokens = Math.min(burst, (b.get(0) == null ? burst : Double.parseDouble(SafeEncoder.encode(b.get(0))))
+            + Math.max(0, now - last) * perMs);
+      }
+      if (room > 0 && tokens >= 1) {
+        byte[] data = redis.hget(keys.get(1), field);
+        redis.hdel(keys.get(1), field);
+        redis.hincrby(keys.get(2), bucket + ":d", -1);
+        deferred = redis.hincrby(keys.get(2), ">", -1);
+        if (field.startsWith("<")) {
+          redis.lpush(keys.get(0), data);
+          room--;
+        } else {
+          if (!redis.hexists(keys.get(1), key)) {
+            redis.lpush(keys.get(0), SafeEncoder.encode("\0" + key));
+            room--;
+          }
+          redis.hset(keys.get(1), key, data);
+        }
+        tokens--;
+      }
+      buckets.put(bucket, tokens);
+    }
+    for (Map.Entry<String, Double> bucket : buckets.entrySet()) {
+      redis.hset(keys.get(2), bucket.getKey(), SafeEncoder.encode(luaNumber(bucket.getValue())));
+      redis.hset(keys.get(2), bucket.getKey() + ":t", SafeEncoder.encode(String.valueOf(now)));
+    }
+    return deferred;
+  }
+
+  /**
+   * Number as Lua's tostring() writes it ("%.14g"): 14 significant digits,
+   * no trailing zeros, an exponent below 1e-4 and from 1e14.
+   */
+  private static String luaNumber(double number) {
+    BigDecimal value = new BigDecimal(number).round(new MathContext(14, RoundingMode.HALF_EVEN)).stripTrailingZeros();
+    int exponent = value.precision() - value.scale() - 1;
+    if (exponent >= -4 && exponent < 14) {
+      return value.toPlainString();
+    }
+    String digits = value.unscaledValue().abs().toString();
+    return (value.signum() < 0 ? "-" : "") + digits.charAt(0) + (digits.length() > 1 ? "." + digits.substring(1) : "")
+        + (exponent < 0 ? "e-" : "e+") + (Math.abs(exponent) < 10 ? "0" : "") + Math.abs(exponent);
+  }
+
+  /**
+   * ENQUEUE_SCRIPT in Java, line by line, for MemoryRedisManager.
+   */
+  private static class Enqueue implements RedisScript.Emulation {
+    public Object eval(MemoryStore redis, List<String> keys, List<byte[]> args) {
+      long capacity = Long.parseLong(arg(args, 0));
+      long now = Long.parseLong(arg(args, 1));
+      release(redis, keys, capacity, now);
+      long room = capacity - redis.llen(keys.get(0));
+      double perMs = Double.parseDouble(arg(args, 2));
+      String bucketField = arg(args, 4);
+      String policy = arg(args, 6);
+      double tokens = -1;
+      if (perMs > 0) {
+        double burst = Double.parseDouble(arg(args, 3));
+        List<byte[]> bucket = redis.hmget(keys.get(2), bucketField, bucketField + ":t");
+        tokens = bucket.get(0) == null ? burst : Double.parseDouble(SafeEncoder.encode(bucket.get(0)));
+        long last = bucket.get(1) == null ? now : Long.parseLong(SafeEncoder.encode(bucket.get(1)));
+        tokens = Math.min(burst, tokens + Math.max(0, now - last) * perMs);
+      }
+
+      long done = 0, newest = 0, oldest = 0, conflated = 0, throttled = 0;
+      for (int i = 7; i < args.size(); i += 3) {
+        byte[] data = args.get(i + 2);
+        if ("h".equals(arg(args, i + 1))) {
+          if (redis.llen(keys.get(3)) >= capacity) {
+            break;
+          }
+          redis.lpush(keys.get(3), data);
+        } else {
+          String key = arg(args, i);
+          if (key.length() == 0 && room <= 0 && OVERFLOW_CONFLATE.equals(policy)) {
+            key = "~" + arg(args, 5);
+          }
+          if (key.length() > 0 && redis.hexists(keys.get(1), key)) {
+            redis.hset(keys.get(1), key, data);
+            conflated++;
+          } else if (tokens >= 0 && tokens < 1) {
+            String field = ">" + bucketField + "\n" + key;
+            byte[] count = redis.hget(keys.get(2), bucketField + ":d");
+            if (key.length() > 0 && redis.hexists(keys.get(1), field)) {
+              redis.hset(keys.get(1), field, data);
+              throttled++;
+            } else if (count != null && Long.parseLong(SafeEncoder.encode(count)) >= capacity) {
+              newest++;
+            } else {
+              if (key.length() == 0) {
+                field = String.format("<%s\n%015d", bucketField, redis.hincrby(keys.get(2), bucketField + ":s", 1));
+              }
+              redis.hset(keys.get(1), field, data);
+              redis.hincrby(keys.get(2), bucketField + ":d", 1);
+              redis.hincrby(keys.get(2), ">", 1);
+              throttled++;
+            }
+          } else {
+            if (room <= 0 && (OVERFLOW_DROP_OLDEST.equals(policy) || OVERFLOW_CONFLATE.equals(policy))) {
+              byte[] evicted = redis.rpop(keys.get(0));
+              if (evicted != null) {
+                if (evicted.length > 0 && evicted[0] == 0) {
+                  redis.hdel(keys.get(1), SafeEncoder.encode(Arrays.copyOfRange(evicted, 1, evicted.length)));
+                }
+                oldest++;
+                room++;
+              }
+            }
+            if (room > 0) {
+              if (key.length() == 0) {
+                redis.lpush(keys.get(0), data);
+              } else {
+                redis.lpush(keys.get(0), SafeEncoder.encode("\0" + key));
+                redis.hset(keys.get(1), key, data);
+              }
+              room--;
+              if (tokens >= 1) {
+                tokens--;
+              }
+            } else if (OVERFLOW_DROP_NEWEST.equals(policy)) {
+              newest++;
+            } else {
+              break;
+            }
+          }
+        }
+        done++;
+      }
+      if (perMs > 0) {
+        redis.hset(keys.get(2), bucketField, SafeEncoder.encode(luaNumber(tokens)));
+        redis.hset(keys.get(2), bucketField + ":t", SafeEncoder.encode(String.valueOf(now)));
+        redis.hset(keys.get(2), bucketField + ":r", args.get(2));
+        redis.hset(keys.get(2), bucketField + ":b", args.get(3));
+      }
+      return Arrays.<Object> asList(done, newest, oldest, conflated, throttled);
+    }
+
+    private static String arg(List<byte[]> args, int i) {
+      return SafeEncoder.encode(args.get(i));
+    }
+  }
+
+  private static final byte[] NO_CONFLATION = new byte[0];
+  private static final byte[] HIGH_LANE = SafeEncoder.encode("h");
+
+  /**
+   * Runs {@link #RELEASE_SCRIPT} for the queues that deferred events; one
+   * pending release per queue key.
+   */
+  private static ScheduledExecutorService releaser;
+  private static final ConcurrentMap<String, Boolean> releasing = new ConcurrentHashMap<String, Boolean>();
+
   /**
    * Defines maximum queue size
    */
   private int capacity = 256;
 
   private String myLkey;
+  private String conflatedHkey;
+  private String throttleHkey;
+  private String priorityLkey;
+  private String overflowPolicy;
 
   /**
    * Construct queue with default (8) capacity.
@@ -47,40 +544,161 @@ public class EventQueue { //@wjw_node 属于 Subscriber 的事件队列
   public EventQueue(String aSessionId, int capacity) {
     this.capacity = capacity;
 
-    myLkey = PUSHLET_EVENTQUEUE_PREFIX + aSessionId;
+    myLkey = Session.keyOf(PUSHLET_EVENTQUEUE_PREFIX, aSessionId);
+    conflatedHkey = Session.keyOf(PUSHLET_CONFLATED_PREFIX, aSessionId);
+    throttleHkey = Session.keyOf(PUSHLET_THROTTLE_PREFIX, aSessionId);
+    priorityLkey = Session.keyOf(PUSHLET_PRIORITY_PREFIX, aSessionId);
+    overflowPolicy = Config.getProperty(ConfigDefs.QUEUE_OVERFLOW_POLICY, OVERFLOW_DISCONNECT);
   }
 
   /**
-   * Put item in queue; waits() indefinitely if queue is full.
+   * Put the items of a subscription (null for none) in queue in one write,
+   * never waiting for room: a full queue is handled by the overflow policy.
+   * An item whose conflate field value matches a queued item replaces it;
+   * items above the subscription's rate limit are deferred. Check the outcome
+   * with {@link #queuedCount(Future)}: the first n items are handled.
    */
-  public boolean enQueue(Event item) throws InterruptedException {
-    return enQueue(item, -1);
+  public Future<Object> enQueueAllAsync(List<Event> items, Subscription subscription) {
+    Object span = probe.begin(Probe.ENQUEUE);
+    String conflate = null;
+    List<byte[]> args = new ArrayList<byte[]>(items.size() * 3 + 7);
+    args.add(SafeEncoder.encode(String.valueOf(capacity)));
+    args.add(SafeEncoder.encode(String.valueOf(System.currentTimeMillis())));
+    if (subscription != null && subscription.isThrottled()) {
+      args.add(SafeEncoder.encode(String.valueOf(subscription.getTokensPerMillis())));
+      args.add(SafeEncoder.encode(String.valueOf(subscription.getBurst())));
+      args.add(SafeEncoder.encode(subscription.getSubject()));
+    } else {
+      args.add(SafeEncoder.encode("0"));
+      args.add(NO_CONFLATION);
+      args.add(NO_CONFLATION);
+    }
+    if (subscription != null) {
+      conflate = subscription.getConflate();
+      args.add(SafeEncoder.encode(subscription.getSubject()));
+    } else {
+      args.add(NO_CONFLATION);
+    }
+    args.add(SafeEncoder.encode(overflowPolicy));
+
+    String subject = items.isEmpty() ? null : items.get(0).getSubject();
+    long bytes = 0;
+    for (Event item : items) {
+      EventTrace.stamp(item, EventTrace.ENQUEUE);
+      args.add(conflationKey(item, conflate));
+      args.add(item.isHighPriority() ? HIGH_LANE : NO_CONFLATION);
+      byte[] data = encode(item);
+      args.add(data);
+      bytes += data.length;
+      if (subject != null && !subject.equals(item.getSubject())) {
+        subject = null;
+      }
+    }
+    Future<Object> queued = redis.evalRawAsync(ENQUEUE_SCRIPT, Arrays.asList(myLkey, conflatedHkey, throttleHkey,
+        priorityLkey), args);
+    boolean throttled = subscription != null && subscription.isThrottled();
+    if (span == null && !throttled) {
+      return queued;
+    }
+    return new PendingEnqueue(queued, throttled ? this : null, throttled ? subscription.getTokensPerMillis() : 0, span,
+        subject, bytes);
   }
 
   /**
-   * Put item in queue; if full wait maxtime.
+   * A pending enqueue with its probe span and, for a rate limited
+   * subscription, the queue to release deferred events of; both handled by
+   * {@link #queuedCount(Future)} when the reply is in.
    */
-  public boolean enQueue(Event item, long maxWaitTime) throws InterruptedException {
-    if (maxWaitTime < 0) {
-      while (isFull()) {
-        Thread.sleep(SLEEP_TIME);
-      }
-    } else {
-      long remainTime = maxWaitTime;
-      while (isFull() && remainTime >= 0) {
-        Thread.sleep(SLEEP_TIME);
-        remainTime = remainTime - SLEEP_TIME;
-      }
+  private static class PendingEnqueue implements Future<Object> {
+    final Future<Object> queued;
+    final EventQueue throttled;
+    final double tokensPerMillis;
+    final Object span;
+    final String subject;
+    final long bytes;
 
-      if (isFull()) {
-        return false;
-      }
+    PendingEnqueue(Future<Object> queued, EventQueue throttled, double tokensPerMillis, Object span, String subject,
+        long bytes) {
+      this.queued = queued;
+      this.throttled = throttled;
+      this.tokensPerMillis = tokensPerMillis;
+      this.span = span;
+      this.subject = subject;
+      this.bytes = bytes;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return queued.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+      return queued.isCancelled();
+    }
+
+    public boolean isDone() {
+      return queued.isDone();
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+      return queued.get();
     }
 
-    // Put item in queue
-    redis.lpush(myLkey, toJsonString(item));
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      return queued.get(timeout, unit);
+    }
+  }
+
+  /**
+   * Subscription and value of the conflate field: events of one subscription
+   * with the same value replace each other.
+   */
+  private static byte[] conflationKey(Event item, String conflate) {
+    if (conflate == null) {
+      return NO_CONFLATION;
+    }
+    String value = item.getField(conflate);
+    if (value == null) {
+      return NO_CONFLATION;
+    }
+    return SafeEncoder.encode(item.getField(Protocol.P_SUBSCRIPTION_ID, "") + ":" + value);
+  }
 
-    return true;
+  /**
+   * Wait for an {@link #enQueueAllAsync(List, Subscription)}; number of items
+   * handled.
+   */
+  public static int queuedCount(Future<Object> queued) throws InterruptedException {
+    PendingEnqueue pending = null;
+    if (queued instanceof PendingEnqueue) {
+      pending = (PendingEnqueue) queued;
+      queued = pending.queued;
+    }
+    try {
+      @SuppressWarnings("unchecked")
+      List<Long> counts = (List<Long>) queued.get();
+      if (queued instanceof RedisFuture) {
+        enqueueTimer.record(((RedisFuture<Object>) queued).getLatencyNanos());
+      }
+      droppedNewest.add(counts.get(1));
+      evictedOldest.add(counts.get(2));
+      conflated.add(counts.get(3));
+      throttled.add(counts.get(4));
+      int handled = counts.get(0).intValue();
+      if (pending != null) {
+        if (pending.throttled != null && counts.get(4) > 0) {
+          pending.throttled.scheduleRelease((long) Math.ceil(1 / pending.tokensPerMillis));
+        }
+        if (pending.span != null) {
+          probe.end(pending.span, pending.subject, handled, pending.bytes);
+        }
+      }
+      return handled;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
   }
 
   /**
@@ -138,30 +756,84 @@ public class EventQueue { //@wjw_node 属于 Subscriber 的事件队列
     }
 
     // Dequeue all items item
-    String strEvent = null;
-    java.util.List<Event> listEvent = new java.util.ArrayList<Event>(this.getSize());
-    while ((strEvent = redis.lpop(myLkey)) != null) {
-      listEvent.add(fromJsonString(strEvent));
+    Object span = probe.begin(Probe.DEQUEUE);
+    long start = System.nanoTime();
+    List<?> rawEvents = (List<?>) redis.evalRaw(DRAIN_SCRIPT, Arrays.asList(myLkey, conflatedHkey, priorityLkey),
+        Collections.<byte[]> emptyList());
+    dequeueTimer.record(System.nanoTime() - start);
+    depth.record(rawEvents.size());
+    Event[] events = new Event[rawEvents.size()];
+    long bytes = 0;
+    for (int i = 0; i < events.length; i++) {
+      byte[] data = (byte[]) rawEvents.get(i);
+      bytes += data.length;
+      events[i] = decode(data);
+      EventTrace.stamp(events[i], EventTrace.DEQUEUE);
     }
-    Event[] events = listEvent.toArray(new Event[0]);
+    probe.end(span, null, events.length, bytes);
 
     // Return dequeued item
     return events;
   }
 
+  /**
+   * Overflow and delivery policy counters since start.
+   */
+  public static String getOverflowStatus() {
+    return "droppedNewest=" + droppedNewest.get() + " evictedOldest=" + evictedOldest.get() + " conflated="
+        + conflated.get() + " throttled=" + throttled.get() + " disconnected=" + disconnected.get();
+  }
+
+  /**
+   * Queue the deferred events of this queue once a token is back, in
+   * delayMillis, and again while some are left: events held by a rate limit
+   * also leave when no further event comes to release them. A node that
+   * stops holds them until the next enqueue on the queue.
+   */
+  private void scheduleRelease(final long delayMillis) {
+    if (releasing.putIfAbsent(myLkey, Boolean.TRUE) != null) {
+      return;
+    }
+    getReleaser().schedule(new Runnable() {
+      public void run() {
+        //@wjw_node 先移除再执行,执行期间新延迟的事件会再安排一次释放
+        releasing.remove(myLkey);
+        long deferred = 0;
+        try {
+          deferred = (Long) redis.eval(RELEASE_SCRIPT, Arrays.asList(myLkey, conflatedHkey, throttleHkey),
+              Arrays.asList(String.valueOf(capacity), String.valueOf(System.currentTimeMillis())));
+        } catch (Throwable t) {
+          Log.warn("EventQueue: cannot release deferred events of " + myLkey, t);
+        }
+        if (deferred > 0) {
+          scheduleRelease(delayMillis);
+        }
+      }
+    }, Math.max(1, delayMillis), TimeUnit.MILLISECONDS);
+  }
+
+  private static synchronized ScheduledExecutorService getReleaser() {
+    if (releaser == null) {
+      releaser = Executors.newSingleThreadScheduledExecutor(new EventPullSource.DaemonThreadFactory("EventQueueRelease-"));
+    }
+    return releaser;
+  }
+
   public int getSize() {
-    return redis.llen(myLkey).intValue();
+    return ((Long) redis.eval(SIZE_SCRIPT, Arrays.asList(myLkey, priorityLkey), Collections.<String> emptyList()))
+        .intValue();
   }
 
   /**
    * Is the queue empty ?
    */
   public boolean isEmpty() {
-    return redis.llen(myLkey).intValue() == 0;
+    return getSize() == 0;
   }
 
   /**
-   * Is the queue full ?
+   * Is the queue full ? Only the normal lane counts, high priority events
+   * have their own room.
    */
   public boolean isFull() {
     return redis.llen(myLkey).intValue() == capacity;
@@ -171,20 +843,32 @@ public class EventQueue { //@wjw_node 属于 Subscriber 的事件队列
    * Circular counter.
    */
   private Event fetchNext() {
-    return fromJsonString(redis.lpop(myLkey));
+    long start = System.nanoTime();
+    byte[] data = (byte[]) redis.evalRaw(POP_SCRIPT, Arrays.asList(myLkey, conflatedHkey, priorityLkey),
+        Collections.<byte[]> emptyList());
+    dequeueTimer.record(System.nanoTime() - start);
+    return data == null ? null : decode(data);
   }
 
   //@wjw_add 清除保存在redis里的事件
   public void clear() {
     redis.del(myLkey);
+    redis.del(conflatedHkey);
+    redis.del(throttleHkey);
+    redis.del(priorityLkey);
   }
 
-  public static String toJsonString(Event event) {
-    return redis.objToJsonString(event.attributes);
+  /**
+   * Bytes stored in redis for the event, see {@link RedisCodec}.
+   */
+  @SuppressWarnings("unchecked")
+  public static byte[] encode(Event event) {
+    //@wjw_node Event.attributes是raw Map,其中只放String(见Event.setField)
+    return RedisCodec.getInstance().encode((Map<String, String>) event.attributes);
   }
 
-  public static Event fromJsonString(String content) {
-    Map attributes = redis.jsonStringToObj(content, java.util.HashMap.class);
+  public static Event decode(byte[] data) {
+    Map<String, String> attributes = RedisCodec.decode(data);
     return new Event(attributes);
   }
 
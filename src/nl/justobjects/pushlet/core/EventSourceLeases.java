@@ -0,0 +1,219 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.justobjects.pushlet.redis.MemoryStore;
+import nl.justobjects.pushlet.redis.RedisManager;
+import nl.justobjects.pushlet.redis.RedisScript;
+import nl.justobjects.pushlet.util.Log;
+
+import internal.redis.clients.util.SafeEncoder;
+
+/**
+ * Leader election per event source over redis leases, so that with
+ * "sources.activate=true" on every node each source still runs only once in
+ * the cluster.
+ * <p/>
+ * A lease is a key "p:lease:" + source class holding the id of the owning node
+ * and expiring after "sources.lease.millis". The owner renews it every third
+ * of that time; when a node dies its leases expire and another node takes them
+ * over at its next round, so failover takes at most 4/3 of the lease time.
+ * A node stops running a source a third of the lease time before its lease
+ * could expire unrenewed, and any redis failure during a round counts as
+ * losing all leases, so two nodes never run a source at the same time.
+ * <p/>
+ * Every node also keeps itself alive in the "p:zset:nodes" registry. From the
+ * number of live nodes each node computes its fair share of the sources: it
+ * only acquires leases below that share and gives one away per round when it
+ * holds more, so sources spread over the nodes as they join.
+ */
+public class EventSourceLeases {
+  static RedisManager redis = RedisManager.getInstance();
+  static final String PUSHLET_LEASE_PREFIX = "p:lease:";
+  static final String PUSHLET_ZSET_NODES = "p:zset:nodes";
+
+  /**
+   * Take or renew the lease: returns 1 when ARGV[1] owns it for ARGV[2] ms.
+   */
+  public static final RedisScript ACQUIRE_SCRIPT = new RedisScript("local owner = redis.call('get', KEYS[1])\n"
+      + "if owner == false then\n"
+      + "  redis.call('set', KEYS[1], ARGV[1])\n"
+      + "elseif owner ~= ARGV[1] then\n"
+      + "  return 0\n"
+      + "end\n"
+      + "redis.call('pexpire', KEYS[1], ARGV[2])\n"
+      + "return 1", new RedisScript.Emulation() {
+    public Object eval(MemoryStore redis, List<String> keys, List<byte[]> args) {
+      byte[] owner = redis.get(keys.get(0));
+      if (owner == null) {
+        redis.set(keys.get(0), args.get(0));
+      } else if (Arrays.equals(owner, args.get(0)) == false) {
+        return 0L;
+      }
+      redis.pexpire(keys.get(0), Long.parseLong(SafeEncoder.encode(args.get(1))));
+      return 1L;
+    }
+  });
+
+  /**
+   * Give up the lease, only if ARGV[1] still owns it.
+   */
+  public static final RedisScript RELEASE_SCRIPT = new RedisScript("if redis.call('get', KEYS[1]) == ARGV[1] then\n"
+      + "  return redis.call('del', KEYS[1])\n"
+      + "end\n"
+      + "return 0", new RedisScript.Emulation() {
+    public Object eval(MemoryStore redis, List<String> keys, List<byte[]> args) {
+      if (Arrays.equals(redis.get(keys.get(0)), args.get(0))) {
+        return redis.del(keys.get(0));
+      }
+      return 0L;
+    }
+  });
+
+  /**
+   * Register node ARGV[1] alive at ARGV[2], forget nodes silent since ARGV[3]
+   * and return the number of live nodes.
+   */
+  public static final RedisScript NODES_SCRIPT = new RedisScript("redis.call('zadd', KEYS[1], ARGV[2], ARGV[1])\n"
+      + "redis.call('zremrangebyscore', KEYS[1], '-inf', '(' .. ARGV[3])\n"
+      + "return redis.call('zcard', KEYS[1])", new RedisScript.Emulation() {
+    public Object eval(MemoryStore redis, List<String> keys, List<byte[]> args) {
+      redis.zadd(keys.get(0), Double.parseDouble(SafeEncoder.encode(args.get(1))), SafeEncoder.encode(args.get(0)));
+      //@wjw_node "(ARGV[3]"是开区间
+      double silentSince = Double.parseDouble(SafeEncoder.encode(args.get(2)));
+      redis.zremrangebyscore(keys.get(0), Double.NEGATIVE_INFINITY, Math.nextAfter(silentSince, Double.NEGATIVE_INFINITY));
+      return redis.zcard(keys.get(0));
+    }
+  });
+
+  private final String nodeId;
+  private final long leaseMillis;
+
+  /**
+   * Sources whose lease this node holds, with the time the lease expires
+   * unless renewed.
+   */
+  private final Map<EventSource, Long> held = Collections.synchronizedMap(new IdentityHashMap<EventSource, Long>());
+
+  public EventSourceLeases(long leaseMillis) {
+    this.leaseMillis = leaseMillis;
+
+    //@wjw_node pid@host,同一台机器上的多个JVM也不会重复
+    this.nodeId = ManagementFactory.getRuntimeMXBean().getName();
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public long getLeaseMillis() {
+    return leaseMillis;
+  }
+
+  /**
+   * Does this node run the source: it holds the lease and the lease is not
+   * about to expire.
+   */
+  public boolean isLeader(EventSource eventSource) {
+    Long deadline = held.get(eventSource);
+    //@wjw_node 留出1/3租期的余量,抵消redis调用的延迟和节点间的时钟偏差
+    return deadline != null && System.currentTimeMillis() < deadline.longValue() - leaseMillis / 3;
+  }
+
+  /**
+   * One election round: renew the held leases, give one away above the fair
+   * share and acquire free ones below it. When redis fails this node can no
+   * longer tell which leases it holds, so it gives them all up.
+   */
+  public void elect(List<EventSource> eventSources) {
+    try {
+      elect(eventSources, System.currentTimeMillis());
+    } catch (RuntimeException e) {
+      if (!held.isEmpty()) {
+        held.clear();
+        Log.warn("EventSourceLeases: election failed, " + nodeId + " lost all leases");
+      }
+      throw e;
+    }
+  }
+
+  private void elect(List<EventSource> eventSources, long now) {
+    int nodes = ((Long) redis.eval(NODES_SCRIPT, Collections.singletonList(PUSHLET_ZSET_NODES),
+        Arrays.asList(nodeId, String.valueOf(now), String.valueOf(now - leaseMillis)))).intValue();
+    int fairShare = (eventSources.size() + Math.max(nodes, 1) - 1) / Math.max(nodes, 1);
+
+    int holding = 0;
+    for (EventSource eventSource : eventSources) {
+      if (held.containsKey(eventSource)) {
+        long sent = System.currentTimeMillis();
+        if (acquire(eventSource)) {
+          held.put(eventSource, sent + leaseMillis);
+          holding++;
+        } else {
+          held.remove(eventSource);
+          Log.warn("EventSourceLeases: lost lease of " + eventSource.getClass().getName());
+        }
+      }
+    }
+
+    for (EventSource eventSource : eventSources) {
+      if (holding > fairShare && held.containsKey(eventSource)) {
+        release(eventSource);
+        holding--;
+        break; //@wjw_node 每轮只让出一个,避免所有节点同时让出又同时抢占
+      }
+      if (holding >= fairShare || held.containsKey(eventSource)) {
+        continue;
+      }
+      long sent = System.currentTimeMillis();
+      if (acquire(eventSource)) {
+        held.put(eventSource, sent + leaseMillis);
+        holding++;
+        Log.info("EventSourceLeases: " + nodeId + " leads " + eventSource.getClass().getName());
+      }
+    }
+  }
+
+  /**
+   * Give up all leases and leave the node registry.
+   */
+  public void releaseAll() {
+    EventSource[] sources;
+    synchronized (held) {
+      sources = held.keySet().toArray(new EventSource[held.size()]);
+    }
+    for (EventSource eventSource : sources) {
+      release(eventSource);
+    }
+    redis.zrem(PUSHLET_ZSET_NODES, nodeId);
+  }
+
+  private boolean acquire(EventSource eventSource) {
+    //@wjw_node 异常不在这里吞掉:续约失败时不能确定自己还是leader,由elect()当作失去了全部租约
+    return Long.valueOf(1).equals(redis.eval(ACQUIRE_SCRIPT, Collections.singletonList(leaseKey(eventSource)),
+        Arrays.asList(nodeId, String.valueOf(leaseMillis))));
+  }
+
+  private void release(EventSource eventSource) {
+    held.remove(eventSource);
+    try {
+      redis.eval(RELEASE_SCRIPT, Collections.singletonList(leaseKey(eventSource)), Collections.singletonList(nodeId));
+      Log.info("EventSourceLeases: " + nodeId + " released " + eventSource.getClass().getName());
+    } catch (Exception e) {
+      Log.warn("EventSourceLeases: cannot release lease of " + eventSource.getClass().getName(), e);
+    }
+  }
+
+  private static String leaseKey(EventSource eventSource) {
+    return PUSHLET_LEASE_PREFIX + eventSource.getClass().getName();
+  }
+
+}
@@ -4,15 +4,34 @@
 package nl.justobjects.pushlet.core;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import nl.justobjects.pushlet.redis.RedisManager;
 import nl.justobjects.pushlet.util.Log;
 import nl.justobjects.pushlet.util.Sys;
 
 /**
  * Maintains lifecycle of event sources.
+ * <p/>
+ * Sources that declare their subjects ({@link SubjectSource}) are demand
+ * driven: every "sources.demand.check.millis" a source whose subjects have no
+ * subscribers left (zero "p:zset:sj:" members) is passivated, and it is
+ * activated again by the first local addSubscription or, for subscribers on
+ * other nodes, by the next check.
+ * <p/>
+ * With "sources.lease.millis" set, a source only runs on the node holding its
+ * lease, see {@link EventSourceLeases}.
  * 
  * @author Just van den Broecke - Just Objects &copy;
  * @version $Id: EventSourceManager.java,v 1.14 2007/11/10 13:44:02 justb Exp $
@@ -20,6 +39,24 @@ import nl.justobjects.pushlet.util.Sys;
 public class EventSourceManager {
   private static Vector eventSources = new Vector(0);
   private static final String PROPERTIES_FILE = "sources.properties";
+  static RedisManager redis = RedisManager.getInstance();
+
+  /**
+   * Sources currently active, to activate/passivate each only once.
+   */
+  private static final Map<EventSource, Boolean> activeSources = new IdentityHashMap<EventSource, Boolean>();
+  private static volatile boolean demandDriven;
+
+  /**
+   * Runs lease renewal and demand checks: both block on redis, so they must not
+   * delay the pulls on the EventPullSource scheduler, and one thread keeps the
+   * rounds in order.
+   */
+  private static ScheduledExecutorService electionScheduler;
+  private static ScheduledFuture<?> demandCheck;
+  private static ScheduledFuture<?> leaseRenewal;
+  private static ScheduledFuture<?> leaseExpiry;
+  private static EventSourceLeases leases;
 
   /**
    * Initialize event sources from properties file.
@@ -65,7 +102,169 @@ public class EventSourceManager {
       }
     }
 
-    activate();
+    long checkMillis = Config.getLongProperty(ConfigDefs.SOURCES_DEMAND_CHECK_MILLIS, 0);
+    long leaseMillis = Config.getLongProperty(ConfigDefs.SOURCES_LEASE_MILLIS, 0);
+    if (checkMillis <= 0 && leaseMillis <= 0) {
+      activate();
+      return;
+    }
+
+    demandDriven = checkMillis > 0;
+    electionScheduler = Executors.newSingleThreadScheduledExecutor(new EventPullSource.DaemonThreadFactory("EventSourceElection-"));
+    if (leaseMillis > 0) {
+      leases = new EventSourceLeases(leaseMillis);
+      elect();
+      leaseRenewal = electionScheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            elect();
+          } catch (Throwable t) {
+            Log.warn("EventSourceManager: lease renewal failed", t);
+          }
+        }
+      }, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+
+      //@wjw_node 选举线程可能阻塞在redis上,租约快到期时要由另一个线程停掉source;这里不访问redis
+      leaseExpiry = EventPullSource.getScheduler().scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          passivateExpired();
+        }
+      }, leaseMillis / 6, leaseMillis / 6, TimeUnit.MILLISECONDS);
+      Log.info("EventSourceManager: node " + leases.getNodeId() + " elects sources, lease " + leaseMillis + "ms");
+    }
+
+    if (demandDriven) {
+      checkDemand();
+      demandCheck = electionScheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            checkDemand();
+          } catch (Throwable t) {
+            Log.warn("EventSourceManager: demand check failed", t);
+          }
+        }
+      }, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+      Log.info("EventSourceManager: demand driven, check every " + checkMillis + "ms");
+    }
+  }
+
+  /**
+   * Renew and acquire leases, then run exactly the sources this node leads.
+   */
+  private static void elect() {
+    EventSourceLeases currentLeases = leases;
+    if (currentLeases == null) {
+      return;
+    }
+
+    List<EventSource> sources = new ArrayList<EventSource>(eventSources.size());
+    for (int i = 0; i < eventSources.size(); i++) {
+      sources.add((EventSource) eventSources.elementAt(i));
+    }
+    try {
+      currentLeases.elect(sources);
+    } finally {
+      if (!demandDriven) {
+        for (EventSource eventSource : sources) {
+          setActive(eventSource, currentLeases.isLeader(eventSource));
+        }
+      } else {
+        checkDemand();
+      }
+    }
+  }
+
+  /**
+   * Passivate the active sources whose lease is about to expire unrenewed.
+   */
+  private static void passivateExpired() {
+    for (int i = 0; i < eventSources.size(); i++) {
+      EventSource eventSource = (EventSource) eventSources.elementAt(i);
+      if (!isLeader(eventSource)) {
+        setActive(eventSource, false);
+      }
+    }
+  }
+
+  /**
+   * Subjects of the source, null (always active) unless it is a
+   * {@link SubjectSource}.
+   */
+  private static String[] getSubjects(EventSource eventSource) {
+    if (eventSource instanceof SubjectSource) {
+      return ((SubjectSource) eventSource).getSubjects();
+    }
+    return null;
+  }
+
+  /**
+   * Does this node run the source: always, unless leases are in use.
+   */
+  private static boolean isLeader(EventSource eventSource) {
+    return leases == null || leases.isLeader(eventSource);
+  }
+
+  /**
+   * Activate the sources producing the subject: called when a subscriber
+   * subscribes to it.
+   */
+  public static void onSubscribe(String aSubject) {
+    if (!demandDriven) {
+      return;
+    }
+
+    for (int i = 0; i < eventSources.size(); i++) {
+      EventSource eventSource = (EventSource) eventSources.elementAt(i);
+      String[] subjects = getSubjects(eventSource);
+      if (subjects != null && Arrays.asList(subjects).contains(aSubject) && isLeader(eventSource)) {
+        setActive(eventSource, true);
+      }
+    }
+  }
+
+  /**
+   * Activate sources whose subjects have subscribers, passivate the others.
+   */
+  public static void checkDemand() {
+    for (int i = 0; i < eventSources.size(); i++) {
+      EventSource eventSource = (EventSource) eventSources.elementAt(i);
+      String[] subjects = getSubjects(eventSource);
+      if (!isLeader(eventSource)) {
+        setActive(eventSource, false);
+        continue;
+      }
+      if (subjects == null) {
+        setActive(eventSource, true);
+        continue;
+      }
+
+      boolean demanded = false;
+      for (String oneSubject : subjects) {
+        if (redis.zcard(Subscriber.PUSHLET_ZSET_SUBJECT_PREFIX + oneSubject).longValue() > 0) {
+          demanded = true;
+          break;
+        }
+      }
+      setActive(eventSource, demanded);
+    }
+  }
+
+  private static void setActive(EventSource eventSource, boolean active) {
+    synchronized (activeSources) {
+      if (activeSources.containsKey(eventSource) == active) {
+        return;
+      }
+
+      if (active) {
+        activeSources.put(eventSource, Boolean.TRUE);
+        Log.info("EventSourceManager: activate " + eventSource.getClass().getName());
+        eventSource.activate();
+      } else {
+        activeSources.remove(eventSource);
+        Log.info("EventSourceManager: passivate " + eventSource.getClass().getName());
+        eventSource.passivate();
+      }
+    }
   }
 
   /**
@@ -74,7 +273,7 @@ public class EventSourceManager {
   public static void activate() {
     Log.info("Activating " + eventSources.size() + " EventSources");
     for (int i = 0; i < eventSources.size(); i++) {
-      ((EventSource) eventSources.elementAt(i)).activate();
+      setActive((EventSource) eventSources.elementAt(i), true);
     }
     Log.info("EventSources activated");
   }
@@ -85,7 +284,7 @@ public class EventSourceManager {
   public static void passivate() {
     Log.info("Passivating " + eventSources.size() + " EventSources");
     for (int i = 0; i < eventSources.size(); i++) {
-      ((EventSource) eventSources.elementAt(i)).passivate();
+      setActive((EventSource) eventSources.elementAt(i), false);
     }
     Log.info("EventSources passivated");
   }
@@ -95,9 +294,30 @@ public class EventSourceManager {
    */
   public static void stop() {
     Log.info("Stopping " + eventSources.size() + " EventSources...");
+    demandDriven = false;
+    if (demandCheck != null) {
+      demandCheck.cancel(false);
+      demandCheck = null;
+    }
+    if (leaseRenewal != null) {
+      leaseRenewal.cancel(false);
+      leaseRenewal = null;
+    }
+    if (leaseExpiry != null) {
+      leaseExpiry.cancel(false);
+      leaseExpiry = null;
+    }
+    if (electionScheduler != null) {
+      electionScheduler.shutdown();
+      electionScheduler = null;
+    }
     for (int i = 0; i < eventSources.size(); i++) {
       ((EventSource) eventSources.elementAt(i)).stop();
     }
+    if (leases != null) {
+      leases.releaseAll();
+      leases = null;
+    }
     Log.info("EventSources stopped");
   }
 
@@ -0,0 +1,161 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.core;
+
+import nl.justobjects.pushlet.util.Metrics;
+
+/**
+ * Latency tracing of events: with "trace.enabled" each event carries the
+ * times it passed the stages of the pipeline in the field "p_trace", as
+ * nanoseconds since 1970 separated by commas, 0 for a stage not passed:
+ * <ul>
+ * <li>ingress: the publish request reached Pushlet.doRequest</li>
+ * <li>dispatch: the Dispatcher started to send the event</li>
+ * <li>enqueue: the event was written to the queue of a session</li>
+ * <li>dequeue: the Subscriber took the event from the queue</li>
+ * <li>write: the Subscriber handed the event to the client adapter</li>
+ * </ul>
+ * The field travels with the event through redis, so the stamps may come
+ * from different nodes and are as comparable as their clocks. When the event
+ * is written the time from each stage to the next is recorded in the timer
+ * "event_latency_&lt;stage&gt;" per subject, and from the first stamp in
+ * "event_latency_total". The client only gets the field with "trace.client".
+ */
+public class EventTrace implements Protocol, ConfigDefs {
+  /**
+   * Stages.
+   */
+  public static final int INGRESS = 0;
+  public static final int DISPATCH = 1;
+  public static final int ENQUEUE = 2;
+  public static final int DEQUEUE = 3;
+  public static final int WRITE = 4;
+
+  //@wjw_node 计时器名是到达该阶段所用的时间,例如queued是在队列里等待的时间
+  private static final Metrics.Family[] TIMERS = { null, Metrics.timerFamily("event_latency_dispatch", "subject"),
+      Metrics.timerFamily("event_latency_enqueue", "subject"), Metrics.timerFamily("event_latency_queued", "subject"),
+      Metrics.timerFamily("event_latency_write", "subject") };
+  private static final Metrics.Family TOTAL = Metrics.timerFamily("event_latency_total", "subject");
+
+  //@wjw_node System.nanoTime()只在本JVM内有意义,以启动时的currentTimeMillis为基准换算成1970年以来的纳秒
+  private static final long EPOCH_NANOS = System.currentTimeMillis() * 1000000L;
+  private static final long START_NANOS = System.nanoTime();
+
+  private static volatile boolean enabled = false;
+  private static volatile boolean toClient = false;
+
+  /**
+   * Read the settings from the config.
+   */
+  public static void init() {
+    enabled = "true".equals(Config.getProperty(TRACE_ENABLED, "false"));
+    toClient = "true".equals(Config.getProperty(TRACE_CLIENT, "false"));
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Nanoseconds since 1970, with the resolution of System.nanoTime().
+   */
+  public static long now() {
+    return EPOCH_NANOS + (System.nanoTime() - START_NANOS);
+  }
+
+  /**
+   * Stamp the stage on the event now; ingress starts a new trace, replacing
+   * one the client may have sent.
+   */
+  public static void stamp(Event anEvent, int stage) {
+    if (enabled == false) {
+      return;
+    }
+
+    long[] stamps = stage == INGRESS ? new long[WRITE + 1] : parse(anEvent.getField(P_TRACE));
+    stamps[stage] = now();
+    anEvent.setField(P_TRACE, format(stamps));
+  }
+
+  /**
+   * Stamp the write of the event to the client and record its latencies.
+   * Removes the trace unless the client is to see it.
+   */
+  public static void write(Event anEvent) {
+    String trace = anEvent.getField(P_TRACE);
+    if (trace == null) {
+      return;
+    }
+
+    if (enabled) {
+      long[] stamps = parse(trace);
+      stamps[WRITE] = now();
+      record(anEvent.getSubject(), stamps);
+      trace = format(stamps);
+    }
+
+    if (toClient) {
+      anEvent.setField(P_TRACE, trace);
+    } else {
+      anEvent.attributes.remove(P_TRACE);
+    }
+  }
+
+  private static void record(String aSubject, long[] stamps) {
+    if (aSubject == null) {
+      return;
+    }
+
+    long first = 0;
+    long previous = 0;
+    for (int i = 0; i < stamps.length; i++) {
+      if (stamps[i] == 0) {
+        continue;
+      }
+      if (previous != 0) {
+        //@wjw_node 不同节点的时钟可能有偏差,负值按0记录
+        TIMERS[i].get(aSubject).record(Math.max(0, stamps[i] - previous));
+      } else {
+        first = stamps[i];
+      }
+      previous = stamps[i];
+    }
+    if (first != 0 && previous != first) {
+      TOTAL.get(aSubject).record(Math.max(0, previous - first));
+    }
+  }
+
+  private static long[] parse(String trace) {
+    long[] stamps = new long[WRITE + 1];
+    if (trace == null) {
+      return stamps;
+    }
+
+    int start = 0;
+    for (int i = 0; i < stamps.length && start <= trace.length(); i++) {
+      int comma = trace.indexOf(',', start);
+      if (comma < 0) {
+        comma = trace.length();
+      }
+      try {
+        stamps[i] = Long.parseLong(trace.substring(start, comma));
+      } catch (NumberFormatException e) {
+        stamps[i] = 0;
+      }
+      start = comma + 1;
+    }
+    return stamps;
+  }
+
+  private static String format(long[] stamps) {
+    StringBuilder trace = new StringBuilder(stamps.length * 20);
+    for (int i = 0; i < stamps.length; i++) {
+      if (i > 0) {
+        trace.append(',');
+      }
+      trace.append(stamps[i]);
+    }
+    return trace.toString();
+  }
+}
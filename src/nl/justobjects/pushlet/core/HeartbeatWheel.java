@@ -0,0 +1,139 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import nl.justobjects.pushlet.util.Log;
+
+/**
+ * Hashed timing wheel that sends heartbeats to idle stream connections.
+ * <p/>
+ * One daemon thread advances the wheel every "heartbeat.tick.millis"; each
+ * tick only visits the subscribers scheduled in that slot, so idle connections
+ * cost nothing between their checks. A subscriber that pushed events since it
+ * was scheduled is just rescheduled for the rest of its interval; an idle one
+ * gets a heartbeat written straight to its client adapter, without going
+ * through its redis queue. The writes run on a small pool of writer threads
+ * ("heartbeat.writer.threads"), so a slow client cannot hold up the wheel;
+ * when all writers are stuck and their queue is full, heartbeats are skipped
+ * instead of starting more threads.
+ */
+public class HeartbeatWheel implements Runnable, ConfigDefs {
+  private static final int WHEEL_SIZE = 512;
+  private static final int WRITE_QUEUE_SIZE = 1024;
+  private static HeartbeatWheel instance;
+
+  private final long tickMillis;
+  private final List<List<Timeout>> slots;
+  private final ThreadPoolExecutor writers;
+  private long tick = 0;
+  private Thread thread;
+
+  private static class Timeout {
+    final Subscriber subscriber;
+    int rounds;
+
+    Timeout(Subscriber subscriber, int rounds) {
+      this.subscriber = subscriber;
+      this.rounds = rounds;
+    }
+  }
+
+  protected HeartbeatWheel(long tickMillis, int writerThreads) {
+    this.tickMillis = tickMillis;
+    writers = new ThreadPoolExecutor(writerThreads, writerThreads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(WRITE_QUEUE_SIZE), new EventPullSource.DaemonThreadFactory("HeartbeatWriter-"),
+        new ThreadPoolExecutor.DiscardPolicy());
+    writers.allowCoreThreadTimeOut(true);
+    slots = new ArrayList<List<Timeout>>(WHEEL_SIZE);
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      slots.add(new ArrayList<Timeout>());
+    }
+  }
+
+  /**
+   * The wheel, started on first use.
+   */
+  public static synchronized HeartbeatWheel getInstance() {
+    if (instance == null) {
+      instance = new HeartbeatWheel(Config.getLongProperty(HEARTBEAT_TICK_MILLIS, 1000),
+          Config.getIntProperty(HEARTBEAT_WRITER_THREADS, 4));
+      instance.thread = new Thread(instance, "HeartbeatWheel");
+      instance.thread.setDaemon(true);
+      instance.thread.start();
+      Log.info("HeartbeatWheel started, tick=" + instance.tickMillis + "ms writers=" + instance.writers.getMaximumPoolSize());
+    }
+    return instance;
+  }
+
+  /**
+   * Check the subscriber after delayMillis.
+   */
+  public void schedule(Subscriber aSubscriber, long delayMillis) {
+    long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+    synchronized (this) {
+      int slot = (int) ((tick + ticks) % WHEEL_SIZE);
+      slots.get(slot).add(new Timeout(aSubscriber, (int) ((ticks - 1) / WHEEL_SIZE)));
+    }
+  }
+
+  /**
+   * Write a heartbeat outside the wheel thread; dropped when the writers are
+   * all busy and their queue is full, the next check sends one again.
+   */
+  public void write(Runnable aWrite) {
+    writers.execute(aWrite);
+  }
+
+  public void run() {
+    long next = System.currentTimeMillis() + tickMillis;
+    while (true) {
+      try {
+        long sleep = next - System.currentTimeMillis();
+        if (sleep > 0) {
+          Thread.sleep(sleep);
+        }
+        next += tickMillis;
+        expire();
+      } catch (InterruptedException e) {
+        return;
+      } catch (Throwable t) {
+        Log.warn("HeartbeatWheel error", t);
+      }
+    }
+  }
+
+  /**
+   * Advance one tick and check the subscribers due.
+   */
+  private void expire() {
+    List<Timeout> due = new ArrayList<Timeout>();
+    synchronized (this) {
+      tick++;
+      int index = (int) (tick % WHEEL_SIZE);
+      List<Timeout> later = new ArrayList<Timeout>();
+      for (Timeout timeout : slots.get(index)) {
+        if (timeout.rounds == 0) {
+          due.add(timeout);
+        } else {
+          timeout.rounds--;
+          later.add(timeout);
+        }
+      }
+      slots.set(index, later);
+    }
+
+    for (Timeout timeout : due) {
+      long delay = timeout.subscriber.onHeartbeatTimer();
+      if (delay >= 0) {
+        schedule(timeout.subscriber, delay);
+      }
+    }
+  }
+}
@@ -5,7 +5,10 @@ import java.io.PrintWriter;
 
 import javax.servlet.http.HttpServletResponse;
 
+import nl.justobjects.pushlet.util.Counter;
 import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
+import nl.justobjects.pushlet.util.Probe;
 
 /**
  * ClientAdapter that sends Events as Json.
@@ -14,6 +17,8 @@ import nl.justobjects.pushlet.util.Log;
  * 
  */
 public class JsonAdapter implements ClientAdapter {
+  private static final Counter charsSent = Metrics.counter("adapter_chars", "adapter", "json");
+  private static final Counter flushes = Metrics.counter("adapter_flushes", "adapter", "json");
   /**
    * Header for json
    */
@@ -62,7 +67,7 @@ public class JsonAdapter implements ClientAdapter {
 
   @Override
   public void push(Event anEvent) throws IOException {
-    debug("event=" + anEvent);
+    Log.debug("[JsonAdapter]event={}", anEvent);
 
     pushCount++;
     if (pushCount > 1) {
@@ -70,11 +75,16 @@ public class JsonAdapter implements ClientAdapter {
     }
 
     // Send the event as Json to the client and flush.
-    out.print(anEvent.toJson());
+    Object span = Probe.getInstance().begin(Probe.FLUSH);
+    String json = anEvent.toJson();
+    out.print(json);
+    charsSent.add(json.length());
+    flushes.increment();
 
     if (out.checkError()) { //@wjw_add 把out.flush();改成 out.checkError(),才能判断客户端是否断掉
       throw new IOException("client is broke:" + out);
     }
+    Probe.getInstance().end(span, anEvent.getSubject(), 1, json.length());
   }
 
   /**
@@ -87,10 +97,7 @@ public class JsonAdapter implements ClientAdapter {
       out.print(");");
     }
     out.flush();
-  }
-
-  private void debug(String s) {
-    Log.debug("[JsonAdapter]" + s);
+    flushes.increment();
   }
 
 }
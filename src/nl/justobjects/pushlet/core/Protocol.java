@@ -90,6 +90,45 @@ public interface Protocol {
    */
   public static final String P_SUBSCRIPTION_LABEL = "p_label";
 
+  /**
+   * Subscription conflation key: name of the event field, e.g. "name" for
+   * stock ticks. A newer event with the same value replaces the one still
+   * queued for a slow subscriber instead of being queued behind it.
+   */
+  public static final String P_CONFLATE = "p_conflate";
+
+  /**
+   * Subscription rate limit: max events per second delivered.
+   */
+  public static final String P_RATE = "p_rate";
+
+  /**
+   * Subscription rate limit: min interval in ms between delivered events.
+   */
+  public static final String P_INTERVAL = "p_interval";
+
+  /**
+   * Subscription filter: predicate on event fields, see EventFilter.
+   */
+  public static final String P_FILTER = "p_filter";
+
+  /**
+   * Event priority: "high" events (e.g. control messages) are queued in their
+   * own lane, delivered before the others and never dropped or conflated.
+   */
+  public static final String P_PRIORITY = "p_priority";
+
+  /**
+   * Value for P_PRIORITY.
+   */
+  public static final String PRIORITY_HIGH = "high";
+
+  /**
+   * Latency trace of an event: nanosecond stamps of its stages, see
+   * EventTrace.
+   */
+  public static final String P_TRACE = "p_trace";
+
   //
   // Event values with direction for P_EVENT (C=client, S=server)
   //
@@ -204,6 +243,12 @@ public interface Protocol {
    */
   public static final String E_REFRESH_ACK = "refresh-ack";
 
+  /**
+   * C-->S metrics of this node in the OpenMetrics text format, needs no
+   * session (e.g. a Prometheus scrape of /pushlet.srv?p_event=metrics).
+   */
+  public static final String E_METRICS = "metrics";
+
   //
   // Values for P_FORMAT parameter
   //
@@ -8,6 +8,10 @@ import java.io.ObjectOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
+import nl.justobjects.pushlet.util.Counter;
+import nl.justobjects.pushlet.util.Metrics;
+import nl.justobjects.pushlet.util.Probe;
+
 /**
  * Implementation of ClientAdapter that sends Events as serialized objects.
  * <p/>
@@ -19,6 +23,7 @@ import javax.servlet.http.HttpServletResponse;
  * @version $Id: SerializedAdapter.java,v 1.4 2007/11/23 14:33:07 justb Exp $
  */
 class SerializedAdapter implements ClientAdapter {
+  private static final Counter flushes = Metrics.counter("adapter_flushes", "adapter", "serialized");
   private ObjectOutputStream out = null;
   public static final String CONTENT_TYPE = "application/x-java-serialized-object";
   private HttpServletResponse servletRsp;
@@ -45,9 +50,12 @@ class SerializedAdapter implements ClientAdapter {
    * Push Event to client.
    */
   public void push(Event anEvent) throws IOException {
+    Object span = Probe.getInstance().begin(Probe.FLUSH);
     out.writeObject(anEvent);
 
     out.flush();
+    flushes.increment();
+    Probe.getInstance().end(span, anEvent.getSubject(), 1, 0);
   }
 
   public void stop() throws IOException {
@@ -4,9 +4,12 @@
 package nl.justobjects.pushlet.core;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import nl.justobjects.pushlet.redis.MemoryStore;
 import nl.justobjects.pushlet.redis.RedisManager;
+import nl.justobjects.pushlet.redis.RedisScript;
 import nl.justobjects.pushlet.util.Log;
 import nl.justobjects.pushlet.util.PushletException;
 
@@ -19,6 +22,21 @@ import nl.justobjects.pushlet.util.PushletException;
 public class Session implements Protocol, ConfigDefs {
   static RedisManager redis = RedisManager.getInstance();
   static final String PUSHLET_SESSION_PREFIX = "p:ss:";
+
+  /**
+   * Deletes all keys of one session (session, subscriber, subscriptions, event
+   * queue, its conflated events and rate limits) in one call and returns the subscriptions, so
+   * that the caller can clean up the subject indexes which live elsewhere.
+   */
+  public static final RedisScript PURGE_SCRIPT = new RedisScript("local subscriptions = redis.call('hvals', KEYS[3])\n"
+      + "redis.call('del', unpack(KEYS))\n"
+      + "return subscriptions", new RedisScript.Emulation() {
+    public Object eval(MemoryStore redis, List<String> keys, List<byte[]> args) {
+      List<byte[]> subscriptions = redis.hvals(keys.get(2));
+      redis.del(keys.toArray(new String[keys.size()]));
+      return subscriptions;
+    }
+  });
   private String myHkey;
 
   private Controller controller;
@@ -45,6 +63,15 @@ public class Session implements Protocol, ConfigDefs {
   protected Session() {
   }
 
+  /**
+   * Redis key of one session's data. The id is wrapped in a "{...}" hash tag,
+   * so all keys of a session land in the same cluster slot (and the same
+   * shard) and can be used together in one script.
+   */
+  static String keyOf(String aPrefix, String anId) {
+    return aPrefix + "{" + anId + "}";
+  }
+
   /**
    * Create instance through factory method.
    * 
@@ -55,9 +82,28 @@ public class Session implements Protocol, ConfigDefs {
    *           exception, usually misconfiguration
    */
   public static Session create(String anId) throws PushletException {
+    return create(anId, null, null);
+  }
+
+  /**
+   * Create instance from status already fetched from redis, e.g. by a batch
+   * read of a whole page of sessions.
+   * 
+   * @param anId
+   *          a session id
+   * @param aSessionStatus
+   *          the session hash, empty if not persisted, null to read it here
+   * @param aSubscriberStatus
+   *          the subscriber hash, empty if not persisted, null to read it here
+   * @return a Session object (or derived)
+   * @throws PushletException
+   *           exception, usually misconfiguration
+   */
+  static Session create(String anId, Map<String, String> aSessionStatus, Map<String, String> aSubscriberStatus)
+      throws PushletException {
     Session session;
     try {
-      session = (Session) Config.getClass(SESSION_CLASS, "nl.justobjects.pushlet.core.Session").newInstance();
+      session = (Session) Config.createObject(SESSION_CLASS, "nl.justobjects.pushlet.core.Session");
     } catch (Throwable t) {
       throw new PushletException("Cannot instantiate Session from config", t);
     }
@@ -65,11 +111,17 @@ public class Session implements Protocol, ConfigDefs {
     // Init session
     session.id = anId;
     session.controller = Controller.create(session);
-    session.subscriber = Subscriber.create(session); //TODO@ 把Subscriber联系上Session
-
-    session.myHkey = PUSHLET_SESSION_PREFIX + session.id;
-    if (session.isPersistence()) {
-      session.readStatus();
+    session.subscriber = Subscriber.create(session, aSubscriberStatus); //TODO@ 把Subscriber联系上Session
+
+    session.myHkey = keyOf(PUSHLET_SESSION_PREFIX, session.id);
+    if (aSessionStatus == null) {
+      if (session.isPersistence()) {
+        session.readStatus();
+      } else {
+        session.saveStatus();
+      }
+    } else if (aSessionStatus.isEmpty() == false) {
+      session.readStatus(aSessionStatus);
     } else {
       session.saveStatus();
     }
@@ -199,8 +251,7 @@ public class Session implements Protocol, ConfigDefs {
         redis.zrem(SessionManager.PUSHLET_ZSET_ALLSESSION, id);
       }
       //<-先把ID从键为("p:zet:as"的ZSet)里删除
-
-      redis.del(myHkey);
+      //@wjw_node 会话的hash由subscriber.stop()和其他同标签的key一起删除
     }
 
     subscriber.stop();
@@ -211,21 +262,21 @@ public class Session implements Protocol, ConfigDefs {
    * Info.
    */
   public void info(String s) {
-    Log.info("S-" + this + ": " + s);
+    Log.info("S-{}: {}", this, s);
   }
 
   /**
    * Exceptional print util.
    */
   public void warn(String s) {
-    Log.warn("S-" + this + ": " + s);
+    Log.warn("S-{}: {}", this, s);
   }
 
   /**
    * Exceptional print util.
    */
   public void debug(String s) {
-    Log.debug("S-" + this + ": " + s);
+    Log.debug("S-{}: {}", this, s);
   }
 
   @Override
@@ -266,8 +317,10 @@ public class Session implements Protocol, ConfigDefs {
   }
 
   public void readStatus() {
-    java.util.Map<String, String> keyValues = redis.hgetAll(myHkey);
+    readStatus(redis.hgetAll(myHkey));
+  }
 
+  protected void readStatus(Map<String, String> keyValues) {
     String tmpStr;
     userAgent = keyValues.get("userAgent");
     tmpStr = keyValues.get("createDate");
@@ -284,8 +337,6 @@ public class Session implements Protocol, ConfigDefs {
     }
     address = keyValues.get("address");
     format = keyValues.get("format");
-
-    keyValues.clear();
   }
 
 }
@@ -13,7 +13,10 @@ import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
 import nl.justobjects.pushlet.redis.RedisManager;
+import nl.justobjects.pushlet.redis.ScanResult;
+import nl.justobjects.pushlet.util.Counter;
 import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
 import nl.justobjects.pushlet.util.PushletException;
 import nl.justobjects.pushlet.util.Rand;
 import nl.justobjects.pushlet.util.Sys;
@@ -29,6 +32,10 @@ public class SessionManager implements ConfigDefs {
 
   static final String PUSHLET_ZSET_ALLSESSION = "p:zset:as";
 
+  static final Counter sessionsCreated = Metrics.counter("sessions", "event", "created");
+  static final Counter sessionsRemoved = Metrics.counter("sessions", "event", "removed");
+  static final Counter sessionsExpired = Metrics.counter("sessions", "event", "expired");
+
   /**
    * Singleton pattern: single instance.
    */
@@ -40,6 +47,12 @@ public class SessionManager implements ConfigDefs {
     try {
       instance = (SessionManager) Config.getClass(SESSION_MANAGER_CLASS, "nl.justobjects.pushlet.core.SessionManager").newInstance();
       Log.info("SessionManager created className=" + instance.getClass());
+
+      Metrics.gauge("sessions_active", new Metrics.Gauge() {
+        public long getValue() {
+          return instance.getSessionCount();
+        }
+      });
     } catch (Throwable t) {
       Log.fatal("Cannot instantiate SessionManager from config", t);
     }
@@ -106,21 +119,39 @@ public class SessionManager implements ConfigDefs {
     }
 
     //@wjw_add 在查找本地没有,而redis有的其他节点上的session
-    //分批获取所有redis里的session
-    java.util.Set<String> allSessionId = null;
-    int start = 0;
+    //分批获取所有redis里的session,用ZSCAN游标遍历,visited去掉ZSCAN可能返回的重复成员
+    java.util.Set<String> visited = new java.util.HashSet<String>();
+    java.util.List<String> allSessionId;
+    String cursor = ScanResult.SCAN_POINTER_START;
     Session tempSession;
-    while (true) {
-      allSessionId = redis.zrange(PUSHLET_ZSET_ALLSESSION, start, start + RedisManager.pagesize);
-      if (allSessionId.size() == 0) {
-        break;
+    do {
+      ScanResult<String> scanResult = redis.zscan(PUSHLET_ZSET_ALLSESSION, cursor, RedisManager.pagesize + 1);
+      cursor = scanResult.getCursor();
+      allSessionId = new java.util.ArrayList<String>(scanResult.getResult().size());
+      for (String oneSessionId : scanResult.getResult()) {
+        if (visited.add(oneSessionId)) {
+          allSessionId.add(oneSessionId);
+        }
+      }
+
+      //@wjw_node 本页中不在本地的session,其状态用分片感知的批量操作一次取回
+      java.util.List<String> hkeys = new java.util.ArrayList<String>(allSessionId.size() * 2);
+      for (String oneSessionId : allSessionId) {
+        if (sessions.containsKey(oneSessionId) == false) {
+          hkeys.add(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, oneSessionId));
+          hkeys.add(Session.keyOf(Subscriber.PUSHLET_SUBSCRIBER_PREFIX, oneSessionId));
+        }
       }
+      if (hkeys.size() == 0) {
+        continue;
+      }
+      Map<String, Map<String, String>> allStatus = redis.hgetAll(hkeys);
 
-      start = start + allSessionId.size();
       for (String oneSessionId : allSessionId) {
         try {
           if (sessions.containsKey(oneSessionId) == false) {
-            tempSession = Session.create(oneSessionId);
+            tempSession = Session.create(oneSessionId, allStatus.get(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, oneSessionId)),
+                allStatus.get(Session.keyOf(Subscriber.PUSHLET_SUBSCRIBER_PREFIX, oneSessionId)));
             tempSession.getSubscriber().start();
 
             args[0] = tempSession;
@@ -130,13 +161,14 @@ public class SessionManager implements ConfigDefs {
           Log.warn("apply: method invoke: ", e);
         }
       }
-    }
+    } while (ScanResult.SCAN_POINTER_START.equals(cursor) == false);
   }
 
   /**
    * Create new Session (but add later).
    */
   public Session createSession(Event anEvent) throws PushletException {
+    sessionsCreated.increment();
     if (anEvent.getField(Protocol.P_ID) == null) {
       return Session.create(createSessionId());
     } else {
@@ -160,7 +192,7 @@ public class SessionManager implements ConfigDefs {
     Session tmpSession = (Session) sessions.get(anId);
 
     //@wjw_add 再从redis里查询是否有此anId的session
-    if (tmpSession == null && redis.exists(Session.PUSHLET_SESSION_PREFIX + anId)) {
+    if (tmpSession == null && redis.exists(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, anId))) {
       try {
         tmpSession = Session.create(anId);
         tmpSession.getSubscriber().start();
@@ -197,6 +229,7 @@ public class SessionManager implements ConfigDefs {
     Session[] sessions = getSessions();
     StringBuilder statusBuffer = new StringBuilder();
     statusBuffer.append("SessionMgr: " + sessions.length + " sessions \\n");
+    statusBuffer.append("EventQueue: " + EventQueue.getOverflowStatus() + " \\n");
     for (int i = 0; i < sessions.length; i++) {
       statusBuffer.append(sessions[i] + "\\n");
     }
@@ -216,7 +249,9 @@ public class SessionManager implements ConfigDefs {
   public void addSession(Session session) {
     sessions.put(session.getId(), session);
 
-    info(session.getId() + " at " + session.getAddress() + " added ");
+    if (Log.isInfoEnabled()) {
+      info(session.getId() + " at " + session.getAddress() + " added ");
+    }
   }
 
   /**
@@ -225,7 +260,10 @@ public class SessionManager implements ConfigDefs {
   public Session removeSession(Session aSession) {
     Session session = (Session) sessions.remove(aSession.getId());
     if (session != null) {
-      info(session.getId() + " at " + session.getAddress() + " removed ");
+      sessionsRemoved.increment();
+      if (Log.isInfoEnabled()) {
+        info(session.getId() + " at " + session.getAddress() + " removed ");
+      }
     }
     return session;
   }
@@ -290,7 +328,9 @@ public class SessionManager implements ConfigDefs {
    * Util: stdout printing.
    */
   protected void info(String s) {
-    Log.info("SessionManager: " + new Date() + " " + s);
+    if (Log.isInfoEnabled()) {
+      Log.info("SessionManager: " + new Date() + " " + s);
+    }
   }
 
   /**
@@ -304,7 +344,7 @@ public class SessionManager implements ConfigDefs {
    * Util: stdout printing.
    */
   protected void debug(String s) {
-    Log.debug("SessionManager: " + s);
+    Log.debug("SessionManager: {}", s);
   }
 
   /**
@@ -343,25 +383,28 @@ public class SessionManager implements ConfigDefs {
      */
     public void visit(Session aSession) {
       //@wjw_add: 先判断此session是否正在被其他节点的AgingTimerTask访问
-      if (redis.hsetnx(Session.PUSHLET_SESSION_PREFIX + aSession.getId(), "AgingTime", String.valueOf(System.currentTimeMillis())) == 0) { //键"AgingTime"已经存在
+      if (redis.hsetnx(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, aSession.getId()), "AgingTime", String.valueOf(System.currentTimeMillis())) == 0) { //键"AgingTime"已经存在
         try {
-          String strAgingTime = redis.hget(Session.PUSHLET_SESSION_PREFIX + aSession.getId(), "AgingTime");
+          String strAgingTime = redis.hget(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, aSession.getId()), "AgingTime");
           long agingTime = Long.parseLong(strAgingTime);
           if ((System.currentTimeMillis() - agingTime) < 60000) { //假设agingTime小于60秒说明还正在被其他节点的AgingTimerTask访问
             return;
           }
         } catch (Exception e) {
-          redis.hset(Session.PUSHLET_SESSION_PREFIX + aSession.getId(), "AgingTime", String.valueOf(System.currentTimeMillis()));
+          redis.hset(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, aSession.getId()), "AgingTime", String.valueOf(System.currentTimeMillis()));
         }
       }
 
       try {
         // Age the lease
         aSession.age(delta);
-        debug("AgingTimerTask: visit: " + aSession);
+        if (Log.isDebugEnabled()) {
+          debug("AgingTimerTask: visit: " + aSession);
+        }
 
         // Stop session if lease expired
         if (aSession.isExpired()) {
+          sessionsExpired.increment();
           if (getInstance().hasSession(aSession.getId())) {
             info("AgingTimerTask: Session expired: " + aSession);
           }
@@ -371,7 +414,7 @@ public class SessionManager implements ConfigDefs {
       } catch (Throwable t) {
         warn("AgingTimerTask: Error in timer task : " + t);
       } finally {
-        redis.hdel(Session.PUSHLET_SESSION_PREFIX + aSession.getId(), "AgingTime");
+        redis.hdel(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, aSession.getId()), "AgingTime");
       }
     }
   }
@@ -0,0 +1,17 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.core;
+
+/**
+ * Optional interface for an {@link EventSource} that tells which subjects it
+ * produces, so that the EventSourceManager only keeps it active while one of
+ * them has subscribers. Sources without it are always active.
+ */
+public interface SubjectSource {
+  /**
+   * Subjects of the events this source produces, null when they are not
+   * known: the source is then always active.
+   */
+  public String[] getSubjects();
+}
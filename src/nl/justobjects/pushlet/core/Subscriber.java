@@ -3,7 +3,16 @@
 
 package nl.justobjects.pushlet.core;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
 import nl.justobjects.pushlet.redis.RedisManager;
+import nl.justobjects.pushlet.util.Log;
 import nl.justobjects.pushlet.util.PushletException;
 import nl.justobjects.pushlet.util.Rand;
 import nl.justobjects.pushlet.util.Sys;
@@ -27,10 +36,21 @@ public class Subscriber implements Protocol, ConfigDefs {
    * URL to be used in refresh requests in pull/poll modes.
    */
   private long queueReadTimeoutMillis = Config.getLongProperty(QUEUE_READ_TIMEOUT_MILLIS);
-  private long queueWriteTimeoutMillis = Config.getLongProperty(QUEUE_WRITE_TIMEOUT_MILLIS);
   private long refreshTimeoutMillis = Config.getLongProperty(PULL_REFRESH_TIMEOUT_MILLIS);
   volatile long lastAlive = Sys.now();
 
+  /**
+   * Serializes pushes to the client between the fetching thread and the
+   * heartbeats; guards the fields below. The HeartbeatWheel only tries it, a
+   * held lock means a push is going on and the stream is not idle.
+   */
+  private final ReentrantLock pushLock = new ReentrantLock();
+  private long eventSeqNr = 1;
+  private volatile long lastPush = Sys.now();
+  private ClientAdapter streamAdapter;
+  private boolean heartbeatScheduled = false;
+  private long heartbeatIntervalMillis;
+
   private Session session;
 
   /**
@@ -64,20 +84,41 @@ public class Subscriber implements Protocol, ConfigDefs {
    *           exception, usually misconfiguration
    */
   public static Subscriber create(Session aSession) throws PushletException {
+    return create(aSession, null);
+  }
+
+  /**
+   * Create instance from a subscriber hash already fetched from redis.
+   * 
+   * @param aSession
+   *          the parent Session
+   * @param aStatus
+   *          the subscriber hash, empty if not persisted, null to read it here
+   * @return a Subscriber object (or derived)
+   * @throws PushletException
+   *           exception, usually misconfiguration
+   */
+  static Subscriber create(Session aSession, java.util.Map<String, String> aStatus) throws PushletException {
     Subscriber subscriber;
     try {
-      subscriber = (Subscriber) Config.getClass(SUBSCRIBER_CLASS, "nl.justobjects.pushlet.core.Subscriber").newInstance();
+      subscriber = (Subscriber) Config.createObject(SUBSCRIBER_CLASS, "nl.justobjects.pushlet.core.Subscriber");
     } catch (Throwable t) {
       throw new PushletException("Cannot instantiate Subscriber from config", t);
     }
 
     subscriber.session = aSession;
-    subscriber.myHkey = PUSHLET_SUBSCRIBER_PREFIX + aSession.getId();
-    subscriber.subscriptionHkey = PUSHLET_SUBSCRIPTION_PREFIX + aSession.getId();
+    subscriber.myHkey = Session.keyOf(PUSHLET_SUBSCRIBER_PREFIX, aSession.getId());
+    subscriber.subscriptionHkey = Session.keyOf(PUSHLET_SUBSCRIPTION_PREFIX, aSession.getId());
     subscriber.eventQueue = new EventQueue(aSession.getId(), Config.getIntProperty(QUEUE_SIZE));
 
-    if (subscriber.isPersistence()) {
-      subscriber.readStatus();
+    if (aStatus == null) {
+      if (subscriber.isPersistence()) {
+        subscriber.readStatus();
+      } else {
+        subscriber.saveStatus();
+      }
+    } else if (aStatus.isEmpty() == false) {
+      subscriber.mode = aStatus.get("mode");
     } else {
       subscriber.saveStatus();
     }
@@ -93,10 +134,17 @@ public class Subscriber implements Protocol, ConfigDefs {
     active = false;
 
     if (session.isTemporary()) {
-      eventQueue.clear(); //@wjw_add 在停止时要清除事件队列
-
-      redis.del(myHkey); //清除redis里的subscriber
-      removeSubscriptions(); //清除redis里的subscriptions
+      //@wjw_add 在停止时要清除redis里的session,subscriber,subscriptions和事件队列;它们带有相同的{sessionid}标签,用一个脚本一次删除
+      java.util.List<String> keys = java.util.Arrays.asList(Session.keyOf(Session.PUSHLET_SESSION_PREFIX, session.getId()),
+          myHkey, subscriptionHkey, Session.keyOf(EventQueue.PUSHLET_EVENTQUEUE_PREFIX, session.getId()),
+          Session.keyOf(EventQueue.PUSHLET_CONFLATED_PREFIX, session.getId()),
+          Session.keyOf(EventQueue.PUSHLET_THROTTLE_PREFIX, session.getId()),
+          Session.keyOf(EventQueue.PUSHLET_PRIORITY_PREFIX, session.getId()));
+      List<?> subscriptions = (List<?>) redis.eval(Session.PURGE_SCRIPT, keys,
+          java.util.Collections.<String> emptyList());
+      for (Object oneSubscription : subscriptions) {
+        removeSubjects((String) oneSubscription);
+      }
     }
   }
 
@@ -125,7 +173,15 @@ public class Subscriber implements Protocol, ConfigDefs {
    * Add a subscription.
    */
   public Subscription addSubscription(String aSubject, String aLabel) throws PushletException {
-    Subscription subscription = Subscription.create(aSubject, aLabel);
+    return addSubscription(Subscription.create(aSubject, aLabel));
+  }
+
+  /**
+   * Add a subscription created with its delivery options (conflation, rate).
+   */
+  public Subscription addSubscription(Subscription subscription) throws PushletException {
+    String aSubject = subscription.getSubject();
+    String aLabel = subscription.getLabel();
     String strSubscription = subscription.toJsonString();
     if (redis.hset(subscriptionHkey, aSubject, strSubscription) == 1) {
       //把单个的subject存到redis的Hash表里,方便match查找
@@ -133,9 +189,12 @@ public class Subscriber implements Protocol, ConfigDefs {
       for (String oneSubject : subjects) {
         redis.hset(PUSHLET_SUBJECT_PREFIX + oneSubject, session.getId(), aSubject);
         redis.zadd(PUSHLET_ZSET_SUBJECT_PREFIX + oneSubject, System.currentTimeMillis(), session.getId());
+        EventSourceManager.onSubscribe(oneSubject);
       }
 
-      info("Subscription added subject=" + aSubject + " sid=" + aSubject + " label=" + aLabel);
+      if (Log.isInfoEnabled()) {
+        info("Subscription added subject=" + aSubject + " sid=" + aSubject + " label=" + aLabel);
+      }
     }
     return subscription;
   }
@@ -168,8 +227,10 @@ public class Subscriber implements Protocol, ConfigDefs {
       warn("No subscription found sid=" + aSubscriptionId);
       return null;
     }
-    info("Subscription removed subject=" + subscription.getSubject() + " sid=" + subscription.getSubject() + " label="
-        + subscription.getLabel());
+    if (Log.isInfoEnabled()) {
+      info("Subscription removed subject=" + subscription.getSubject() + " sid=" + subscription.getSubject() + " label="
+          + subscription.getLabel());
+    }
     return subscription;
   }
 
@@ -178,23 +239,29 @@ public class Subscriber implements Protocol, ConfigDefs {
    */
   public void removeSubscriptions() {
     //@wjw_aad先删除关联的subject
-    Subscription subscription;
     java.util.List<String> subscriptions = redis.hvals(subscriptionHkey);
     for (String oneSubscription : subscriptions) {
-      try {
-        subscription = Subscription.fromJsonString(oneSubscription);
-        String[] subjects = subscription.getSubjects();
-        for (String oneSubject : subjects) {
-          redis.hdel(PUSHLET_SUBJECT_PREFIX + oneSubject, session.getId());
-          redis.zrem(PUSHLET_ZSET_SUBJECT_PREFIX + oneSubject, session.getId());
-        }
-      } catch (PushletException e) {
-      }
+      removeSubjects(oneSubscription);
     }
 
     redis.del(subscriptionHkey);
   }
 
+  /**
+   * Remove this session from the subject indexes of a subscription.
+   */
+  private void removeSubjects(String strSubscription) {
+    try {
+      Subscription subscription = Subscription.fromJsonString(strSubscription);
+      String[] subjects = subscription.getSubjects();
+      for (String oneSubject : subjects) {
+        redis.hdel(PUSHLET_SUBJECT_PREFIX + oneSubject, session.getId());
+        redis.zrem(PUSHLET_ZSET_SUBJECT_PREFIX + oneSubject, session.getId());
+      }
+    } catch (PushletException e) {
+    }
+  }
+
   public String getMode() {
     return mode;
   }
@@ -263,71 +330,206 @@ public class Subscriber implements Protocol, ConfigDefs {
     Event[] events = null;
 
     // Main loop: as long as connected, get events and push to client
-    long eventSeqNr = 1;
-    while (isActive()) {
-      // Indicate we are still alive
-      lastAlive = Sys.now();
-
-      // Update session time to live
-      session.kick();
-
-      // Get next events; blocks until timeout or entire contents
-      // of event queue is returned. Note that "poll" mode
-      // will return immediately when queue is empty.
+    pushLock.lock();
+    try {
+      eventSeqNr = 1;
+    } finally {
+      pushLock.unlock();
+    }
+    if (mode.equals(MODE_STREAM)) {
+      // Send heartbeat directly when starting to listen in stream mode
+      // This speeds up the return of *_LISTEN_ACK
       try {
-        // Put heartbeat in queue when starting to listen in stream mode
-        // This speeds up the return of *_LISTEN_ACK
-        if (mode.equals(MODE_STREAM) && eventSeqNr == 1) {
-          eventQueue.enQueue(new Event(E_HEARTBEAT));
-        }
-
-        events = eventQueue.deQueueAll(queueReadTimeoutMillis);
-      } catch (InterruptedException ie) {
-        warn("interrupted");
+        push(clientAdapter, new Event(E_HEARTBEAT));
+      } catch (Throwable t) {
         session.stop();
+        return;
       }
 
-      // Send heartbeat when no events received
-      if (events == null) {
-        events = new Event[1];
-        events[0] = new Event(E_HEARTBEAT);
-      }
+      //@wjw_node 之后的心跳由HeartbeatWheel在连接空闲时直接写给clientAdapter,不再经过redis队列
+      startHeartbeats(clientAdapter);
+    }
+
+    try {
+      while (isActive()) {
+        // Indicate we are still alive
+        lastAlive = Sys.now();
 
-      // ASSERT: one or more events available
+        // Update session time to live
+        session.kick();
 
-      // Send events to client using adapter
-      // debug("received event count=" + events.length);
-      for (int i = 0; i < events.length; i++) {
-        // Check for abort event
-        if (events[i].getEventType().equals(E_ABORT)) {
-          warn("Aborting Subscriber");
+        // Get next events; blocks until timeout or entire contents
+        // of event queue is returned. Note that "poll" mode
+        // will return immediately when queue is empty.
+        try {
+          events = eventQueue.deQueueAll(queueReadTimeoutMillis);
+        } catch (InterruptedException ie) {
+          warn("interrupted");
           session.stop();
         }
 
-        // Push next Event to client
-        try {
-          // Set sequence number
-          events[i].setField(P_SEQ, eventSeqNr++);
+        // Send heartbeat when no events received; in stream mode
+        // the HeartbeatWheel takes care of idle connections
+        if (events == null) {
+          if (mode.equals(MODE_STREAM)) {
+            continue;
+          }
+          events = new Event[1];
+          events[0] = new Event(E_HEARTBEAT);
+        }
 
-          // Push to client through client adapter
-          clientAdapter.push(events[i]);
-        } catch (Throwable t) {
-          session.stop();
-          return;
+        // ASSERT: one or more events available
+
+        // Send events to client using adapter
+        // debug("received event count=" + events.length);
+        for (int i = 0; i < events.length; i++) {
+          // Check for abort event
+          if (events[i].getEventType().equals(E_ABORT)) {
+            warn("Aborting Subscriber");
+            session.stop();
+          }
+
+          // Push next Event to client
+          try {
+            push(clientAdapter, events[i]);
+          } catch (Throwable t) {
+            session.stop();
+            return;
+          }
+        }
+
+        // Force client refresh request in pull or poll modes
+        //@wjw_note 当不是MODE_STREAM模式时,跳出:while (isActive()) {循环
+        if (mode.equals(MODE_PULL) || mode.equals(MODE_POLL)) {
+          sendRefresh(clientAdapter, refreshURL); //@wjw_node 在此方法内部会调用aClientAdapter.stop();来停止输出
+
+          // Always leave loop in pull/poll mode
+          break;
         }
       }
+    } finally {
+      pushLock.lock();
+      try {
+        streamAdapter = null;
+      } finally {
+        pushLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Push one event to the client with the next sequence number. Serialized
+   * with the heartbeats of the HeartbeatWheel.
+   */
+  private void push(ClientAdapter aClientAdapter, Event anEvent) throws java.io.IOException {
+    pushLock.lock();
+    try {
+      // Set sequence number
+      anEvent.setField(P_SEQ, eventSeqNr++);
+      EventTrace.write(anEvent);
+
+      // Push to client through client adapter
+      aClientAdapter.push(anEvent);
+      lastPush = Sys.now();
+    } finally {
+      pushLock.unlock();
+    }
+  }
+
+  /**
+   * Let the HeartbeatWheel watch the stream, unless it still does from a
+   * previous stream of this subscriber.
+   */
+  private void startHeartbeats(ClientAdapter aClientAdapter) {
+    long interval;
+    pushLock.lock();
+    try {
+      streamAdapter = aClientAdapter;
+      //@wjw_node 每次开始stream时取一次,不在每个tick里查配置
+      heartbeatIntervalMillis = getHeartbeatIntervalMillis();
+      interval = heartbeatIntervalMillis;
+      if (heartbeatScheduled) {
+        return;
+      }
+      heartbeatScheduled = true;
+    } finally {
+      pushLock.unlock();
+    }
+    HeartbeatWheel.getInstance().schedule(this, interval);
+  }
+
+  /**
+   * Called by the HeartbeatWheel: have a heartbeat sent if the stream has
+   * been idle for the heartbeat interval. Never waits: a busy subscriber is
+   * pushing anyway, and the heartbeat is written by the wheel's writers.
+   * 
+   * @return ms until the next check, -1 when the stream has ended
+   */
+  long onHeartbeatTimer() {
+    if (!pushLock.tryLock()) {
+      return heartbeatIntervalMillis;
+    }
+    try {
+      if (streamAdapter == null || !isActive()) {
+        heartbeatScheduled = false;
+        return -1;
+      }
+
+      long idle = Sys.now() - lastPush;
+      if (idle < heartbeatIntervalMillis) {
+        return heartbeatIntervalMillis - idle;
+      }
 
-      // Force client refresh request in pull or poll modes
-      //@wjw_note 当不是MODE_STREAM模式时,跳出:while (isActive()) {循环
-      if (mode.equals(MODE_PULL) || mode.equals(MODE_POLL)) {
-        sendRefresh(clientAdapter, refreshURL); //@wjw_node 在此方法内部会调用aClientAdapter.stop();来停止输出
+      final ClientAdapter adapter = streamAdapter;
+      HeartbeatWheel.getInstance().write(new Runnable() {
+        public void run() {
+          sendHeartbeat(adapter);
+        }
+      });
+      return heartbeatIntervalMillis;
+    } finally {
+      pushLock.unlock();
+    }
+  }
 
-        // Always leave loop in pull/poll mode
-        break;
+  /**
+   * Write a heartbeat to the stream, unless it ended or a push is going on.
+   */
+  private void sendHeartbeat(ClientAdapter aClientAdapter) {
+    if (!pushLock.tryLock()) {
+      return;
+    }
+    boolean failed = false;
+    try {
+      if (streamAdapter != aClientAdapter) {
+        return;
       }
+      push(aClientAdapter, new Event(E_HEARTBEAT));
+    } catch (Throwable t) {
+      //@wjw_node 下一次onHeartbeatTimer()看到streamAdapter为null时结束调度
+      streamAdapter = null;
+      failed = true;
+    } finally {
+      pushLock.unlock();
+    }
+
+    if (failed) {
+      session.stop();
     }
   }
 
+  /**
+   * Heartbeat interval for the client type (event format), default
+   * "heartbeat.interval.millis".
+   */
+  protected long getHeartbeatIntervalMillis() {
+    String interval = Config.getProperty(HEARTBEAT_INTERVAL_MILLIS + "." + session.getFormat(), null);
+    if (interval == null) {
+      interval = Config.getProperty(HEARTBEAT_INTERVAL_MILLIS, "" + queueReadTimeoutMillis);
+    }
+    return Long.parseLong(interval);
+  }
+
   /**
    * Determine if we should receive event.
    */
@@ -351,18 +553,123 @@ public class Subscriber implements Protocol, ConfigDefs {
     }
   }
 
+  /**
+   * Subscriber classes that override {@link #match(Event)}.
+   */
+  private static final ConcurrentMap<Class<?>, Boolean> matchOverridden = new ConcurrentHashMap<Class<?>, Boolean>();
+
+  /**
+   * Like {@link #match(Event)}, for the multicast that already fetched the
+   * subscription (its json) with a page of subscribers of the event subject.
+   * A subclass overriding match(Event) is asked through it, at the cost of its
+   * own redis reads; override this method too to avoid that.
+   */
+  protected Subscription match(Event event, String aSubscription) {
+    Boolean overridden = matchOverridden.get(getClass());
+    if (overridden == null) {
+      try {
+        overridden = getClass().getMethod("match", Event.class).getDeclaringClass() != Subscriber.class;
+      } catch (NoSuchMethodException e) {
+        overridden = Boolean.FALSE;
+      }
+      matchOverridden.put(getClass(), overridden);
+    }
+    if (overridden.booleanValue()) {
+      return match(event);
+    }
+
+    try {
+      return Subscription.fromJsonString(aSubscription);
+    } catch (PushletException e) {
+      return null;
+    }
+  }
+
   /**
    * Event from Dispatcher: enqueue it.
    */
   public void onEvent(Event theEvent) {
-    if (!isActive()) {
+    onEvent(theEvent, null);
+  }
+
+  /**
+   * Event from Dispatcher for a subscription: enqueue it, conflated with a
+   * queued event if the subscription asks for it.
+   */
+  public void onEvent(Event theEvent, Subscription aSubscription) {
+    if (!accept(theEvent)) {
+      return;
+    }
+
+    // Put event in queue; leave if queue full and the overflow policy is to disconnect
+    try {
+      onEventsQueued(eventQueue.enQueueAllAsync(Collections.singletonList(theEvent), aSubscription), 1);
+    } catch (InterruptedException ie) {
+      session.stop();
+    }
+  }
+
+  /**
+   * Like {@link #onEvent(Event)} for a batch of events, queued in one write,
+   * and without waiting for redis, so a fan-out can keep many pushes in
+   * flight. Events that are not accepted are removed from the list. Pass the
+   * result to {@link #onEventsQueued(Future, List, Subscription)} once all
+   * pushes are issued.
+   * 
+   * @return the pending push, null if no event is accepted
+   */
+  Future<Object> onEventsAsync(List<Event> theEvents, Subscription aSubscription) {
+    for (Iterator<Event> iter = theEvents.iterator(); iter.hasNext();) {
+      if (!accept(iter.next())) {
+        iter.remove();
+      }
+    }
+    if (theEvents.isEmpty()) {
+      return null;
+    }
+    return eventQueue.enQueueAllAsync(theEvents, aSubscription);
+  }
+
+  /**
+   * Completes an {@link #onEventsAsync(List, Subscription)}. Never waits for
+   * room: events that did not fit in the queue mean the overflow policy is to
+   * disconnect.
+   */
+  void onEventsQueued(Future<Object> queued, List<Event> theEvents, Subscription aSubscription) {
+    if (queued == null) {
       return;
     }
+    try {
+      onEventsQueued(queued, theEvents.size());
+    } catch (InterruptedException ie) {
+      session.stop();
+    }
+  }
+
+  private void onEventsQueued(Future<Object> queued, int count) throws InterruptedException {
+    if (EventQueue.queuedCount(queued) < count) {
+      warn("queue full, bailing out...");
+      EventQueue.disconnected.increment();
+      session.stop();
+    }
+
+    // ASSERTION : Event in queue.
+    // see fetchEvents() where Events are dequeued and pushed to the client.
+  }
+
+  /**
+   * Should the event be queued at all; stops the session of a client that is
+   * gone.
+   */
+  private boolean accept(Event theEvent) {
+    if (!isActive()) {
+      return false;
+    }
 
     //@wjw_add 如果会话不存在,而消息是发给在线用户的,就直接返回
     if (session.isExpired()
         && (theEvent.getField(E_PUBLISH_TO_ONLINE) != null && theEvent.getField(E_PUBLISH_TO_ONLINE).equals("true"))) {
-      return;
+      return false;
     }
 
     // p("send: queue event: "+theEvent.getSubject());
@@ -374,22 +681,9 @@ public class Subscriber implements Protocol, ConfigDefs {
     if (now - lastAlive > refreshTimeoutMillis) {
       warn("not alive for at least: " + refreshTimeoutMillis + "ms, leaving...");
       session.stop();
-      return;
-    }
-
-    // Put event in queue; leave if queue full
-    try {
-      if (!eventQueue.enQueue(theEvent, queueWriteTimeoutMillis)) {
-        warn("queue full, bailing out...");
-        session.stop();
-      }
-
-      // ASSERTION : Event in queue.
-      // see fetchEvents() where Events are dequeued and pushed to the client.
-    } catch (InterruptedException ie) {
-      session.stop();
+      return false;
     }
-
+    return true;
   }
 
   /**
@@ -418,7 +712,9 @@ public class Subscriber implements Protocol, ConfigDefs {
    * Info.
    */
   protected void info(String s) {
-    session.info("[Subscriber] " + s);
+    if (Log.isInfoEnabled()) {
+      session.info("[Subscriber] " + s);
+    }
   }
 
   /**
@@ -432,7 +728,9 @@ public class Subscriber implements Protocol, ConfigDefs {
    * Exceptional print util.
    */
   protected void debug(String s) {
-    session.debug("[Subscriber] " + s);
+    if (Log.isDebugEnabled()) {
+      session.debug("[Subscriber] " + s);
+    }
   }
 
   public String toString() {
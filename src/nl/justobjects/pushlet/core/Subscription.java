@@ -3,13 +3,13 @@
 
 package nl.justobjects.pushlet.core;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.justobjects.pushlet.redis.JsonCodec;
 import nl.justobjects.pushlet.redis.RedisManager;
 import nl.justobjects.pushlet.util.PushletException;
 
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.node.JsonNodeFactory;
-import org.codehaus.jackson.node.ObjectNode;
-
 /**
  * Represents single subject subscription
  * 
@@ -31,6 +31,25 @@ public class Subscription implements ConfigDefs {
    */
   private String label;
 
+  /**
+   * Optional event field whose value identifies events that replace each
+   * other in the queue (latest value per key).
+   */
+  private String conflate;
+
+  /**
+   * Optional delivery limits: max events per second and min interval in ms,
+   * 0 for no limit.
+   */
+  private double rate;
+  private long interval;
+
+  /**
+   * Optional filter expression on the event fields and its compiled form.
+   */
+  private String filterExpression;
+  private EventFilter filter;
+
   /**
    * Protected constructor as we create through factory method.
    */
@@ -62,13 +81,30 @@ public class Subscription implements ConfigDefs {
    *           exception, usually misconfiguration
    */
   public static Subscription create(String aSubject, String aLabel) throws PushletException {
+    return create(aSubject, aLabel, null);
+  }
+
+  /**
+   * Create instance through factory method.
+   * 
+   * @param aSubject
+   *          the subject (topic).
+   * @param aLabel
+   *          the subject label (optional).
+   * @param aConflate
+   *          the event field to conflate queued events on (optional).
+   * @return a Subscription object (or derived)
+   * @throws nl.justobjects.pushlet.util.PushletException
+   *           exception, usually misconfiguration
+   */
+  public static Subscription create(String aSubject, String aLabel, String aConflate) throws PushletException {
     if (aSubject == null || aSubject.length() == 0) {
       throw new IllegalArgumentException("Null or emtpy subject");
     }
 
     Subscription subscription;
     try {
-      subscription = (Subscription) Config.getClass(SUBSCRIPTION_CLASS, "nl.justobjects.pushlet.core.Subscription").newInstance();
+      subscription = (Subscription) Config.createObject(SUBSCRIPTION_CLASS, "nl.justobjects.pushlet.core.Subscription");
     } catch (Throwable t) {
       throw new PushletException("Cannot instantiate Subscriber from config", t);
     }
@@ -81,6 +117,7 @@ public class Subscription implements ConfigDefs {
     subscription.subjects = aSubject.split(SUBJECT_SEPARATOR);
 
     subscription.label = aLabel;
+    subscription.conflate = aConflate;
     return subscription;
   }
 
@@ -88,6 +125,79 @@ public class Subscription implements ConfigDefs {
     return label;
   }
 
+  public String getConflate() {
+    return conflate;
+  }
+
+  public double getRate() {
+    return rate;
+  }
+
+  public void setRate(double aRate) {
+    rate = aRate;
+  }
+
+  public long getInterval() {
+    return interval;
+  }
+
+  public void setInterval(long anInterval) {
+    interval = anInterval;
+  }
+
+  public String getFilter() {
+    return filterExpression;
+  }
+
+  /**
+   * Only deliver events matching the expression, null for all.
+   * 
+   * @throws PushletException
+   *           if the expression is invalid
+   */
+  public void setFilter(String anExpression) throws PushletException {
+    filter = anExpression == null ? null : EventFilter.compile(anExpression);
+    filterExpression = anExpression;
+  }
+
+  /**
+   * Does the event pass the subscription's filter.
+   */
+  public boolean matches(Event event) {
+    return filter == null || filter.matches(event);
+  }
+
+  /**
+   * Is delivery rate limited at all.
+   */
+  public boolean isThrottled() {
+    return rate > 0 || interval > 0;
+  }
+
+  /**
+   * Token bucket refill in events per ms, the stricter of rate and interval.
+   */
+  public double getTokensPerMillis() {
+    double tokensPerMillis = Double.MAX_VALUE;
+    if (rate > 0) {
+      tokensPerMillis = rate / 1000;
+    }
+    if (interval > 0) {
+      tokensPerMillis = Math.min(tokensPerMillis, 1.0 / interval);
+    }
+    return tokensPerMillis;
+  }
+
+  /**
+   * Token bucket size: one second of the rate, a single event with an interval.
+   */
+  public double getBurst() {
+    if (interval > 0 || rate < 1) {
+      return 1;
+    }
+    return rate;
+  }
+
   public String getSubject() {
     return subject;
   }
@@ -97,15 +207,40 @@ public class Subscription implements ConfigDefs {
   }
 
   public String toJsonString() {
-    ObjectNode node = new ObjectNode(JsonNodeFactory.instance);
-    node.put("subject", subject);
-    node.put("label", label);
+    Map<String, String> fields = new HashMap<String, String>(6);
+    fields.put("subject", subject);
+    fields.put("label", label);
+    if (conflate != null) {
+      fields.put("conflate", conflate);
+    }
+    if (rate > 0) {
+      fields.put("rate", String.valueOf(rate));
+    }
+    if (interval > 0) {
+      fields.put("interval", String.valueOf(interval));
+    }
+    if (filterExpression != null) {
+      fields.put("filter", filterExpression);
+    }
 
-    return node.toString();
+    return JsonCodec.toJson(fields);
   }
 
   public static Subscription fromJsonString(String content) throws PushletException {
-    JsonNode node = redis.readTree(content);
-    return create(node.get("subject").getTextValue(), node.get("label").getTextValue());
+    Map<String, String> fields;
+    try {
+      fields = JsonCodec.fromJson(content);
+    } catch (RuntimeException e) {
+      throw new PushletException("Invalid subscription: " + content, e);
+    }
+    Subscription subscription = create(fields.get("subject"), fields.get("label"), fields.get("conflate"));
+    if (fields.get("rate") != null) {
+      subscription.rate = Double.parseDouble(fields.get("rate"));
+    }
+    if (fields.get("interval") != null) {
+      subscription.interval = Long.parseLong(fields.get("interval"));
+    }
+    subscription.setFilter(fields.get("filter"));
+    return subscription;
   }
 }
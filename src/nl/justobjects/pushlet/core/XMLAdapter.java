@@ -8,7 +8,10 @@ import java.io.PrintWriter;
 
 import javax.servlet.http.HttpServletResponse;
 
+import nl.justobjects.pushlet.util.Counter;
 import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
+import nl.justobjects.pushlet.util.Probe;
 
 /**
  * ClientAdapter that sends Events as XML.
@@ -17,6 +20,8 @@ import nl.justobjects.pushlet.util.Log;
  * @version $Id: XMLAdapter.java,v 1.7 2007/11/09 13:15:35 justb Exp $
  */
 class XMLAdapter implements ClientAdapter {
+  private static final Counter charsSent = Metrics.counter("adapter_chars", "adapter", "xml");
+  private static final Counter flushes = Metrics.counter("adapter_flushes", "adapter", "xml");
   /**
    * Header for strict XML
    */
@@ -72,14 +77,19 @@ class XMLAdapter implements ClientAdapter {
    * Force client to refresh the request.
    */
   public void push(Event anEvent) throws IOException {
-    debug("event=" + anEvent);
+    Log.debug("[XMLAdapter]event={}", anEvent);
 
     // Send the event as XML to the client and flush.
-    out.print(anEvent.toXML(strictXML));
-    
+    Object span = Probe.getInstance().begin(Probe.FLUSH);
+    String xml = anEvent.toXML(strictXML);
+    out.print(xml);
+    charsSent.add(xml.length());
+    flushes.increment();
+
     if (out.checkError()) {  //@wjw_add 把out.flush();改成 out.checkError(),才能判断客户端是否断掉
       throw new IOException("client is broke:" + out);
     }
+    Probe.getInstance().end(span, anEvent.getSubject(), 1, xml.length());
   }
 
   /**
@@ -90,12 +100,9 @@ class XMLAdapter implements ClientAdapter {
     if (strictXML) {
       out.print("</pushlet>");
       out.flush();
+      flushes.increment();
     }
   }
-
-  private void debug(String s) {
-    Log.debug("[XMLAdapter]" + s);
-  }
 }
 
 /*
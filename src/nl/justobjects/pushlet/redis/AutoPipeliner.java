@@ -0,0 +1,97 @@
+package nl.justobjects.pushlet.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import nl.justobjects.pushlet.util.Histogram;
+import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
+
+import internal.redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Collects the commands submitted by any thread and writes them out in
+ * pipelines. While one batch is on the wire the next one accumulates, so
+ * under load every round-trip carries many commands, and when idle a single
+ * command goes out at once (no timer, no added latency).
+ */
+class AutoPipeliner implements Runnable {
+  private final JedisRedisManager manager;
+  private final int maxBatch;
+  private final BlockingQueue<Entry<?>> queue = new LinkedBlockingQueue<Entry<?>>();
+
+  private final Histogram batchSizes = Metrics.histogram("redis_pipeline_batch");
+
+  private static class Entry<T> {
+    final String name;
+    final JedisRedisManager.PipelinedOp<T> op;
+    final RedisFuture<T> future = new RedisFuture<T>();
+
+    Entry(String name, JedisRedisManager.PipelinedOp<T> op) {
+      this.name = name;
+      this.op = op;
+    }
+
+    void complete(JedisException batchFailure) {
+      try {
+        future.complete(op.get());
+        RedisManager.commandTimer(name).record(future.getLatencyNanos());
+      } catch (JedisException e) {
+        future.fail(batchFailure != null ? batchFailure : e);
+        RedisManager.commandErrors(name).increment();
+      }
+    }
+  }
+
+  AutoPipeliner(JedisRedisManager manager, int maxBatch) {
+    this.manager = manager;
+    this.maxBatch = maxBatch;
+  }
+
+  /**
+   * @param name
+   *          command name for the metrics, e.g. "eval_async"
+   */
+  <T> RedisFuture<T> submit(String name, JedisRedisManager.PipelinedOp<T> op) {
+    Entry<T> entry = new Entry<T>(name, op);
+    queue.add(entry);
+    return entry.future;
+  }
+
+  public void run() {
+    List<Entry<?>> batch = new ArrayList<Entry<?>>(maxBatch);
+    List<JedisRedisManager.PipelinedOp<?>> ops = new ArrayList<JedisRedisManager.PipelinedOp<?>>(maxBatch);
+    while (true) {
+      try {
+        batch.add(queue.take());
+        queue.drainTo(batch, maxBatch - 1);
+        batchSizes.record(batch.size());
+        for (Entry<?> entry : batch) {
+          ops.add(entry.op);
+        }
+
+        JedisException batchFailure = null;
+        try {
+          manager.pipelined(ops);
+        } catch (JedisException e) {
+          batchFailure = e;
+        }
+        for (Entry<?> entry : batch) {
+          entry.complete(batchFailure);
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (Throwable t) {
+        Log.warn("AutoPipeliner: error in batch", t);
+        for (Entry<?> entry : batch) {
+          entry.future.fail(t);
+        }
+      } finally {
+        batch.clear();
+        ops.clear();
+      }
+    }
+  }
+}
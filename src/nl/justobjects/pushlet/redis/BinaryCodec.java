@@ -0,0 +1,113 @@
+package nl.justobjects.pushlet.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.justobjects.pushlet.core.Protocol;
+
+/**
+ * Compact binary encoding: a type byte, the field count, then per field its
+ * name (one byte when it is in the dictionary of well-known field names) and
+ * its UTF-8 value, lengths as varints.
+ *
+ * The dictionary is part of the stored format: only ever append to it.
+ */
+public class BinaryCodec extends RedisCodec {
+  private static final String[] DICTIONARY = { null, Protocol.P_EVENT, Protocol.P_TIME, Protocol.P_SEQ,
+      Protocol.P_SUBJECT, Protocol.P_FROM, Protocol.P_TO, Protocol.P_ID, Protocol.P_SUBSCRIPTION_ID, Protocol.P_FORMAT,
+      Protocol.P_MODE, Protocol.P_REASON, Protocol.P_URL, Protocol.P_WAIT, Protocol.P_SUBSCRIPTION_LABEL };
+  private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<String, Integer>();
+
+  static {
+    for (int i = 1; i < DICTIONARY.length; i++) {
+      DICTIONARY_INDEX.put(DICTIONARY[i], i);
+    }
+  }
+
+  protected byte[] encodeFields(Map<String, String> fields) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(fields.size() * 16 + 4);
+      out.write(TYPE_BINARY);
+      int count = 0;
+      for (String value : fields.values()) {
+        if (value != null) {
+          count++;
+        }
+      }
+      writeVarint(out, count);
+      for (Map.Entry<String, String> field : fields.entrySet()) {
+        if (field.getValue() == null) {
+          continue;
+        }
+        Integer index = DICTIONARY_INDEX.get(field.getKey());
+        if (index != null) {
+          writeVarint(out, index);
+        } else {
+          out.write(0);
+          writeBytes(out, field.getKey().getBytes(RedisManager.REDIS_CHARSET));
+        }
+        writeBytes(out, field.getValue().getBytes(RedisManager.REDIS_CHARSET));
+      }
+      return out.toByteArray();
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static Map<String, String> decodeFields(byte[] data) {
+    try {
+      int[] pos = { 1 };
+      int count = readVarint(data, pos);
+      Map<String, String> fields = new HashMap<String, String>(count * 2);
+      for (int i = 0; i < count; i++) {
+        int index = readVarint(data, pos);
+        String name;
+        if (index == 0) {
+          name = readString(data, pos);
+        } else if (index < DICTIONARY.length) {
+          name = DICTIONARY[index];
+        } else {
+          throw new IllegalArgumentException("Unknown field index " + index);
+        }
+        fields.put(name, readString(data, pos));
+      }
+      return fields;
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static String readString(byte[] data, int[] pos) throws UnsupportedEncodingException {
+    int length = readVarint(data, pos);
+    String s = new String(data, pos[0], length, RedisManager.REDIS_CHARSET);
+    pos[0] += length;
+    return s;
+  }
+
+  private static int readVarint(byte[] data, int[] pos) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = data[pos[0]++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+}
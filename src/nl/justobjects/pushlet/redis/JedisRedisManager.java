@@ -0,0 +1,1011 @@
+package nl.justobjects.pushlet.redis;
+
+import internal.org.apache.commons.pool.impl.GenericObjectPool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import nl.justobjects.pushlet.core.Config;
+import nl.justobjects.pushlet.core.ConfigDefs;
+import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
+
+import internal.redis.clients.jedis.Jedis;
+import internal.redis.clients.jedis.JedisPool;
+import internal.redis.clients.jedis.JedisPoolConfig;
+import internal.redis.clients.jedis.JedisShardInfo;
+import internal.redis.clients.jedis.Pipeline;
+import internal.redis.clients.jedis.Response;
+import internal.redis.clients.jedis.ShardedJedis;
+import internal.redis.clients.jedis.ShardedJedisPool;
+import internal.redis.clients.jedis.exceptions.JedisConnectionException;
+import internal.redis.clients.jedis.exceptions.JedisDataException;
+import internal.redis.clients.jedis.exceptions.JedisException;
+import internal.redis.clients.util.Pool;
+import internal.redis.clients.util.SafeEncoder;
+import internal.redis.clients.util.Sharded;
+
+/**
+ * RedisManager on a real redis server through the bundled Jedis: a single
+ * server (JedisPool), several servers sharded on the client by the "{...}"
+ * hash tag of the keys (ShardedJedisPool) or a Redis Cluster.
+ */
+public class JedisRedisManager extends RedisManager {
+  static ShardedJedisPool _shardedPool = null;
+  static JedisPool _pool = null;
+  static RedisCluster _cluster = null;
+  static ExecutorService _shardExecutor = null; //@wjw_node 在ShardedJedisPool和Cluster模式下,并行执行各个节点上的pipeline
+  static AutoPipeliner _autoPipeliner = null; //@wjw_node 异步命令的自动pipeline
+
+  static private boolean debug = false; //是否打开调试模式
+  static protected String serverlist = "127.0.0.1:6379"; //用逗号(,)分隔的"ip:port"列表
+  static protected boolean cluster = false; //serverlist是否是Redis Cluster的种子节点
+  static protected int minConn = 5;
+  static protected int maxConn = 100;
+  static protected int socketTO = 6000;
+  static protected int pipelineBatch = 512; //自动pipeline每批最多的命令数
+
+  static {
+    try {
+      debug = Config.getBoolProperty(ConfigDefs.REDIS_DEBUG);
+      serverlist = Config.getProperty(ConfigDefs.REDIS_SERVERLIST);
+      cluster = Config.getProperty(ConfigDefs.REDIS_CLUSTER, "false").equals("true");
+      minConn = Config.getIntProperty(ConfigDefs.REDIS_MINCONN);
+      maxConn = Config.getIntProperty(ConfigDefs.REDIS_MAXCONN);
+      socketTO = Config.getIntProperty(ConfigDefs.REDIS_SOCKETTO);
+      pipelineBatch = Config.getIntProperty(ConfigDefs.REDIS_PIPELINE_BATCH, 512);
+
+      JedisPoolConfig poolConfig = new JedisPoolConfig();
+      poolConfig.setMaxActive(maxConn);
+      poolConfig.setMinIdle(minConn);
+      int maxIdle = poolConfig.minIdle + 5;
+      if (maxIdle > poolConfig.maxActive) {
+        maxIdle = poolConfig.maxActive;
+      }
+      poolConfig.setMaxIdle(maxIdle);
+      poolConfig.setMaxWait(1000L);
+      poolConfig.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+      poolConfig.setTestOnBorrow(false);
+      poolConfig.setTestOnReturn(false);
+      poolConfig.setTestWhileIdle(true);
+      poolConfig.setMinEvictableIdleTimeMillis(1000L * 60L * 10L); //空闲对象,空闲多长时间会被驱逐出池里
+      poolConfig.setTimeBetweenEvictionRunsMillis(1000L * 30L); //驱逐线程30秒执行一次
+      poolConfig.setNumTestsPerEvictionRun(-1); //-1,表示在驱逐线程执行时,测试所有的空闲对象
+
+      String[] servers = serverlist.split(",");
+      java.util.List<JedisShardInfo> shards = new java.util.ArrayList<JedisShardInfo>(servers.length);
+      for (int i = 0; i < servers.length; i++) {
+        String[] hostAndPort = servers[i].split(":");
+        JedisShardInfo shardInfo = new JedisShardInfo(hostAndPort[0], Integer.parseInt(hostAndPort[1]), socketTO);
+        if (hostAndPort.length == 3) {
+          shardInfo.setPassword(hostAndPort[2]);
+        }
+        shards.add(shardInfo);
+      }
+
+      if (cluster) {
+        _cluster = new RedisCluster(poolConfig, shards);
+        Log.info("使用:RedisCluster");
+      } else if (shards.size() == 1) {
+        _pool = new JedisPool(poolConfig, shards.get(0).getHost(), shards.get(0).getPort(), shards.get(0).getTimeout(), shards.get(0).getPassword());
+        registerPoolGauges(shards.get(0).getHost() + ":" + shards.get(0).getPort(), _pool);
+        Log.info("使用:JedisPool");
+      } else {
+        //@wjw_node 按key里的"{...}"标签来分片,使同一个session的所有key落在同一个分片上
+        _shardedPool = new ShardedJedisPool(poolConfig, shards, Sharded.DEFAULT_KEY_TAG_PATTERN);
+        registerPoolGauges("sharded", _shardedPool);
+        Log.info("使用:ShardedJedisPool");
+      }
+
+      if (_pool == null) {
+        _shardExecutor = Executors.newFixedThreadPool(Math.max(shards.size(), 2), new ThreadFactory() {
+          private int threadNum = 0;
+
+          public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "RedisShard-" + (++threadNum));
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+
+      Log.info("RedisShards:" + shards.toString());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      Log.fatal("Cannot connect JedisRedisManager from config", t);
+    }
+  }
+
+  public JedisRedisManager() {
+    //@wjw_node 自动pipeline要回调pipelined(),所以在实例上创建
+    _autoPipeliner = new AutoPipeliner(this, pipelineBatch);
+    Thread pipelineThread = new Thread(_autoPipeliner, "RedisAutoPipeline");
+    pipelineThread.setDaemon(true);
+    pipelineThread.start();
+  }
+
+  /**
+   * Connections in use, idle and allowed of a pool, as gauges
+   * "redis_pool_active", "redis_pool_idle" and "redis_pool_max" labeled with
+   * the node. The counts are read from the pool only when collected.
+   */
+  static void registerPoolGauges(String node, Pool<?> pool) {
+    final GenericObjectPool internalPool;
+    try {
+      //@wjw_node Jedis 2.1的Pool没有公开内部的GenericObjectPool
+      java.lang.reflect.Field field = Pool.class.getDeclaredField("internalPool");
+      field.setAccessible(true);
+      internalPool = (GenericObjectPool) field.get(pool);
+    } catch (Exception e) {
+      Log.warn("JedisRedisManager: no pool metrics for " + node + ": " + e);
+      return;
+    }
+
+    Metrics.gauge("redis_pool_active", "node", node, new Metrics.Gauge() {
+      public long getValue() {
+        return internalPool.getNumActive();
+      }
+    });
+    Metrics.gauge("redis_pool_idle", "node", node, new Metrics.Gauge() {
+      public long getValue() {
+        return internalPool.getNumIdle();
+      }
+    });
+    Metrics.gauge("redis_pool_max", "node", node, new Metrics.Gauge() {
+      public long getValue() {
+        return internalPool.getMaxActive();
+      }
+    });
+  }
+
+  @Override
+  public String toString() {
+    return "JedisRedisManager{" + "debug=" + debug + ",serverlist=" + serverlist + ",cluster=" + cluster + ",minConn="
+        + minConn + ",maxConn=" + maxConn + ",socketTO=" + socketTO + ",pipelineBatch=" + pipelineBatch + '}';
+  }
+
+  //TODO@执行模板
+  /**
+   * Run the callback on the node that owns the key: the single pool, the
+   * shard chosen by the key's hash tag, or the cluster node serving its slot
+   * (following MOVED/ASK). The connection is always given back, and dropped
+   * from the pool when it broke.
+   */
+  protected <T> T execute(String key, RedisCallback<T> callback) {
+    if (_cluster != null) {
+      return _cluster.execute(key, callback);
+    }
+
+    if (_pool != null) {
+      return execute(_pool, callback);
+    } else {
+      ShardedJedis jedis = null;
+      try {
+        jedis = _shardedPool.getResource();
+        return callback.call(jedis.getShard(key));
+      } finally {
+        if (jedis != null) {
+          try {
+            _shardedPool.returnResource(jedis);
+          } catch (Throwable thex) {
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * {@link #execute(String, RedisCallback)}, timed as command op.
+   */
+  protected <T> T execute(String op, String key, RedisCallback<T> callback) {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      T result = execute(key, callback);
+      failed = false;
+      return result;
+    } finally {
+      recordCommand(op, start, failed);
+    }
+  }
+
+  private static <T> T execute(JedisPool pool, RedisCallback<T> callback) {
+    Jedis jedis = null;
+    boolean broken = false;
+    try {
+      jedis = pool.getResource();
+      return callback.call(jedis);
+    } catch (JedisConnectionException e) {
+      broken = true;
+      throw e;
+    } finally {
+      if (jedis != null) {
+        try {
+          if (broken) {
+            pool.returnBrokenResource(jedis);
+          } else {
+            pool.returnResource(jedis);
+          }
+        } catch (Throwable thex) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Run the callback once on every node (every shard, every known cluster
+   * node) and collect the results in node order.
+   */
+  protected <T> List<T> executeOnAllNodes(RedisCallback<T> callback) {
+    List<T> result = new ArrayList<T>();
+    if (_cluster != null) {
+      for (JedisPool pool : _cluster.getNodePools()) {
+        result.add(execute(pool, callback));
+      }
+    } else if (_pool != null) {
+      result.add(execute(_pool, callback));
+    } else {
+      ShardedJedis jedis = null;
+      try {
+        jedis = _shardedPool.getResource();
+        for (Jedis jedisA : jedis.getAllShards()) {
+          result.add(callback.call(jedisA));
+        }
+      } finally {
+        if (jedis != null) {
+          try {
+            _shardedPool.returnResource(jedis);
+          } catch (Throwable thex) {
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  public Object evalRaw(final RedisScript script, final List<String> keys, final List<byte[]> args) {
+    return execute("eval", keys.get(0), new RedisCallback<Object>() {
+      public Object call(Jedis jedis) {
+        return script.evalRaw(jedis, keys, args);
+      }
+    });
+  }
+
+  /**
+   * Number of nodes a keyspace walk has to visit.
+   */
+  protected int getNodeCount() {
+    if (_cluster != null) {
+      return _cluster.getNodePools().size();
+    } else if (_pool != null) {
+      return 1;
+    } else {
+      ShardedJedis jedis = null;
+      try {
+        jedis = _shardedPool.getResource();
+        return jedis.getAllShards().size();
+      } finally {
+        if (jedis != null) {
+          try {
+            _shardedPool.returnResource(jedis);
+          } catch (Throwable thex) {
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Run the callback on the node with the given index, nodes in the same order
+   * as {@link #executeOnAllNodes(RedisCallback)}.
+   */
+  protected <T> T executeOnNode(int index, RedisCallback<T> callback) {
+    if (_cluster != null) {
+      return execute(_cluster.getNodePools().get(index), callback);
+    } else if (_pool != null) {
+      return execute(_pool, callback);
+    } else {
+      ShardedJedis jedis = null;
+      try {
+        jedis = _shardedPool.getResource();
+        return callback.call(new ArrayList<Jedis>(jedis.getAllShards()).get(index));
+      } finally {
+        if (jedis != null) {
+          try {
+            _shardedPool.returnResource(jedis);
+          } catch (Throwable thex) {
+          }
+        }
+      }
+    }
+  }
+
+  public Object eval(final RedisScript script, final List<String> keys, final List<String> args) {
+    return execute("eval", keys.get(0), new RedisCallback<Object>() {
+      public Object call(Jedis jedis) {
+        return script.eval(jedis, keys, args);
+      }
+    });
+  }
+
+  //TODO@redis的基本操作
+  public java.util.Set<String> keys(String pattern) {
+    java.util.Set<String> result = new java.util.HashSet<String>();
+    String cursor = ScanResult.SCAN_POINTER_START;
+    do {
+      ScanResult<String> scanResult = scan(cursor, pattern, pagesize + 1);
+      result.addAll(scanResult.getResult());
+      cursor = scanResult.getCursor();
+    } while (ScanResult.SCAN_POINTER_START.equals(cursor) == false);
+    return result;
+  }
+
+  public String get(final String key) {
+    return execute("get", key, new RedisCallback<String>() {
+      public String call(Jedis jedis) {
+        return jedis.get(key);
+      }
+    });
+  }
+
+  public String setex(final String key, final int seconds, final String value) {
+    return execute("setex", key, new RedisCallback<String>() {
+      public String call(Jedis jedis) {
+        return jedis.setex(key, seconds, value);
+      }
+    });
+  }
+
+  public Long del(final String key) {
+    return execute("del", key, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.del(key);
+      }
+    });
+  }
+
+  public Boolean exists(final String key) {
+    return execute("exists", key, new RedisCallback<Boolean>() {
+      public Boolean call(Jedis jedis) {
+        return jedis.exists(key);
+      }
+    });
+  }
+
+  //TODO@Hash操作
+  public String hget(final String hkey, final String field) {
+    return execute("hget", hkey, new RedisCallback<String>() {
+      public String call(Jedis jedis) {
+        return jedis.hget(hkey, field);
+      }
+    });
+  }
+
+  public Long hset(final String hkey, final String field, final String value) {
+    return execute("hset", hkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.hset(hkey, field, value);
+      }
+    });
+  }
+
+  public Long hsetnx(final String hkey, final String field, final String value) {
+    return execute("hsetnx", hkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.hsetnx(hkey, field, value);
+      }
+    });
+  }
+
+  public Long hdel(final String hkey, final String field) {
+    return execute("hdel", hkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.hdel(hkey, field);
+      }
+    });
+  }
+
+  public java.util.Map<String, String> hgetAll(final String hkey) {
+    return execute("hgetall", hkey, new RedisCallback<java.util.Map<String, String>>() {
+      public java.util.Map<String, String> call(Jedis jedis) {
+        return jedis.hgetAll(hkey);
+      }
+    });
+  }
+
+  public String hmset(final String hkey, final java.util.Map<String, String> hash) {
+    return execute("hmset", hkey, new RedisCallback<String>() {
+      public String call(Jedis jedis) {
+        return jedis.hmset(hkey, hash);
+      }
+    });
+  }
+
+  public java.util.List<String> hmget(final String hkey, final String... fields) {
+    return execute("hmget", hkey, new RedisCallback<java.util.List<String>>() {
+      public java.util.List<String> call(Jedis jedis) {
+        return jedis.hmget(hkey, fields);
+      }
+    });
+  }
+
+  public Long hlen(final String hkey) {
+    return execute("hlen", hkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.hlen(hkey);
+      }
+    });
+  }
+
+  public java.util.Set<String> hkeys(final String hkey) {
+    return execute("hkeys", hkey, new RedisCallback<java.util.Set<String>>() {
+      public java.util.Set<String> call(Jedis jedis) {
+        return jedis.hkeys(hkey);
+      }
+    });
+  }
+
+  public java.util.List<String> hvals(final String hkey) {
+    return execute("hvals", hkey, new RedisCallback<java.util.List<String>>() {
+      public java.util.List<String> call(Jedis jedis) {
+        return jedis.hvals(hkey);
+      }
+    });
+  }
+
+  public Boolean hexists(final String hkey, final String field) {
+    return execute("hexists", hkey, new RedisCallback<Boolean>() {
+      public Boolean call(Jedis jedis) {
+        return jedis.hexists(hkey, field);
+      }
+    });
+  }
+
+  //TODO@List操作
+  public Long lpush(final String lkey, final String value) {
+    return execute("lpush", lkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.lpush(lkey, value);
+      }
+    });
+  }
+
+  public String lpop(final String lkey) {
+    return execute("lpop", lkey, new RedisCallback<String>() {
+      public String call(Jedis jedis) {
+        return jedis.lpop(lkey);
+      }
+    });
+  }
+
+  public Long llen(final String lkey) {
+    return execute("llen", lkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.llen(lkey);
+      }
+    });
+  }
+
+  public java.util.List<String> lrange(final String lkey, final int start, final int end) {
+    return execute("lrange", lkey, new RedisCallback<java.util.List<String>>() {
+      public java.util.List<String> call(Jedis jedis) {
+        return jedis.lrange(lkey, start, end);
+      }
+    });
+  }
+
+  public Long lrem(final String lkey, final int count, final String value) {
+    return execute("lrem", lkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.lrem(lkey, count, value);
+      }
+    });
+  }
+
+  //@wjw_node 二进制安全的List操作,值由RedisCodec编码
+  public Long lpush(final String lkey, final byte[] value) {
+    return execute("lpush", lkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.lpush(SafeEncoder.encode(lkey), value);
+      }
+    });
+  }
+
+  public byte[] lpopBytes(final String lkey) {
+    return execute("lpop", lkey, new RedisCallback<byte[]>() {
+      public byte[] call(Jedis jedis) {
+        return jedis.lpop(SafeEncoder.encode(lkey));
+      }
+    });
+  }
+
+  //TODO@Set操作
+  public Boolean sismember(final String skey, final String member) {
+    return execute("sismember", skey, new RedisCallback<Boolean>() {
+      public Boolean call(Jedis jedis) {
+        return jedis.sismember(skey, member);
+      }
+    });
+  }
+
+  public Long sadd(final String skey, final String member) {
+    return execute("sadd", skey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.sadd(skey, member);
+      }
+    });
+  }
+
+  public Long srem(final String skey, final String member) {
+    return execute("srem", skey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.srem(skey, member);
+      }
+    });
+  }
+
+  //TODO@sort_set
+  public Long zadd(final String zkey, final double score, final String member) {
+    return execute("zadd", zkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.zadd(zkey, score, member);
+      }
+    });
+  }
+
+  public Long zrem(final String zkey, final String member) {
+    return execute("zrem", zkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.zrem(zkey, member);
+      }
+    });
+  }
+
+  public Double zscore(final String zkey, final String member) {
+    return execute("zscore", zkey, new RedisCallback<Double>() {
+      public Double call(Jedis jedis) {
+        return jedis.zscore(zkey, member);
+      }
+    });
+  }
+
+  public Long zcard(final String zkey) {
+    return execute("zcard", zkey, new RedisCallback<Long>() {
+      public Long call(Jedis jedis) {
+        return jedis.zcard(zkey);
+      }
+    });
+  }
+
+  public java.util.Set<String> zrange(final String zkey, final int start, final int end) {
+    return execute("zrange", zkey, new RedisCallback<java.util.Set<String>>() {
+      public java.util.Set<String> call(Jedis jedis) {
+        return jedis.zrange(zkey, start, end);
+      }
+    });
+  }
+
+  //TODO@异步操作
+  /**
+   * Hand the command to the auto-pipeline and return at once; the reply
+   * arrives in the future when the batch it went out with is synced.
+   */
+  protected <T> RedisFuture<T> submit(String name, PipelinedOp<T> op) {
+    return _autoPipeliner.submit(name, op);
+  }
+
+  public RedisFuture<Long> lpushAsync(String lkey, final String value) {
+    return submit("lpush_async", new PipelinedOp<Long>(lkey) {
+      protected Response<Long> queue(Pipeline pipeline) {
+        return pipeline.lpush(key, value);
+      }
+    });
+  }
+
+  public RedisFuture<Object> evalAsync(RedisScript script, List<String> keys, List<String> args) {
+    return submit("eval_async", new EvalOp(script, keys, RedisScript.toBytes(args), false));
+  }
+
+  public RedisFuture<Object> evalRawAsync(RedisScript script, List<String> keys, List<byte[]> args) {
+    return submit("eval_async", new EvalOp(script, keys, args, true));
+  }
+
+  //TODO@游标遍历
+  //@wjw_node 内置的Jedis还没有SCAN/ZSCAN/HSCAN命令,用Lua脚本来发送(需要redis 2.8以上)
+  static final RedisScript SCAN_SCRIPT = new RedisScript("return redis.call('scan', ARGV[1], 'MATCH', ARGV[2], 'COUNT', ARGV[3])");
+  static final RedisScript ZSCAN_SCRIPT = new RedisScript("local reply = redis.call('zscan', KEYS[1], ARGV[1], 'COUNT', ARGV[2])\n"
+      + "local members = {}\n"
+      + "for i = 1, #reply[2], 2 do members[#members + 1] = reply[2][i] end\n"
+      + "return {reply[1], members}");
+  static final RedisScript HSCAN_SCRIPT = new RedisScript("return redis.call('hscan', KEYS[1], ARGV[1], 'COUNT', ARGV[2])");
+
+  /**
+   * One SCAN step over the keys of all nodes. With several nodes the cursor
+   * is "nodeIndex-nodeCursor" and walks the nodes one after the other.
+   * 
+   * @param cursor
+   *          "0" to start, then the cursor of the previous result
+   */
+  public ScanResult<String> scan(String cursor, final String pattern, final int count) {
+    int node = 0;
+    String nodeCursor = cursor;
+    int pos = cursor.indexOf('-');
+    if (pos > 0) {
+      node = Integer.parseInt(cursor.substring(0, pos));
+      nodeCursor = cursor.substring(pos + 1);
+    }
+
+    final List<String> args = java.util.Arrays.asList(nodeCursor, pattern, String.valueOf(count));
+    long start = System.nanoTime();
+    boolean failed = true;
+    List<?> reply;
+    try {
+      reply = executeOnNode(node, new RedisCallback<List<?>>() {
+        public List<?> call(Jedis jedis) {
+          return (List<?>) SCAN_SCRIPT.eval(jedis, Collections.<String> emptyList(), args);
+        }
+      });
+      failed = false;
+    } finally {
+      recordCommand("scan", start, failed);
+    }
+
+    String nextCursor = (String) reply.get(0);
+    if (ScanResult.SCAN_POINTER_START.equals(nextCursor)) {
+      node++;
+      nextCursor = (node < getNodeCount()) ? String.valueOf(node) + "-" + ScanResult.SCAN_POINTER_START
+          : ScanResult.SCAN_POINTER_START;
+    } else if (node > 0 || getNodeCount() > 1) {
+      nextCursor = String.valueOf(node) + "-" + nextCursor;
+    }
+    return new ScanResult<String>(nextCursor, toStringList(reply.get(1)));
+  }
+
+  public ScanResult<String> zscan(String zkey, String cursor, int count) {
+    List<?> reply = (List<?>) eval(ZSCAN_SCRIPT, Collections.singletonList(zkey),
+        java.util.Arrays.asList(cursor, String.valueOf(count)));
+    return new ScanResult<String>((String) reply.get(0), toStringList(reply.get(1)));
+  }
+
+  public ScanResult<Map.Entry<String, String>> hscan(String hkey, String cursor, int count) {
+    List<?> reply = (List<?>) eval(HSCAN_SCRIPT, Collections.singletonList(hkey),
+        java.util.Arrays.asList(cursor, String.valueOf(count)));
+    List<String> fieldValues = toStringList(reply.get(1));
+    List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>(fieldValues.size() / 2);
+    for (int i = 0; i + 1 < fieldValues.size(); i += 2) {
+      entries.add(new java.util.AbstractMap.SimpleImmutableEntry<String, String>(fieldValues.get(i), fieldValues.get(i + 1)));
+    }
+    return new ScanResult<Map.Entry<String, String>>((String) reply.get(0), entries);
+  }
+
+  private static List<String> toStringList(Object reply) {
+    List<?> replies = (List<?>) reply;
+    List<String> result = new ArrayList<String>(replies.size());
+    for (Object oneReply : replies) {
+      result.add((String) oneReply);
+    }
+    return result;
+  }
+
+  //TODO@分片感知的批量操作
+  /**
+   * A single command that is queued into the pipeline of the node owning its
+   * key. The batch operations below build a list of these, and
+   * {@link #pipelined(List)} groups them by node.
+   */
+  protected static abstract class PipelinedOp<T> {
+    final String key;
+    Response<T> response;
+
+    protected PipelinedOp(String key) {
+      this.key = key;
+    }
+
+    /**
+     * Queue the command in the pipeline of the node that owns the key.
+     */
+    protected abstract Response<T> queue(Pipeline pipeline);
+
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Called on the same connection right after the pipeline was synced, e.g.
+     * to repair a reply that needs a follow-up command.
+     */
+    protected void afterSync(Jedis jedis) {
+    }
+
+    /**
+     * Reply of the command, only valid after the pipeline has been synced.
+     */
+    public T get() {
+      return response.get();
+    }
+  }
+
+  /**
+   * EVALSHA in a pipeline; a NOSCRIPT reply is repaired after the sync by
+   * running the script once more with its source.
+   */
+  protected static class EvalOp extends PipelinedOp<Object> {
+    final RedisScript script;
+    final List<String> keys;
+    final List<byte[]> args;
+    final boolean raw;
+    private boolean reloaded = false;
+    private Object reloadedValue;
+
+    /**
+     * @param raw
+     *          true to leave the reply undecoded (bulk strings as byte[])
+     */
+    protected EvalOp(RedisScript script, List<String> keys, List<byte[]> args, boolean raw) {
+      super(keys.get(0));
+      this.script = script;
+      this.keys = keys;
+      this.args = args;
+      this.raw = raw;
+    }
+
+    protected Response<Object> queue(Pipeline pipeline) {
+      return ((ScriptPipeline) pipeline).evalsha(script, keys, args, raw);
+    }
+
+    @Override
+    protected void afterSync(Jedis jedis) {
+      try {
+        response.get();
+      } catch (JedisDataException e) {
+        if (RedisScript.isNoScript(e)) {
+          Object reply = script.evalRaw(jedis, keys, args);
+          reloadedValue = raw ? reply : RedisScript.decode(reply);
+          reloaded = true;
+        }
+      }
+    }
+
+    @Override
+    public Object get() {
+      return reloaded ? reloadedValue : response.get();
+    }
+  }
+
+  /**
+   * Execute the operations with one pipeline per node. With a ShardedJedisPool
+   * or a cluster the operations are grouped by the node owning their key and
+   * the groups are synced in parallel, so a batch costs one round-trip per
+   * node instead of one round-trip per key.
+   */
+  protected void pipelined(List<? extends PipelinedOp<?>> ops) {
+    if (ops.isEmpty()) {
+      return;
+    }
+
+    if (_cluster != null) {
+      clusterPipelined(ops);
+    } else if (_pool != null) {
+      Jedis jedis = null;
+      try {
+        jedis = _pool.getResource();
+        syncPipeline(jedis, ops);
+      } finally {
+        if (jedis != null) {
+          try {
+            _pool.returnResource(jedis);
+          } catch (Throwable thex) {
+          }
+        }
+      }
+    } else {
+      ShardedJedis jedis = null;
+      try {
+        jedis = _shardedPool.getResource();
+
+        //->按照分片对操作进行分组,每个分组内保持原来的顺序
+        Map<Jedis, List<PipelinedOp<?>>> groups = new LinkedHashMap<Jedis, List<PipelinedOp<?>>>();
+        for (PipelinedOp<?> op : ops) {
+          addToGroup(groups, jedis.getShard(op.key), op);
+        }
+        //<-按照分片对操作进行分组,每个分组内保持原来的顺序
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(groups.size());
+        for (final Map.Entry<Jedis, List<PipelinedOp<?>>> group : groups.entrySet()) {
+          tasks.add(new Callable<Object>() {
+            public Object call() {
+              syncPipeline(group.getKey(), group.getValue());
+              return null;
+            }
+          });
+        }
+        //@wjw_node 必须等待所有分片都完成后才能归还ShardedJedis
+        invokeAll(tasks);
+      } finally {
+        if (jedis != null) {
+          try {
+            _shardedPool.returnResource(jedis);
+          } catch (Throwable thex) {
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Cluster variant: one pipeline per node. Commands answered with MOVED/ASK
+   * (stale slot table, slot in migration) are replayed one by one through
+   * {@link RedisCluster#execute}, which also updates the slot table.
+   */
+  private void clusterPipelined(List<? extends PipelinedOp<?>> ops) {
+    Map<JedisPool, List<PipelinedOp<?>>> groups = new LinkedHashMap<JedisPool, List<PipelinedOp<?>>>();
+    for (PipelinedOp<?> op : ops) {
+      addToGroup(groups, _cluster.getNodePool(op.key), op);
+    }
+
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(groups.size());
+    for (final Map.Entry<JedisPool, List<PipelinedOp<?>>> group : groups.entrySet()) {
+      tasks.add(new Callable<Object>() {
+        public Object call() {
+          execute(group.getKey(), new RedisCallback<Object>() {
+            public Object call(Jedis jedis) {
+              syncPipeline(jedis, group.getValue());
+              return null;
+            }
+          });
+          return null;
+        }
+      });
+    }
+    invokeAll(tasks);
+
+    for (final PipelinedOp<?> op : ops) {
+      try {
+        op.get();
+      } catch (JedisDataException e) {
+        if (RedisCluster.parseRedirect(e) == null) {
+          continue; //@wjw_node 普通的错误留给调用者在op.get()时处理
+        }
+        _cluster.execute(op.key, new RedisCallback<Object>() {
+          public Object call(Jedis jedis) {
+            syncPipeline(jedis, Collections.singletonList(op));
+            op.get(); //@wjw_node 抛出MOVED/ASK,让RedisCluster重定向
+            return null;
+          }
+        });
+      }
+    }
+  }
+
+  private static <K> void addToGroup(Map<K, List<PipelinedOp<?>>> groups, K node, PipelinedOp<?> op) {
+    List<PipelinedOp<?>> group = groups.get(node);
+    if (group == null) {
+      group = new ArrayList<PipelinedOp<?>>();
+      groups.put(node, group);
+    }
+    group.add(op);
+  }
+
+  /**
+   * Run the per-node tasks, in parallel when there is more than one, and wait
+   * for all of them; the first failure is rethrown.
+   */
+  private static void invokeAll(List<Callable<Object>> tasks) {
+    if (tasks.size() == 1) {
+      try {
+        tasks.get(0).call();
+      } catch (JedisException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new JedisException(e);
+      }
+      return;
+    }
+
+    List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+    for (Callable<Object> task : tasks) {
+      futures.add(_shardExecutor.submit(task));
+    }
+
+    JedisException failure = null;
+    for (Future<Object> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = (e.getCause() instanceof JedisException) ? (JedisException) e.getCause()
+              : new JedisConnectionException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (failure == null) {
+          failure = new JedisConnectionException(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static void syncPipeline(Jedis jedis, List<? extends PipelinedOp<?>> ops) {
+    Pipeline pipeline = new ScriptPipeline(jedis);
+    for (PipelinedOp<?> op : ops) {
+      queueOp(pipeline, op);
+    }
+    pipeline.sync();
+    for (PipelinedOp<?> op : ops) {
+      op.afterSync(jedis);
+    }
+  }
+
+  private static <T> void queueOp(Pipeline pipeline, PipelinedOp<T> op) {
+    op.response = op.queue(pipeline);
+  }
+
+  /**
+   * {@link #pipelined(List)}, timed as one command op.
+   */
+  private void pipelinedBatch(String op, List<? extends PipelinedOp<?>> ops) {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      pipelined(ops);
+      failed = false;
+    } finally {
+      recordCommand(op, start, failed);
+    }
+  }
+
+  public Map<String, String> hget(Map<String, String> hkeyFields) {
+    List<PipelinedOp<String>> ops = new ArrayList<PipelinedOp<String>>(hkeyFields.size());
+    for (final Map.Entry<String, String> hkeyField : hkeyFields.entrySet()) {
+      ops.add(new PipelinedOp<String>(hkeyField.getKey()) {
+        protected Response<String> queue(Pipeline pipeline) {
+          return pipeline.hget(key, hkeyField.getValue());
+        }
+      });
+    }
+    pipelinedBatch("hget_batch", ops);
+
+    Map<String, String> result = new HashMap<String, String>(ops.size());
+    for (PipelinedOp<String> op : ops) {
+      String value = op.get();
+      if (value != null) {
+        result.put(op.key, value);
+      }
+    }
+    return result;
+  }
+
+  public Map<String, Map<String, String>> hgetAll(Collection<String> hkeys) {
+    List<PipelinedOp<Map<String, String>>> ops = new ArrayList<PipelinedOp<Map<String, String>>>(hkeys.size());
+    for (String hkey : hkeys) {
+      ops.add(new PipelinedOp<Map<String, String>>(hkey) {
+        protected Response<Map<String, String>> queue(Pipeline pipeline) {
+          return pipeline.hgetAll(key);
+        }
+      });
+    }
+    pipelinedBatch("hgetall_batch", ops);
+
+    Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>(ops.size());
+    for (PipelinedOp<Map<String, String>> op : ops) {
+      Map<String, String> hash = op.get();
+      result.put(op.key, hash == null ? new HashMap<String, String>(0) : hash);
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,185 @@
+package nl.justobjects.pushlet.redis;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Flat JSON object of string fields, written and parsed by hand instead of
+ * going through Jackson's tree model. Reads what Jackson wrote before; numbers,
+ * booleans are read as their text, null as a missing field.
+ */
+public class JsonCodec extends RedisCodec {
+
+  protected byte[] encodeFields(Map<String, String> fields) {
+    try {
+      return toJson(fields).getBytes(RedisManager.REDIS_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static Map<String, String> decodeFields(byte[] data) {
+    try {
+      return fromJson(new String(data, RedisManager.REDIS_CHARSET));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static String toJson(Map<String, String> fields) {
+    StringBuilder sb = new StringBuilder(fields.size() * 24 + 2);
+    sb.append('{');
+    boolean first = true;
+    for (Map.Entry<String, String> field : fields.entrySet()) {
+      if (field.getValue() == null) {
+        continue;
+      }
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      appendString(sb, field.getKey());
+      sb.append(':');
+      appendString(sb, field.getValue());
+    }
+    return sb.append('}').toString();
+  }
+
+  private static void appendString(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20) {
+          sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+        } else {
+          sb.append(c);
+        }
+      }
+    }
+    sb.append('"');
+  }
+
+  public static Map<String, String> fromJson(String json) {
+    Map<String, String> fields = new HashMap<String, String>();
+    int[] pos = { skipWhitespace(json, 0) };
+    expect(json, pos, '{');
+    if (peek(json, pos) == '}') {
+      return fields;
+    }
+    while (true) {
+      String name = readString(json, pos);
+      expect(json, pos, ':');
+      String value = readValue(json, pos);
+      if (value != null) {
+        fields.put(name, value);
+      }
+      char c = peek(json, pos);
+      pos[0]++;
+      if (c == '}') {
+        return fields;
+      }
+      if (c != ',') {
+        throw new IllegalArgumentException("Expected , or } at " + (pos[0] - 1) + " in " + json);
+      }
+    }
+  }
+
+  private static String readValue(String json, int[] pos) {
+    char c = peek(json, pos);
+    if (c == '"') {
+      return readString(json, pos);
+    }
+    int start = pos[0];
+    while (pos[0] < json.length() && ",}".indexOf(json.charAt(pos[0])) < 0) {
+      pos[0]++;
+    }
+    String literal = json.substring(start, pos[0]).trim();
+    return literal.equals("null") ? null : literal;
+  }
+
+  private static String readString(String json, int[] pos) {
+    expect(json, pos, '"');
+    StringBuilder sb = null;
+    int start = pos[0];
+    while (true) {
+      char c = json.charAt(pos[0]++);
+      if (c == '"') {
+        return sb == null ? json.substring(start, pos[0] - 1) : sb.toString();
+      }
+      if (c != '\\') {
+        if (sb != null) {
+          sb.append(c);
+        }
+        continue;
+      }
+
+      if (sb == null) {
+        sb = new StringBuilder(json.substring(start, pos[0] - 1));
+      }
+      char e = json.charAt(pos[0]++);
+      switch (e) {
+      case 'n':
+        sb.append('\n');
+        break;
+      case 'r':
+        sb.append('\r');
+        break;
+      case 't':
+        sb.append('\t');
+        break;
+      case 'b':
+        sb.append('\b');
+        break;
+      case 'f':
+        sb.append('\f');
+        break;
+      case 'u':
+        sb.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+        pos[0] += 4;
+        break;
+      default:
+        sb.append(e);
+      }
+    }
+  }
+
+  private static char peek(String json, int[] pos) {
+    pos[0] = skipWhitespace(json, pos[0]);
+    if (pos[0] >= json.length()) {
+      throw new IllegalArgumentException("Unexpected end of " + json);
+    }
+    return json.charAt(pos[0]);
+  }
+
+  private static void expect(String json, int[] pos, char c) {
+    if (peek(json, pos) != c) {
+      throw new IllegalArgumentException("Expected " + c + " at " + pos[0] + " in " + json);
+    }
+    pos[0]++;
+  }
+
+  private static int skipWhitespace(String json, int pos) {
+    while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+}
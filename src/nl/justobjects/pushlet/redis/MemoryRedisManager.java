@@ -0,0 +1,446 @@
+package nl.justobjects.pushlet.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import nl.justobjects.pushlet.core.Config;
+import nl.justobjects.pushlet.core.ConfigDefs;
+import nl.justobjects.pushlet.util.Log;
+
+import internal.redis.clients.jedis.exceptions.JedisDataException;
+import internal.redis.clients.util.SafeEncoder;
+
+/**
+ * RedisManager without a redis server: the data lives in a {@link MemoryStore}
+ * in this JVM, so sessions, queues and dispatching can be tested and
+ * benchmarked anywhere, e.g. in CI.
+ * <p/>
+ * Commands run one at a time under the lock of the store, like on the single
+ * thread of redis. Lua cannot run here, so a script is run through its Java
+ * {@link RedisScript.Emulation}; a script without one fails like an unknown
+ * script.
+ * <p/>
+ * "redis.memory.latency.micros" adds a simulated network round-trip to every
+ * command, to tell the cost of redis round-trips from the CPU cost of the
+ * core. Asynchronous commands complete that long after they were submitted
+ * without blocking the caller, like the auto-pipeline.
+ */
+public class MemoryRedisManager extends RedisManager {
+  private final MemoryStore store = new MemoryStore();
+  private final long latencyNanos;
+  private final ScheduledExecutorService asyncExecutor;
+
+  public MemoryRedisManager() {
+    latencyNanos = Config.getLongProperty(ConfigDefs.REDIS_MEMORY_LATENCY_MICROS, 0) * 1000L;
+
+    //@wjw_node 单线程执行异步命令,保证与提交的顺序一致
+    asyncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "MemoryRedisAsync");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    Log.info("MemoryRedisManager: redis in memory, latency=" + latencyNanos / 1000 + "us");
+  }
+
+  /**
+   * The keyspace, e.g. to inspect it from tests. Hold its lock while using it.
+   */
+  public MemoryStore getStore() {
+    return store;
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryRedisManager{" + "latencyMicros=" + latencyNanos / 1000 + '}';
+  }
+
+  /**
+   * The simulated network round-trip of the command op, timed in the metrics
+   * (the work on the store itself takes well below a microsecond).
+   */
+  private void roundTrip(String op) {
+    long start = System.nanoTime();
+    if (latencyNanos > 0) {
+      LockSupport.parkNanos(latencyNanos);
+    }
+    recordCommand(op, start, false);
+  }
+
+  private static byte[] bytes(String value) {
+    return value == null ? null : SafeEncoder.encode(value);
+  }
+
+  private static String string(byte[] value) {
+    return value == null ? null : SafeEncoder.encode(value);
+  }
+
+  private static List<String> strings(List<byte[]> values) {
+    List<String> result = new ArrayList<String>(values.size());
+    for (byte[] value : values) {
+      result.add(string(value));
+    }
+    return result;
+  }
+
+  //TODO@脚本
+  public Object eval(RedisScript script, List<String> keys, List<String> args) {
+    return RedisScript.decode(evalRaw(script, keys, RedisScript.toBytes(args)));
+  }
+
+  public Object evalRaw(RedisScript script, List<String> keys, List<byte[]> args) {
+    roundTrip("eval");
+    return emulate(script, keys, args);
+  }
+
+  private Object emulate(RedisScript script, List<String> keys, List<byte[]> args) {
+    if (script.getEmulation() == null) {
+      throw new JedisDataException("NOSCRIPT No Java emulation of " + script);
+    }
+    synchronized (store) {
+      return script.getEmulation().eval(store, keys, args);
+    }
+  }
+
+  //TODO@redis的基本操作
+  public java.util.Set<String> keys(String pattern) {
+    roundTrip("keys");
+    synchronized (store) {
+      return new LinkedHashSet<String>(store.keys(pattern));
+    }
+  }
+
+  public String get(String key) {
+    roundTrip("get");
+    synchronized (store) {
+      return string(store.get(key));
+    }
+  }
+
+  public String setex(String key, int seconds, String value) {
+    roundTrip("setex");
+    synchronized (store) {
+      store.setex(key, seconds, bytes(value));
+      return "OK";
+    }
+  }
+
+  public Long del(String key) {
+    roundTrip("del");
+    synchronized (store) {
+      return store.del(key);
+    }
+  }
+
+  public Boolean exists(String key) {
+    roundTrip("exists");
+    synchronized (store) {
+      return store.exists(key);
+    }
+  }
+
+  //TODO@Hash操作
+  public String hget(String hkey, String field) {
+    roundTrip("hget");
+    synchronized (store) {
+      return string(store.hget(hkey, field));
+    }
+  }
+
+  public Long hset(String hkey, String field, String value) {
+    roundTrip("hset");
+    synchronized (store) {
+      return store.hset(hkey, field, bytes(value));
+    }
+  }
+
+  public Long hsetnx(String hkey, String field, String value) {
+    roundTrip("hsetnx");
+    synchronized (store) {
+      return store.hsetnx(hkey, field, bytes(value));
+    }
+  }
+
+  public Long hdel(String hkey, String field) {
+    roundTrip("hdel");
+    synchronized (store) {
+      return store.hdel(hkey, field);
+    }
+  }
+
+  public java.util.Map<String, String> hgetAll(String hkey) {
+    roundTrip("hgetall");
+    synchronized (store) {
+      return hgetAllLocked(hkey);
+    }
+  }
+
+  private Map<String, String> hgetAllLocked(String hkey) {
+    Map<String, String> result = new HashMap<String, String>();
+    for (Map.Entry<String, byte[]> entry : store.hgetAll(hkey).entrySet()) {
+      result.put(entry.getKey(), string(entry.getValue()));
+    }
+    return result;
+  }
+
+  public String hmset(String hkey, java.util.Map<String, String> hash) {
+    roundTrip("hmset");
+    synchronized (store) {
+      for (Map.Entry<String, String> entry : hash.entrySet()) {
+        store.hset(hkey, entry.getKey(), bytes(entry.getValue()));
+      }
+      return "OK";
+    }
+  }
+
+  public java.util.List<String> hmget(String hkey, String... fields) {
+    roundTrip("hmget");
+    synchronized (store) {
+      return strings(store.hmget(hkey, fields));
+    }
+  }
+
+  public Long hlen(String hkey) {
+    roundTrip("hlen");
+    synchronized (store) {
+      return store.hlen(hkey);
+    }
+  }
+
+  public java.util.Set<String> hkeys(String hkey) {
+    roundTrip("hkeys");
+    synchronized (store) {
+      return store.hkeys(hkey);
+    }
+  }
+
+  public java.util.List<String> hvals(String hkey) {
+    roundTrip("hvals");
+    synchronized (store) {
+      return strings(store.hvals(hkey));
+    }
+  }
+
+  public Boolean hexists(String hkey, String field) {
+    roundTrip("hexists");
+    synchronized (store) {
+      return store.hexists(hkey, field);
+    }
+  }
+
+  //TODO@List操作
+  public Long lpush(String lkey, String value) {
+    return lpush(lkey, bytes(value));
+  }
+
+  public String lpop(String lkey) {
+    return string(lpopBytes(lkey));
+  }
+
+  public Long llen(String lkey) {
+    roundTrip("llen");
+    synchronized (store) {
+      return store.llen(lkey);
+    }
+  }
+
+  public java.util.List<String> lrange(String lkey, int start, int end) {
+    roundTrip("lrange");
+    synchronized (store) {
+      return strings(store.lrange(lkey, start, end));
+    }
+  }
+
+  public Long lrem(String lkey, int count, String value) {
+    roundTrip("lrem");
+    synchronized (store) {
+      return store.lrem(lkey, count, bytes(value));
+    }
+  }
+
+  public Long lpush(String lkey, byte[] value) {
+    roundTrip("lpush");
+    synchronized (store) {
+      return store.lpush(lkey, value);
+    }
+  }
+
+  public byte[] lpopBytes(String lkey) {
+    roundTrip("lpop");
+    synchronized (store) {
+      return store.lpop(lkey);
+    }
+  }
+
+  //TODO@Set操作
+  public Boolean sismember(String skey, String member) {
+    roundTrip("sismember");
+    synchronized (store) {
+      return store.sismember(skey, member);
+    }
+  }
+
+  public Long sadd(String skey, String member) {
+    roundTrip("sadd");
+    synchronized (store) {
+      return store.sadd(skey, member);
+    }
+  }
+
+  public Long srem(String skey, String member) {
+    roundTrip("srem");
+    synchronized (store) {
+      return store.srem(skey, member);
+    }
+  }
+
+  //TODO@sort_set
+  public Long zadd(String zkey, double score, String member) {
+    roundTrip("zadd");
+    synchronized (store) {
+      return store.zadd(zkey, score, member);
+    }
+  }
+
+  public Long zrem(String zkey, String member) {
+    roundTrip("zrem");
+    synchronized (store) {
+      return store.zrem(zkey, member);
+    }
+  }
+
+  public Double zscore(String zkey, String member) {
+    roundTrip("zscore");
+    synchronized (store) {
+      return store.zscore(zkey, member);
+    }
+  }
+
+  public Long zcard(String zkey) {
+    roundTrip("zcard");
+    synchronized (store) {
+      return store.zcard(zkey);
+    }
+  }
+
+  public java.util.Set<String> zrange(String zkey, int start, int end) {
+    roundTrip("zrange");
+    synchronized (store) {
+      return new LinkedHashSet<String>(store.zrange(zkey, start, end));
+    }
+  }
+
+  //TODO@异步操作
+  /**
+   * Run the command on the async thread one round-trip from now.
+   */
+  private <T> RedisFuture<T> submit(final String name, final Callable<T> command) {
+    final RedisFuture<T> future = new RedisFuture<T>();
+    asyncExecutor.schedule(new Runnable() {
+      public void run() {
+        try {
+          future.complete(command.call());
+          commandTimer(name).record(future.getLatencyNanos());
+        } catch (Throwable t) {
+          future.fail(t);
+          commandErrors(name).increment();
+        }
+      }
+    }, latencyNanos, TimeUnit.NANOSECONDS);
+    return future;
+  }
+
+  public RedisFuture<Long> lpushAsync(final String lkey, final String value) {
+    return submit("lpush_async", new Callable<Long>() {
+      public Long call() {
+        synchronized (store) {
+          return store.lpush(lkey, bytes(value));
+        }
+      }
+    });
+  }
+
+  public RedisFuture<Object> evalAsync(final RedisScript script, final List<String> keys, final List<String> args) {
+    return submit("eval_async", new Callable<Object>() {
+      public Object call() {
+        return RedisScript.decode(emulate(script, keys, RedisScript.toBytes(args)));
+      }
+    });
+  }
+
+  public RedisFuture<Object> evalRawAsync(final RedisScript script, final List<String> keys, final List<byte[]> args) {
+    return submit("eval_async", new Callable<Object>() {
+      public Object call() {
+        return emulate(script, keys, args);
+      }
+    });
+  }
+
+  //TODO@游标遍历
+  public ScanResult<String> scan(String cursor, String pattern, int count) {
+    roundTrip("scan");
+    synchronized (store) {
+      return store.scan(Long.parseLong(cursor), pattern, count);
+    }
+  }
+
+  public ScanResult<String> zscan(String zkey, String cursor, int count) {
+    roundTrip("zscan");
+    synchronized (store) {
+      return store.zscan(zkey, Long.parseLong(cursor), count);
+    }
+  }
+
+  public ScanResult<Map.Entry<String, String>> hscan(String hkey, String cursor, int count) {
+    roundTrip("hscan");
+    ScanResult<Map.Entry<String, byte[]>> page;
+    synchronized (store) {
+      page = store.hscan(hkey, Long.parseLong(cursor), count);
+    }
+    List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>(page.getResult().size());
+    for (Map.Entry<String, byte[]> entry : page.getResult()) {
+      entries.add(new java.util.AbstractMap.SimpleImmutableEntry<String, String>(entry.getKey(), string(entry.getValue())));
+    }
+    return new ScanResult<Map.Entry<String, String>>(page.getCursor(), entries);
+  }
+
+  //TODO@批量操作
+  //@wjw_node 批量操作和pipeline一样只算一次往返
+  public Map<String, String> hget(Map<String, String> hkeyFields) {
+    roundTrip("hget_batch");
+    Map<String, String> result = new HashMap<String, String>(hkeyFields.size());
+    synchronized (store) {
+      for (Map.Entry<String, String> hkeyField : hkeyFields.entrySet()) {
+        byte[] value = store.hget(hkeyField.getKey(), hkeyField.getValue());
+        if (value != null) {
+          result.put(hkeyField.getKey(), string(value));
+        }
+      }
+    }
+    return result;
+  }
+
+  public Map<String, Map<String, String>> hgetAll(Collection<String> hkeys) {
+    roundTrip("hgetall_batch");
+    Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>(hkeys.size());
+    synchronized (store) {
+      for (String hkey : hkeys) {
+        result.put(hkey, hgetAllLocked(hkey));
+      }
+    }
+    return result;
+  }
+
+}
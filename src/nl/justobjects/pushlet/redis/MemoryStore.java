@@ -0,0 +1,474 @@
+package nl.justobjects.pushlet.redis;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import internal.redis.clients.jedis.exceptions.JedisDataException;
+import internal.redis.clients.util.SafeEncoder;
+
+/**
+ * The keyspace of {@link MemoryRedisManager}: strings, lists, hashes, sets and
+ * sorted sets with the semantics of the redis commands of the same name
+ * (negative list indexes, empty collections disappear, WRONGTYPE errors,
+ * expiring keys). Values are byte[] as in redis; hash fields and set members
+ * are strings.
+ * <p/>
+ * Not thread-safe: the caller runs each command, or each script emulation as
+ * a whole, while holding the lock on the store, like the single thread of a
+ * redis server.
+ */
+public class MemoryStore {
+  private final Map<String, Object> data = new HashMap<String, Object>();
+  private final Map<String, Long> expires = new HashMap<String, Long>();
+
+  /**
+   * Sorted set: members ordered by score, then by member.
+   */
+  static class ZSet {
+    final Map<String, Double> scores = new HashMap<String, Double>();
+    final TreeSet<String> ordered = new TreeSet<String>(new Comparator<String>() {
+      public int compare(String a, String b) {
+        int c = Double.compare(scores.get(a), scores.get(b));
+        return c != 0 ? c : a.compareTo(b);
+      }
+    });
+  }
+
+  //TODO@key
+  private Object lookup(String key) {
+    Long expireAt = expires.get(key);
+    if (expireAt != null && expireAt.longValue() <= System.currentTimeMillis()) {
+      expires.remove(key);
+      data.remove(key);
+      return null;
+    }
+    return data.get(key);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> T lookup(String key, Class<T> type) {
+    Object value = lookup(key);
+    if (value != null && !type.isInstance(value)) {
+      throw new JedisDataException("WRONGTYPE Operation against a key holding the wrong kind of value");
+    }
+    return (T) value;
+  }
+
+  private <T> T create(String key, Class<T> type) {
+    T value = lookup(key, type);
+    if (value == null) {
+      try {
+        value = type.getDeclaredConstructor().newInstance();
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+      data.put(key, value);
+    }
+    return value;
+  }
+
+  /**
+   * Remove a collection that became empty, as redis does.
+   */
+  private void removeIfEmpty(String key, int size) {
+    if (size == 0) {
+      del(key);
+    }
+  }
+
+  public long del(String... keys) {
+    long removed = 0;
+    for (String key : keys) {
+      if (lookup(key) != null) {
+        removed++;
+      }
+      data.remove(key);
+      expires.remove(key);
+    }
+    return removed;
+  }
+
+  public boolean exists(String key) {
+    return lookup(key) != null;
+  }
+
+  public long pexpire(String key, long millis) {
+    if (lookup(key) == null) {
+      return 0;
+    }
+    expires.put(key, System.currentTimeMillis() + millis);
+    return 1;
+  }
+
+  /**
+   * Keys matching the glob pattern, in a stable order so that
+   * {@link #scan(long, String, int)} can page through them.
+   */
+  public List<String> keys(String pattern) {
+    List<String> result = new ArrayList<String>();
+    for (String key : new ArrayList<String>(data.keySet())) {
+      if (lookup(key) != null && globMatches(pattern, 0, key, 0)) {
+        result.add(key);
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  //TODO@String
+  public byte[] get(String key) {
+    return lookup(key, byte[].class);
+  }
+
+  public void set(String key, byte[] value) {
+    data.put(key, value);
+    expires.remove(key);
+  }
+
+  public void setex(String key, int seconds, byte[] value) {
+    set(key, value);
+    expires.put(key, System.currentTimeMillis() + seconds * 1000L);
+  }
+
+  //TODO@List
+  public long llen(String key) {
+    LinkedList<?> list = lookup(key, LinkedList.class);
+    return list == null ? 0 : list.size();
+  }
+
+  @SuppressWarnings("unchecked")
+  public long lpush(String key, byte[]... values) {
+    LinkedList<byte[]> list = create(key, LinkedList.class);
+    for (byte[] value : values) {
+      list.addFirst(value);
+    }
+    return list.size();
+  }
+
+  @SuppressWarnings("unchecked")
+  public byte[] lpop(String key) {
+    LinkedList<byte[]> list = lookup(key, LinkedList.class);
+    if (list == null) {
+      return null;
+    }
+    byte[] value = list.removeFirst();
+    removeIfEmpty(key, list.size());
+    return value;
+  }
+
+  @SuppressWarnings("unchecked")
+  public byte[] rpop(String key) {
+    LinkedList<byte[]> list = lookup(key, LinkedList.class);
+    if (list == null) {
+      return null;
+    }
+    byte[] value = list.removeLast();
+    removeIfEmpty(key, list.size());
+    return value;
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<byte[]> lrange(String key, long start, long end) {
+    LinkedList<byte[]> list = lookup(key, LinkedList.class);
+    if (list == null) {
+      return new ArrayList<byte[]>(0);
+    }
+    int[] range = range(start, end, list.size());
+    return new ArrayList<byte[]>(list.subList(range[0], range[1]));
+  }
+
+  @SuppressWarnings("unchecked")
+  public long lrem(String key, long count, byte[] value) {
+    LinkedList<byte[]> list = lookup(key, LinkedList.class);
+    if (list == null) {
+      return 0;
+    }
+    long removed = 0;
+    Iterator<byte[]> iter = count < 0 ? list.descendingIterator() : list.iterator();
+    while (iter.hasNext() && (count == 0 || removed < Math.abs(count))) {
+      if (Arrays.equals(iter.next(), value)) {
+        iter.remove();
+        removed++;
+      }
+    }
+    removeIfEmpty(key, list.size());
+    return removed;
+  }
+
+  //TODO@Hash
+  @SuppressWarnings("unchecked")
+  private LinkedHashMap<String, byte[]> hash(String key) {
+    return lookup(key, LinkedHashMap.class);
+  }
+
+  public byte[] hget(String key, String field) {
+    Map<String, byte[]> hash = hash(key);
+    return hash == null ? null : hash.get(field);
+  }
+
+  @SuppressWarnings("unchecked")
+  public long hset(String key, String field, byte[] value) {
+    return create(key, LinkedHashMap.class).put(field, value) == null ? 1 : 0;
+  }
+
+  public long hsetnx(String key, String field, byte[] value) {
+    if (hexists(key, field)) {
+      return 0;
+    }
+    return hset(key, field, value);
+  }
+
+  public long hincrby(String key, String field, long increment) {
+    byte[] value = hget(key, field);
+    long result = (value == null ? 0 : Long.parseLong(SafeEncoder.encode(value))) + increment;
+    hset(key, field, SafeEncoder.encode(String.valueOf(result)));
+    return result;
+  }
+
+  public long hdel(String key, String... fields) {
+    Map<String, byte[]> hash = hash(key);
+    if (hash == null) {
+      return 0;
+    }
+    long removed = 0;
+    for (String field : fields) {
+      if (hash.remove(field) != null) {
+        removed++;
+      }
+    }
+    removeIfEmpty(key, hash.size());
+    return removed;
+  }
+
+  public boolean hexists(String key, String field) {
+    Map<String, byte[]> hash = hash(key);
+    return hash != null && hash.containsKey(field);
+  }
+
+  public Map<String, byte[]> hgetAll(String key) {
+    Map<String, byte[]> hash = hash(key);
+    return hash == null ? new LinkedHashMap<String, byte[]>(0) : new LinkedHashMap<String, byte[]>(hash);
+  }
+
+  public List<byte[]> hmget(String key, String... fields) {
+    Map<String, byte[]> hash = hash(key);
+    List<byte[]> values = new ArrayList<byte[]>(fields.length);
+    for (String field : fields) {
+      values.add(hash == null ? null : hash.get(field));
+    }
+    return values;
+  }
+
+  public Set<String> hkeys(String key) {
+    Map<String, byte[]> hash = hash(key);
+    return hash == null ? new LinkedHashSet<String>(0) : new LinkedHashSet<String>(hash.keySet());
+  }
+
+  public List<byte[]> hvals(String key) {
+    Map<String, byte[]> hash = hash(key);
+    return hash == null ? new ArrayList<byte[]>(0) : new ArrayList<byte[]>(hash.values());
+  }
+
+  public long hlen(String key) {
+    Map<String, byte[]> hash = hash(key);
+    return hash == null ? 0 : hash.size();
+  }
+
+  //TODO@Set
+  @SuppressWarnings("unchecked")
+  public long sadd(String key, String member) {
+    return create(key, HashSet.class).add(member) ? 1 : 0;
+  }
+
+  public long srem(String key, String member) {
+    HashSet<?> set = lookup(key, HashSet.class);
+    if (set == null || !set.remove(member)) {
+      return 0;
+    }
+    removeIfEmpty(key, set.size());
+    return 1;
+  }
+
+  public boolean sismember(String key, String member) {
+    HashSet<?> set = lookup(key, HashSet.class);
+    return set != null && set.contains(member);
+  }
+
+  //TODO@sort_set
+  public long zadd(String key, double score, String member) {
+    ZSet zset = create(key, ZSet.class);
+    boolean added = !zset.scores.containsKey(member);
+    if (!added) {
+      zset.ordered.remove(member);
+    }
+    zset.scores.put(member, score);
+    zset.ordered.add(member);
+    return added ? 1 : 0;
+  }
+
+  public long zrem(String key, String member) {
+    ZSet zset = lookup(key, ZSet.class);
+    if (zset == null || !zset.scores.containsKey(member)) {
+      return 0;
+    }
+    zset.ordered.remove(member);
+    zset.scores.remove(member);
+    removeIfEmpty(key, zset.scores.size());
+    return 1;
+  }
+
+  public Double zscore(String key, String member) {
+    ZSet zset = lookup(key, ZSet.class);
+    return zset == null ? null : zset.scores.get(member);
+  }
+
+  public long zcard(String key) {
+    ZSet zset = lookup(key, ZSet.class);
+    return zset == null ? 0 : zset.scores.size();
+  }
+
+  public List<String> zrange(String key, long start, long end) {
+    ZSet zset = lookup(key, ZSet.class);
+    if (zset == null) {
+      return new ArrayList<String>(0);
+    }
+    int[] range = range(start, end, zset.ordered.size());
+    return new ArrayList<String>(zset.ordered).subList(range[0], range[1]);
+  }
+
+  /**
+   * Remove the members with min &lt;= score &lt;= max.
+   */
+  public long zremrangebyscore(String key, double min, double max) {
+    ZSet zset = lookup(key, ZSet.class);
+    if (zset == null) {
+      return 0;
+    }
+    long removed = 0;
+    for (Iterator<String> iter = zset.ordered.iterator(); iter.hasNext();) {
+      String member = iter.next();
+      double score = zset.scores.get(member);
+      if (score > max) {
+        break;
+      }
+      if (score >= min) {
+        iter.remove();
+        zset.scores.remove(member);
+        removed++;
+      }
+    }
+    removeIfEmpty(key, zset.scores.size());
+    return removed;
+  }
+
+  //TODO@游标遍历
+  /**
+   * One SCAN step: the cursor is the position in the sorted matching keys.
+   */
+  public ScanResult<String> scan(long cursor, String pattern, int count) {
+    return page(keys(pattern), cursor, count);
+  }
+
+  public ScanResult<String> zscan(String key, long cursor, int count) {
+    ZSet zset = lookup(key, ZSet.class);
+    return page(zset == null ? new ArrayList<String>(0) : new ArrayList<String>(zset.ordered), cursor, count);
+  }
+
+  public ScanResult<Map.Entry<String, byte[]>> hscan(String key, long cursor, int count) {
+    List<Map.Entry<String, byte[]>> entries = new ArrayList<Map.Entry<String, byte[]>>();
+    for (Map.Entry<String, byte[]> entry : hgetAll(key).entrySet()) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<String, byte[]>(entry));
+    }
+    return page(entries, cursor, count);
+  }
+
+  private static <T> ScanResult<T> page(List<T> items, long cursor, int count) {
+    int from = (int) Math.min(cursor, items.size());
+    int to = Math.min(from + Math.max(count, 1), items.size());
+    String next = to >= items.size() ? ScanResult.SCAN_POINTER_START : String.valueOf(to);
+    return new ScanResult<T>(next, new ArrayList<T>(items.subList(from, to)));
+  }
+
+  /**
+   * Redis index range [start, end], negative counting from the end, as a
+   * subList range [from, to).
+   */
+  private static int[] range(long start, long end, int size) {
+    if (start < 0) {
+      start = Math.max(0, size + start);
+    }
+    if (end < 0) {
+      end = size + end;
+    }
+    end = Math.min(end, size - 1);
+    if (start > end) {
+      return new int[] { 0, 0 };
+    }
+    return new int[] { (int) start, (int) end + 1 };
+  }
+
+  /**
+   * Redis glob: * ? [abc] [^a-z] and \ escapes.
+   */
+  static boolean globMatches(String pattern, int p, String s, int i) {
+    while (p < pattern.length()) {
+      char c = pattern.charAt(p);
+      if (c == '*') {
+        for (int j = i; j <= s.length(); j++) {
+          if (globMatches(pattern, p + 1, s, j)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (i >= s.length()) {
+        return false;
+      }
+      if (c == '?') {
+        p++;
+      } else if (c == '[') {
+        int end = pattern.indexOf(']', p + 1);
+        if (end < 0) {
+          return false;
+        }
+        boolean negate = p + 1 < end && pattern.charAt(p + 1) == '^';
+        boolean found = false;
+        for (int k = negate ? p + 2 : p + 1; k < end; k++) {
+          if (k + 2 < end && pattern.charAt(k + 1) == '-') {
+            found |= s.charAt(i) >= pattern.charAt(k) && s.charAt(i) <= pattern.charAt(k + 2);
+            k += 2;
+          } else {
+            found |= s.charAt(i) == pattern.charAt(k);
+          }
+        }
+        if (found == negate) {
+          return false;
+        }
+        p = end + 1;
+      } else {
+        if (c == '\\' && p + 1 < pattern.length()) {
+          c = pattern.charAt(++p);
+        }
+        if (c != s.charAt(i)) {
+          return false;
+        }
+        p++;
+      }
+      i++;
+    }
+    return i == s.length();
+  }
+}
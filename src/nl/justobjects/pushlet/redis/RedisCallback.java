@@ -0,0 +1,12 @@
+package nl.justobjects.pushlet.redis;
+
+import internal.redis.clients.jedis.Jedis;
+
+/**
+ * A unit of work against the one redis node that owns a key.
+ * {@link RedisManager} borrows the connection (pool, shard or cluster node),
+ * calls back and always returns the connection afterwards.
+ */
+public interface RedisCallback<T> {
+  T call(Jedis jedis);
+}
@@ -0,0 +1,415 @@
+package nl.justobjects.pushlet.redis;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import nl.justobjects.pushlet.util.Log;
+
+import internal.redis.clients.jedis.Jedis;
+import internal.redis.clients.jedis.JedisPool;
+import internal.redis.clients.jedis.JedisPoolConfig;
+import internal.redis.clients.jedis.JedisShardInfo;
+import internal.redis.clients.jedis.exceptions.JedisConnectionException;
+import internal.redis.clients.jedis.exceptions.JedisDataException;
+import internal.redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Client side of a Redis Cluster: maps each key to one of the 16384 hash
+ * slots (CRC16, "{...}" hash tags honoured) and the slot to the pool of the
+ * node serving it, following MOVED and ASK redirections.
+ *
+ * The slot table and the set of masters are loaded with CLUSTER SLOTS (sent
+ * raw, the bundled Jedis has no CLUSTER command) from the first seed that
+ * answers, at start and again after a MOVED. A key whose slot is still
+ * unknown goes to a seed, trying the next seed when one is unreachable.
+ * Adding nodes or resharding therefore needs no configuration change.
+ */
+public class RedisCluster {
+  public static final int SLOT_COUNT = 16384;
+  static final int MAX_REDIRECTIONS = 5;
+  private static final byte[] ASKING_COMMAND = "*1\r\n$6\r\nASKING\r\n".getBytes();
+  private static final byte[] CLUSTER_SLOTS_COMMAND = "*2\r\n$7\r\nCLUSTER\r\n$5\r\nSLOTS\r\n".getBytes();
+  private static final long MIN_REFRESH_MILLIS = 1000;
+
+  private final JedisPoolConfig poolConfig;
+  private final int timeout;
+  private final String password;
+
+  private final Map<String, JedisPool> nodes = new ConcurrentHashMap<String, JedisPool>();
+  private final List<String> seeds = new ArrayList<String>();
+  private final AtomicReferenceArray<JedisPool> slots = new AtomicReferenceArray<JedisPool>(SLOT_COUNT);
+
+  /**
+   * "host:port" of the masters in the last slot table, empty until loaded.
+   */
+  private volatile List<String> masters = new ArrayList<String>();
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private volatile long lastRefresh;
+
+  public RedisCluster(JedisPoolConfig poolConfig, List<JedisShardInfo> seedNodes) {
+    this.poolConfig = poolConfig;
+    this.timeout = seedNodes.get(0).getTimeout();
+    this.password = seedNodes.get(0).getPassword();
+
+    for (JedisShardInfo shardInfo : seedNodes) {
+      String node = shardInfo.getHost() + ":" + shardInfo.getPort();
+      seeds.add(node);
+      getNode(node);
+    }
+    refreshSlots();
+  }
+
+  //TODO@slot计算
+  /**
+   * Hash slot of a key, as computed by the redis server.
+   */
+  public static int getSlot(String key) {
+    int start = key.indexOf('{');
+    if (start >= 0) {
+      int end = key.indexOf('}', start + 1);
+      if (end > start + 1) {
+        key = key.substring(start + 1, end);
+      }
+    }
+
+    byte[] bytes;
+    try {
+      bytes = key.getBytes(RedisManager.REDIS_CHARSET);
+    } catch (java.io.UnsupportedEncodingException e) {
+      bytes = key.getBytes();
+    }
+    return crc16(bytes) & (SLOT_COUNT - 1);
+  }
+
+  /**
+   * CRC16-CCITT (XModem), the checksum redis cluster uses for key slots.
+   */
+  static int crc16(byte[] bytes) {
+    int crc = 0;
+    for (byte b : bytes) {
+      crc ^= (b & 0xFF) << 8;
+      for (int i = 0; i < 8; i++) {
+        if ((crc & 0x8000) != 0) {
+          crc = (crc << 1) ^ 0x1021;
+        } else {
+          crc = crc << 1;
+        }
+      }
+    }
+    return crc & 0xFFFF;
+  }
+
+  //TODO@节点管理
+  /**
+   * Pool of the node currently known to serve the key's slot.
+   */
+  public JedisPool getNodePool(String key) {
+    return getNodePool(getSlot(key), 0);
+  }
+
+  /**
+   * Pool of the slot's node; when unknown the seed for this attempt, so that
+   * retries go round the seeds.
+   */
+  private JedisPool getNodePool(int slot, int attempt) {
+    JedisPool pool = slots.get(slot);
+    if (pool != null) {
+      return pool;
+    }
+
+    //@wjw_node 还不知道slot在哪个节点上,发给一个种子节点,由MOVED告诉我们正确的节点
+    return getNode(seeds.get(attempt % seeds.size()));
+  }
+
+  /**
+   * Pools of all masters of the cluster, ordered by "host:port" so that an
+   * index into the list is stable while no node joins. Before the slot table
+   * could be loaded: all nodes seen so far.
+   */
+  public List<JedisPool> getNodePools() {
+    List<String> current = masters;
+    if (current.isEmpty()) {
+      return new ArrayList<JedisPool>(new TreeMap<String, JedisPool>(nodes).values());
+    }
+    List<JedisPool> pools = new ArrayList<JedisPool>(current.size());
+    for (String master : current) {
+      pools.add(getNode(master));
+    }
+    return pools;
+  }
+
+  //TODO@加载slot表
+  /**
+   * Load the slot table with CLUSTER SLOTS from the first seed (then other
+   * known node) that answers. At most once per second; concurrent callers
+   * skip the refresh.
+   * 
+   * @return true when the table was loaded
+   */
+  public boolean refreshSlots() {
+    if (refreshing.compareAndSet(false, true) == false) {
+      return false;
+    }
+    try {
+      if (System.currentTimeMillis() - lastRefresh < MIN_REFRESH_MILLIS) {
+        return false;
+      }
+      lastRefresh = System.currentTimeMillis();
+
+      List<String> candidates = new ArrayList<String>(seeds);
+      for (String node : new TreeMap<String, JedisPool>(nodes).keySet()) {
+        if (candidates.contains(node) == false) {
+          candidates.add(node);
+        }
+      }
+      for (String node : candidates) {
+        try {
+          loadSlots(clusterSlots(node));
+          return true;
+        } catch (JedisException e) {
+          Log.warn("RedisCluster: CLUSTER SLOTS failed on " + node + ": " + e.getMessage());
+        }
+      }
+      Log.warn("RedisCluster: no node answered CLUSTER SLOTS, slots are learned from MOVED");
+      return false;
+    } finally {
+      refreshing.set(false);
+    }
+  }
+
+  private List<Object> clusterSlots(String hostAndPort) {
+    Jedis jedis = connect(hostAndPort);
+    try {
+      OutputStream out = jedis.getClient().getSocket().getOutputStream();
+      out.write(CLUSTER_SLOTS_COMMAND);
+      out.flush();
+      return jedis.getClient().getObjectMultiBulkReply();
+    } catch (java.io.IOException e) {
+      throw new JedisConnectionException(e);
+    } finally {
+      try {
+        jedis.disconnect();
+      } catch (Throwable thex) {
+      }
+    }
+  }
+
+  /**
+   * Each entry of the reply: start slot, end slot, master [host, port, ...],
+   * replicas.
+   */
+  private void loadSlots(List<Object> reply) throws JedisException {
+    TreeSet<String> found = new TreeSet<String>();
+    for (Object entry : reply) {
+      List<?> range = (List<?>) entry;
+      int start = ((Long) range.get(0)).intValue();
+      int end = ((Long) range.get(1)).intValue();
+      List<?> master = (List<?>) range.get(2);
+      String node;
+      try {
+        node = new String((byte[]) master.get(0), RedisManager.REDIS_CHARSET) + ":" + master.get(1);
+      } catch (java.io.UnsupportedEncodingException e) {
+        throw new JedisException(e);
+      }
+      found.add(node);
+
+      JedisPool pool = getNode(node);
+      for (int slot = start; slot <= end; slot++) {
+        slots.set(slot, pool);
+      }
+    }
+    if (found.isEmpty() == false) {
+      masters = new ArrayList<String>(found);
+    }
+  }
+
+  private JedisPool getNode(String hostAndPort) {
+    JedisPool pool = nodes.get(hostAndPort);
+    if (pool == null) {
+      synchronized (nodes) {
+        pool = nodes.get(hostAndPort);
+        if (pool == null) {
+          String[] hp = hostAndPort.split(":");
+          pool = new JedisPool(poolConfig, hp[0], Integer.parseInt(hp[1]), timeout, password);
+          nodes.put(hostAndPort, pool);
+          JedisRedisManager.registerPoolGauges(hostAndPort, pool);
+          Log.info("RedisCluster add node:" + hostAndPort);
+        }
+      }
+    }
+    return pool;
+  }
+
+  //TODO@执行命令和重定向
+  /**
+   * Run the callback on the node serving the key, following at most
+   * {@link #MAX_REDIRECTIONS} MOVED/ASK redirections.
+   */
+  public <T> T execute(String key, RedisCallback<T> callback) {
+    int slot = getSlot(key);
+    JedisPool pool = getNodePool(slot, 0);
+    String askNode = null;
+    int attempts = 0;
+
+    for (int redirections = 0;; redirections++) {
+      try {
+        if (askNode != null) {
+          return executeAsking(askNode, callback);
+        }
+        return execute(pool, callback);
+      } catch (JedisDataException e) {
+        String[] redirect = parseRedirect(e);
+        if (redirect == null || redirections >= MAX_REDIRECTIONS) {
+          throw e;
+        }
+
+        if (redirect[0].equals("MOVED")) {
+          pool = getNode(redirect[2]);
+          slots.set(Integer.parseInt(redirect[1]), pool);
+          askNode = null;
+          //@wjw_node MOVED说明slot迁移了,重新加载整个slot表
+          refreshSlots();
+        } else {
+          askNode = redirect[2];
+        }
+      } catch (NodeUnreachableException e) {
+        //@wjw_node 节点连不上(命令还没有发出),忘掉这个slot的映射,重新加载slot表或者换下一个种子节点
+        slots.compareAndSet(slot, pool, null);
+        if (++attempts > seeds.size()) {
+          throw e;
+        }
+        refreshSlots();
+        pool = getNodePool(slot, attempts);
+      } catch (JedisConnectionException e) {
+        //@wjw_node 命令发出后断开,不知道是否已执行,不重试
+        slots.compareAndSet(slot, pool, null);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * No connection to the node could be made: the command was not sent and
+   * may go to another node.
+   */
+  static class NodeUnreachableException extends JedisConnectionException {
+    private static final long serialVersionUID = 1L;
+
+    NodeUnreachableException(Throwable cause) {
+      super(cause);
+    }
+  }
+
+  <T> T execute(JedisPool pool, RedisCallback<T> callback) {
+    Jedis jedis = null;
+    boolean broken = false;
+    try {
+      try {
+        jedis = pool.getResource();
+      } catch (JedisConnectionException e) {
+        throw new NodeUnreachableException(e);
+      }
+      return callback.call(jedis);
+    } catch (JedisConnectionException e) {
+      broken = true;
+      throw e;
+    } finally {
+      if (jedis != null) {
+        try {
+          if (broken) {
+            pool.returnBrokenResource(jedis);
+          } else {
+            pool.returnResource(jedis);
+          }
+        } catch (Throwable thex) {
+        }
+      }
+    }
+  }
+
+  /**
+   * One-shot command after an ASK redirection: the target only accepts it
+   * after ASKING. Jedis has no ASKING command, so it is written raw on a
+   * private connection that is closed afterwards (ASK only happens while a
+   * slot is being migrated).
+   */
+  private <T> T executeAsking(String hostAndPort, RedisCallback<T> callback) {
+    Jedis jedis = connect(hostAndPort);
+    try {
+      OutputStream out = jedis.getClient().getSocket().getOutputStream();
+      out.write(ASKING_COMMAND);
+      out.flush();
+      jedis.getClient().getOne();
+
+      return callback.call(jedis);
+    } catch (java.io.IOException e) {
+      throw new JedisConnectionException(e);
+    } finally {
+      try {
+        jedis.disconnect();
+      } catch (Throwable thex) {
+      }
+    }
+  }
+
+  /**
+   * Private connection to a node, for the raw commands.
+   */
+  private Jedis connect(String hostAndPort) {
+    String[] hp = hostAndPort.split(":");
+    Jedis jedis = new Jedis(hp[0], Integer.parseInt(hp[1]), timeout);
+    try {
+      jedis.connect();
+      if (password != null) {
+        jedis.auth(password);
+      }
+      return jedis;
+    } catch (JedisException e) {
+      try {
+        jedis.disconnect();
+      } catch (Throwable thex) {
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * "MOVED 3999 127.0.0.1:6381" or "ASK 3999 127.0.0.1:6381" split into its
+   * three parts; null for any other error.
+   */
+  static String[] parseRedirect(JedisException e) {
+    String message = errorMessage(e);
+    if (message == null || (message.startsWith("MOVED ") == false && message.startsWith("ASK ") == false)) {
+      return null;
+    }
+    String[] redirect = message.split(" ");
+    if (redirect.length != 3) {
+      return null;
+    }
+    return redirect;
+  }
+
+  /**
+   * Error reply of the server. A pipelined Response wraps the original
+   * exception, so unwrap it to get at the plain "MOVED ..." message.
+   */
+  static String errorMessage(JedisException e) {
+    Throwable t = e;
+    while (t.getCause() instanceof JedisException) {
+      t = t.getCause();
+    }
+    return t.getMessage();
+  }
+
+  @Override
+  public String toString() {
+    return "RedisCluster{" + "seeds=" + seeds + ",masters=" + masters + ",nodes=" + nodes.keySet() + '}';
+  }
+}
@@ -0,0 +1,117 @@
+package nl.justobjects.pushlet.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import nl.justobjects.pushlet.core.Config;
+import nl.justobjects.pushlet.core.ConfigDefs;
+import nl.justobjects.pushlet.util.Log;
+
+/**
+ * Turns the fields of an event into the bytes stored in redis and back.
+ * The class is chosen with "redis.codec.class"; encodings above
+ * "redis.codec.compress.threshold" bytes are deflated.
+ *
+ * Every encoding starts with a byte that tells what it is ('{' JSON,
+ * {@link #TYPE_BINARY}, {@link #TYPE_DEFLATE}), and {@link #decode(byte[])}
+ * dispatches on it regardless of the configured codec, so queues written
+ * before a codec change stay readable.
+ */
+public abstract class RedisCodec {
+  public static final byte TYPE_JSON = '{';
+  public static final byte TYPE_BINARY = 0x01;
+  public static final byte TYPE_DEFLATE = 0x02;
+
+  /**
+   * Singleton pattern: single instance.
+   */
+  private static RedisCodec instance;
+  private static int compressThreshold = 0;
+
+  static {
+    try {
+      instance = (RedisCodec) Config.createObject(ConfigDefs.REDIS_CODEC_CLASS, "nl.justobjects.pushlet.redis.JsonCodec");
+      compressThreshold = Config.getIntProperty(ConfigDefs.REDIS_CODEC_COMPRESS_THRESHOLD, 0);
+    } catch (Throwable t) {
+      //@wjw_node 不能让instance为null,否则之后每次入队都在远离原因的地方抛NPE
+      Log.warn("Cannot instantiate RedisCodec from config, using JsonCodec", t);
+      instance = new JsonCodec();
+    }
+    Log.info("RedisCodec created className=" + instance.getClass() + " compressThreshold=" + compressThreshold);
+  }
+
+  /**
+   * Singleton pattern: get single instance.
+   */
+  public static RedisCodec getInstance() {
+    return instance;
+  }
+
+  /**
+   * Encode the fields, deflated when the encoding exceeds the threshold.
+   */
+  public byte[] encode(Map<String, String> fields) {
+    byte[] data = encodeFields(fields);
+    if (compressThreshold > 0 && data.length > compressThreshold) {
+      return deflate(data);
+    }
+    return data;
+  }
+
+  /**
+   * Decode bytes written by any codec.
+   */
+  public static Map<String, String> decode(byte[] data) {
+    switch (data[0]) {
+    case TYPE_DEFLATE:
+      return decode(inflate(data));
+    case TYPE_BINARY:
+      return BinaryCodec.decodeFields(data);
+    default:
+      return JsonCodec.decodeFields(data);
+    }
+  }
+
+  protected abstract byte[] encodeFields(Map<String, String> fields);
+
+  private static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+      out.write(TYPE_DEFLATE);
+      byte[] buf = new byte[1024];
+      while (!deflater.finished()) {
+        out.write(buf, 0, deflater.deflate(buf));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] data) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data, 1, data.length - 1);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+      byte[] buf = new byte[1024];
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buf);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalArgumentException("Truncated compressed event");
+        }
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Corrupt compressed event", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
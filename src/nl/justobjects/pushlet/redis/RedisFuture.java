@@ -0,0 +1,76 @@
+package nl.justobjects.pushlet.redis;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reply of a command that was handed to the auto-pipeline: the caller goes on
+ * and collects the reply later, so many commands can be in flight per node.
+ * Cannot be cancelled once submitted.
+ */
+public class RedisFuture<T> implements Future<T> {
+  private final CountDownLatch done = new CountDownLatch(1);
+  private final long submitNanos = System.nanoTime();
+  private volatile long doneNanos;
+  private volatile T value;
+  private volatile Throwable failure;
+
+  synchronized void complete(T aValue) {
+    if (isDone()) {
+      return;
+    }
+    value = aValue;
+    doneNanos = System.nanoTime();
+    done.countDown();
+  }
+
+  synchronized void fail(Throwable aFailure) {
+    if (isDone()) {
+      return;
+    }
+    failure = aFailure;
+    doneNanos = System.nanoTime();
+    done.countDown();
+  }
+
+  /**
+   * Nanoseconds from submit to reply, -1 while not done.
+   */
+  public long getLatencyNanos() {
+    return isDone() ? doneNanos - submitNanos : -1;
+  }
+
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  public boolean isCancelled() {
+    return false;
+  }
+
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  public T get() throws InterruptedException, ExecutionException {
+    done.await();
+    return getValue();
+  }
+
+  public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    if (done.await(timeout, unit) == false) {
+      throw new TimeoutException();
+    }
+    return getValue();
+  }
+
+  private T getValue() throws ExecutionException {
+    if (failure != null) {
+      throw new ExecutionException(failure);
+    }
+    return value;
+  }
+}
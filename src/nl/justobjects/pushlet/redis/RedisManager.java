@@ -1,12 +1,18 @@
 package nl.justobjects.pushlet.redis;
 
-import internal.org.apache.commons.pool.impl.GenericObjectPool;
-
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import nl.justobjects.pushlet.core.Config;
 import nl.justobjects.pushlet.core.ConfigDefs;
+import nl.justobjects.pushlet.util.Counter;
+import nl.justobjects.pushlet.util.Histogram;
 import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
 
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
@@ -15,27 +21,17 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 
-import internal.redis.clients.jedis.Jedis;
-import internal.redis.clients.jedis.JedisPool;
-import internal.redis.clients.jedis.JedisPoolConfig;
-import internal.redis.clients.jedis.JedisShardInfo;
-import internal.redis.clients.jedis.ShardedJedis;
-import internal.redis.clients.jedis.ShardedJedisPool;
-import internal.redis.clients.jedis.exceptions.JedisConnectionException;
-
-public class RedisManager {
+/**
+ * The redis commands the pushlet core needs. The implementation is chosen with
+ * "redismanager.class": {@link JedisRedisManager} (default) talks to redis
+ * servers, {@link MemoryRedisManager} keeps everything in this JVM so the core
+ * can be tested and benchmarked without a server.
+ */
+public abstract class RedisManager {
   public static final String REDIS_CHARSET = "UTF-8";
   //static final XStream _xstream = new XStream(new XppDriver());
   static final ObjectMapper _mapper = new ObjectMapper(); //@wjw_comment ObjectMapper是线程安全的
 
-  static ShardedJedisPool _shardedPool = null;
-  static JedisPool _pool = null;
-
-  static private boolean debug = false; //是否打开调试模式
-  static protected String serverlist = "127.0.0.1:6379"; //用逗号(,)分隔的"ip:port"列表
-  static protected int minConn = 5;
-  static protected int maxConn = 100;
-  static protected int socketTO = 6000;
   public static int pagesize = 100;
 
   /**
@@ -53,52 +49,9 @@ public class RedisManager {
       _mapper.configure(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES, true);
       //<-初始化Json
 
-      instance = (RedisManager) Config.getClass(ConfigDefs.REDIS_MANAGER_CLASS, "nl.justobjects.pushlet.redis.RedisManager").newInstance();
-      Log.info("RedisManager created className=" + instance.getClass());
-      debug = Config.getBoolProperty(ConfigDefs.REDIS_DEBUG);
-      serverlist = Config.getProperty(ConfigDefs.REDIS_SERVERLIST);
-      minConn = Config.getIntProperty(ConfigDefs.REDIS_MINCONN);
-      maxConn = Config.getIntProperty(ConfigDefs.REDIS_MAXCONN);
-      socketTO = Config.getIntProperty(ConfigDefs.REDIS_SOCKETTO);
       pagesize = Config.getIntProperty(ConfigDefs.REDIS_PAGESIZE) - 1;
-
-      JedisPoolConfig poolConfig = new JedisPoolConfig();
-      poolConfig.setMaxActive(maxConn);
-      poolConfig.setMinIdle(minConn);
-      int maxIdle = poolConfig.minIdle + 5;
-      if (maxIdle > poolConfig.maxActive) {
-        maxIdle = poolConfig.maxActive;
-      }
-      poolConfig.setMaxIdle(maxIdle);
-      poolConfig.setMaxWait(1000L);
-      poolConfig.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
-      poolConfig.setTestOnBorrow(false);
-      poolConfig.setTestOnReturn(false);
-      poolConfig.setTestWhileIdle(true);
-      poolConfig.setMinEvictableIdleTimeMillis(1000L * 60L * 10L); //空闲对象,空闲多长时间会被驱逐出池里
-      poolConfig.setTimeBetweenEvictionRunsMillis(1000L * 30L); //驱逐线程30秒执行一次
-      poolConfig.setNumTestsPerEvictionRun(-1); //-1,表示在驱逐线程执行时,测试所有的空闲对象
-
-      String[] servers = serverlist.split(",");
-      java.util.List<JedisShardInfo> shards = new java.util.ArrayList<JedisShardInfo>(servers.length);
-      for (int i = 0; i < servers.length; i++) {
-        String[] hostAndPort = servers[i].split(":");
-        JedisShardInfo shardInfo = new JedisShardInfo(hostAndPort[0], Integer.parseInt(hostAndPort[1]), socketTO);
-        if (hostAndPort.length == 3) {
-          shardInfo.setPassword(hostAndPort[2]);
-        }
-        shards.add(shardInfo);
-      }
-
-      if (shards.size() == 1) {
-        _pool = new JedisPool(poolConfig, shards.get(0).getHost(), shards.get(0).getPort(), shards.get(0).getTimeout(), shards.get(0).getPassword());
-        Log.info("使用:JedisPool");
-      } else {
-        _shardedPool = new ShardedJedisPool(poolConfig, shards);
-        Log.info("使用:ShardedJedisPool");
-      }
-
-      Log.info("RedisShards:" + shards.toString());
+      instance = (RedisManager) Config.getClass(ConfigDefs.REDIS_MANAGER_CLASS, "nl.justobjects.pushlet.redis.JedisRedisManager").newInstance();
+      Log.info("RedisManager created className=" + instance.getClass());
       Log.info("初始化RedisManager:" + instance.toString());
     } catch (Throwable t) {
       t.printStackTrace();
@@ -119,12 +72,6 @@ public class RedisManager {
     return instance;
   }
 
-  @Override
-  public String toString() {
-    return "RedisManager{" + "debug=" + debug + ",serverlist=" + serverlist + ",minConn=" + minConn + ",maxConn="
-        + maxConn + ",socketTO=" + socketTO + '}';
-  }
-
   //  public String toXML(Object obj) {
   //    return _xstream.toXML(obj);
   //  }
@@ -157,827 +104,172 @@ public class RedisManager {
     }
   }
 
-  //TODO@redis的基本操作
-  public java.util.Set<String> keys(String pattern) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.keys(pattern);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        byte[] bytesKey = pattern.getBytes(REDIS_CHARSET);
-        Jedis jedisA = jedis.getShard(bytesKey);
-        return jedisA.keys(pattern);
-      } catch (IOException e) {
-        throw new JedisConnectionException(e);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  //TODO@统计
+  //@wjw_node 按命令名缓存,每个命令只查一次Map,不拼接标签
+  private static final ConcurrentMap<String, Histogram> commandTimers = new ConcurrentHashMap<String, Histogram>();
+  private static final ConcurrentMap<String, Counter> commandErrors = new ConcurrentHashMap<String, Counter>();
 
-  public String get(String key) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.get(key);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.get(key);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
+  /**
+   * Latency of the command op ("redis_command" in {@link Metrics}); async
+   * commands are timed from submit to reply.
+   */
+  protected static Histogram commandTimer(String op) {
+    Histogram timer = commandTimers.get(op);
+    if (timer == null) {
+      timer = Metrics.timer("redis_command", "op", op);
+      commandTimers.put(op, timer);
     }
+    return timer;
   }
 
-  public String setex(String key, int seconds, String value) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.setex(key, seconds, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.setex(key, seconds, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
+  protected static Counter commandErrors(String op) {
+    Counter errors = commandErrors.get(op);
+    if (errors == null) {
+      errors = Metrics.counter("redis_command_errors", "op", op);
+      commandErrors.put(op, errors);
     }
+    return errors;
   }
 
-  public Long del(String key) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.del(key);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.del(key);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
+  /**
+   * Record a command that started at startNanos and has just returned.
+   */
+  protected static void recordCommand(String op, long startNanos, boolean failed) {
+    commandTimer(op).record(System.nanoTime() - startNanos);
+    if (failed) {
+      commandErrors(op).increment();
     }
   }
 
-  public Boolean exists(String key) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.exists(key);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.exists(key);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
+  //TODO@脚本
+  /**
+   * Run a Lua script. All keys must be on one node, i.e. share a "{...}" hash
+   * tag; the first key picks the node.
+   *
+   * @return the decoded reply, see {@link RedisScript}
+   */
+  public abstract Object eval(RedisScript script, List<String> keys, List<String> args);
 
-  }
+  /**
+   * Binary-safe {@link #eval}: byte[] arguments, and the reply is not decoded
+   * (bulk strings stay byte[], see {@link RedisScript}).
+   */
+  public abstract Object evalRaw(RedisScript script, List<String> keys, List<byte[]> args);
+
+  //TODO@redis的基本操作
+  /**
+   * All keys matching the pattern, on all nodes. Walks the keyspace with SCAN
+   * instead of the blocking KEYS, so redis keeps serving other clients.
+   */
+  public abstract java.util.Set<String> keys(String pattern);
+
+  public abstract String get(String key);
+
+  public abstract String setex(String key, int seconds, String value);
+
+  public abstract Long del(String key);
+
+  public abstract Boolean exists(String key);
 
   //TODO@Hash操作
-  public String hget(String hkey, String field) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.hget(hkey, field);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.hget(hkey, field);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract String hget(String hkey, String field);
 
-  public Long hset(String hkey, String field, String value) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.hset(hkey, field, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.hset(hkey, field, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long hset(String hkey, String field, String value);
 
-  public Long hsetnx(String hkey, String field, String value) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.hsetnx(hkey, field, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.hsetnx(hkey, field, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long hsetnx(String hkey, String field, String value);
 
-  public Long hdel(String hkey, String field) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.hdel(hkey, field);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.hdel(hkey, field);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long hdel(String hkey, String field);
 
-  public java.util.Map<String, String> hgetAll(String hkey) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.hgetAll(hkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.hgetAll(hkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract java.util.Map<String, String> hgetAll(String hkey);
 
-  public String hmset(String hkey, java.util.Map<String, String> hash) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-
-        return jedis.hmset(hkey, hash);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-
-        return jedis.hmset(hkey, hash);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
+  public abstract String hmset(String hkey, java.util.Map<String, String> hash);
 
-  }
+  public abstract java.util.List<String> hmget(String hkey, String... fields);
 
-  public Long hlen(String hkey) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.hlen(hkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.hlen(hkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long hlen(String hkey);
 
-  public java.util.Set<String> hkeys(String hkey) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.hkeys(hkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.hkeys(hkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract java.util.Set<String> hkeys(String hkey);
 
-  public java.util.List<String> hvals(String hkey) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.hvals(hkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.hvals(hkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract java.util.List<String> hvals(String hkey);
 
-  public Boolean hexists(String hkey, String field) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.hexists(hkey, field);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.hexists(hkey, field);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Boolean hexists(String hkey, String field);
 
   //TODO@List操作
-  public Long lpush(String lkey, String value) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.lpush(lkey, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.lpush(lkey, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long lpush(String lkey, String value);
 
-  public String lpop(String lkey) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.lpop(lkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.lpop(lkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract String lpop(String lkey);
 
-  public Long llen(String lkey) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.llen(lkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.llen(lkey);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long llen(String lkey);
 
-  public java.util.List<String> lrange(String lkey, int start, int end) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.lrange(lkey, start, end);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.lrange(lkey, start, end);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract java.util.List<String> lrange(String lkey, int start, int end);
 
-  public Long lrem(String lkey, int count, String value) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.lrem(lkey, count, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.lrem(lkey, count, value);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long lrem(String lkey, int count, String value);
+
+  //@wjw_node 二进制安全的List操作,值由RedisCodec编码
+  public abstract Long lpush(String lkey, byte[] value);
+
+  public abstract byte[] lpopBytes(String lkey);
 
   //TODO@Set操作
-  public Boolean sismember(String skey, String member) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.sismember(skey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.sismember(skey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Boolean sismember(String skey, String member);
 
-  public Long sadd(String skey, String member) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.sadd(skey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.sadd(skey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long sadd(String skey, String member);
 
-  public Long srem(String skey, String member) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.srem(skey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.srem(skey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long srem(String skey, String member);
 
   //TODO@sort_set
-  public Long zadd(String zkey, double score, String member) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.zadd(zkey, score, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.zadd(zkey, score, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long zadd(String zkey, double score, String member);
 
-  public Long zrem(String zkey, String member) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.zrem(zkey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.zrem(zkey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long zrem(String zkey, String member);
 
-  public Double zscore(String zkey, String member) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.zscore(zkey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.zscore(zkey, member);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Double zscore(String zkey, String member);
 
-  public java.util.Set<String> zrange(String zkey, int start, int end) {
-    if (_pool != null) {
-      Jedis jedis = null;
-      try {
-        jedis = _pool.getResource();
-        return jedis.zrange(zkey, start, end);
-      } finally {
-        if (jedis != null) {
-          try {
-            _pool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    } else {
-      ShardedJedis jedis = null;
-      try {
-        jedis = _shardedPool.getResource();
-        return jedis.zrange(zkey, start, end);
-      } finally {
-        if (jedis != null) {
-          try {
-            _shardedPool.returnResource(jedis);
-          } catch (Throwable thex) {
-          }
-        }
-      }
-    }
-  }
+  public abstract Long zcard(String zkey);
+
+  public abstract java.util.Set<String> zrange(String zkey, int start, int end);
+
+  //TODO@异步操作
+  /**
+   * Returns at once; the reply arrives in the future.
+   */
+  public abstract RedisFuture<Long> lpushAsync(String lkey, String value);
+
+  public abstract RedisFuture<Object> evalAsync(RedisScript script, List<String> keys, List<String> args);
+
+  /**
+   * Binary-safe {@link #evalAsync}: byte[] arguments, undecoded reply.
+   */
+  public abstract RedisFuture<Object> evalRawAsync(RedisScript script, List<String> keys, List<byte[]> args);
+
+  //TODO@游标遍历
+  /**
+   * One SCAN step over the keys of all nodes.
+   *
+   * @param cursor
+   *          "0" to start, then the cursor of the previous result
+   */
+  public abstract ScanResult<String> scan(String cursor, String pattern, int count);
+
+  /**
+   * One ZSCAN step; returns only the members, not their scores.
+   */
+  public abstract ScanResult<String> zscan(String zkey, String cursor, int count);
+
+  /**
+   * One HSCAN step; returns field/value entries.
+   */
+  public abstract ScanResult<Map.Entry<String, String>> hscan(String hkey, String cursor, int count);
+
+  //TODO@批量操作
+  /**
+   * Batch HGET: hkeyFields maps each hash key to the field to read; the result
+   * maps each hash key to its value (keys with a missing field are left out).
+   */
+  public abstract Map<String, String> hget(Map<String, String> hkeyFields);
+
+  /**
+   * Batch HGETALL: the result maps each hash key to its (possibly empty) hash.
+   */
+  public abstract Map<String, Map<String, String>> hgetAll(Collection<String> hkeys);
 
 }
@@ -0,0 +1,148 @@
+package nl.justobjects.pushlet.redis;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import internal.redis.clients.jedis.Jedis;
+import internal.redis.clients.jedis.exceptions.JedisDataException;
+import internal.redis.clients.jedis.exceptions.JedisException;
+import internal.redis.clients.util.SafeEncoder;
+
+/**
+ * A Lua script that is sent by its SHA1 (EVALSHA) and only falls back to the
+ * full source (EVAL) when the server answers NOSCRIPT, e.g. after a restart
+ * or on a cluster node that has not seen it yet.
+ *
+ * All KEYS of one call must live on the same node: in sharded and cluster mode
+ * give them the same "{...}" hash tag.
+ */
+public class RedisScript {
+  /**
+   * The script written in Java, for {@link MemoryRedisManager} which has no
+   * Lua. It runs atomically like the script and replies the same way: byte[]
+   * for bulk strings, Long for integers, List for tables and null for nil.
+   */
+  public interface Emulation {
+    Object eval(MemoryStore redis, List<String> keys, List<byte[]> args);
+  }
+
+  private final String script;
+  private final String sha1;
+  private final Emulation emulation;
+
+  public RedisScript(String script) {
+    this(script, null);
+  }
+
+  public RedisScript(String script, Emulation emulation) {
+    this.script = script;
+    this.sha1 = sha1Hex(script);
+    this.emulation = emulation;
+  }
+
+  public String getScript() {
+    return script;
+  }
+
+  public String getSha1() {
+    return sha1;
+  }
+
+  public Emulation getEmulation() {
+    return emulation;
+  }
+
+  /**
+   * Run the script on a connection. The reply is decoded: bulk strings become
+   * String, integers Long, multi-bulk replies (nested) List and nil null.
+   */
+  Object eval(Jedis jedis, List<String> keys, List<String> args) {
+    return decode(evalRaw(jedis, keys, toBytes(args)));
+  }
+
+  /**
+   * Binary-safe variant: the reply is not decoded, bulk strings stay byte[].
+   */
+  Object evalRaw(Jedis jedis, List<String> keys, List<byte[]> args) {
+    byte[] keyCount = SafeEncoder.encode(String.valueOf(keys.size()));
+    byte[][] params = params(keys, args);
+
+    //@wjw_node 不用Jedis.eval(),它会把socket超时设成无限而不恢复,并且只能解码字符串列表
+    try {
+      jedis.getClient().evalsha(getSha1Bytes(), keyCount, params);
+      return jedis.getClient().getOne();
+    } catch (JedisDataException e) {
+      if (isNoScript(e) == false) {
+        throw e;
+      }
+    }
+    jedis.getClient().eval(SafeEncoder.encode(script), keyCount, params);
+    return jedis.getClient().getOne();
+  }
+
+  byte[] getSha1Bytes() {
+    return SafeEncoder.encode(sha1);
+  }
+
+  static byte[][] params(List<String> keys, List<byte[]> args) {
+    byte[][] params = new byte[keys.size() + args.size()][];
+    int i = 0;
+    for (String key : keys) {
+      params[i++] = SafeEncoder.encode(key);
+    }
+    for (byte[] arg : args) {
+      params[i++] = arg;
+    }
+    return params;
+  }
+
+  static List<byte[]> toBytes(List<String> args) {
+    List<byte[]> result = new ArrayList<byte[]>(args.size());
+    for (String arg : args) {
+      result.add(SafeEncoder.encode(arg));
+    }
+    return result;
+  }
+
+  /**
+   * True for the NOSCRIPT error, also when wrapped by a pipelined Response.
+   */
+  static boolean isNoScript(JedisException e) {
+    String message = RedisCluster.errorMessage(e);
+    return message != null && message.startsWith("NOSCRIPT");
+  }
+
+  static Object decode(Object reply) {
+    if (reply instanceof byte[]) {
+      return SafeEncoder.encode((byte[]) reply);
+    }
+    if (reply instanceof List) {
+      List<?> replies = (List<?>) reply;
+      List<Object> result = new ArrayList<Object>(replies.size());
+      for (Object oneReply : replies) {
+        result.add(decode(oneReply));
+      }
+      return result;
+    }
+    return reply;
+  }
+
+  static String sha1Hex(String content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(content.getBytes(RedisManager.REDIS_CHARSET));
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (Exception e) {
+      throw new JedisException("Cannot compute SHA1 of script", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RedisScript{" + "sha1=" + sha1 + '}';
+  }
+}
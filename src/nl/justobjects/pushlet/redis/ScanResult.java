@@ -0,0 +1,38 @@
+package nl.justobjects.pushlet.redis;
+
+import java.util.List;
+
+/**
+ * One step of a SCAN/ZSCAN/HSCAN cursor walk: the elements of this step and
+ * the cursor to pass to the next call. The walk is complete when the returned
+ * cursor is "0" again. An element may be returned more than once, callers
+ * that need each element once must de-duplicate.
+ */
+public class ScanResult<T> {
+  public static final String SCAN_POINTER_START = "0";
+
+  private final String cursor;
+  private final List<T> result;
+
+  public ScanResult(String cursor, List<T> result) {
+    this.cursor = cursor;
+    this.result = result;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public List<T> getResult() {
+    return result;
+  }
+
+  public boolean isCompleteIteration() {
+    return SCAN_POINTER_START.equals(cursor);
+  }
+
+  @Override
+  public String toString() {
+    return "ScanResult{" + "cursor=" + cursor + ",result=" + result + '}';
+  }
+}
@@ -0,0 +1,48 @@
+package nl.justobjects.pushlet.redis;
+
+import java.util.List;
+
+import internal.redis.clients.jedis.Builder;
+import internal.redis.clients.jedis.Client;
+import internal.redis.clients.jedis.Jedis;
+import internal.redis.clients.jedis.Pipeline;
+import internal.redis.clients.jedis.Response;
+import internal.redis.clients.util.SafeEncoder;
+
+/**
+ * Pipeline that can also queue EVALSHA, which the bundled Jedis pipeline
+ * lacks. Replies are decoded like {@link RedisScript#eval}.
+ */
+class ScriptPipeline extends Pipeline {
+  private static final Builder<Object> DECODER = new Builder<Object>() {
+    public Object build(Object data) {
+      return RedisScript.decode(data);
+    }
+  };
+  private static final Builder<Object> RAW = new Builder<Object>() {
+    public Object build(Object data) {
+      return data;
+    }
+  };
+
+  private Client client;
+
+  ScriptPipeline(Jedis jedis) {
+    setClient(jedis.getClient());
+  }
+
+  @Override
+  public void setClient(Client client) {
+    super.setClient(client);
+    this.client = client;
+  }
+
+  /**
+   * @param raw
+   *          true to leave the reply undecoded (bulk strings as byte[])
+   */
+  Response<Object> evalsha(RedisScript script, List<String> keys, List<byte[]> args, boolean raw) {
+    client.evalsha(script.getSha1Bytes(), SafeEncoder.encode(String.valueOf(keys.size())), RedisScript.params(keys, args));
+    return getResponse(raw ? RAW : DECODER);
+  }
+}
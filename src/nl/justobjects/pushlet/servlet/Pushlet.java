@@ -5,6 +5,7 @@ package nl.justobjects.pushlet.servlet;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Writer;
 import java.util.Enumeration;
 
 import javax.servlet.ServletException;
@@ -19,10 +20,13 @@ import nl.justobjects.pushlet.core.Dispatcher;
 import nl.justobjects.pushlet.core.Event;
 import nl.justobjects.pushlet.core.EventParser;
 import nl.justobjects.pushlet.core.EventSourceManager;
+import nl.justobjects.pushlet.core.EventTrace;
 import nl.justobjects.pushlet.core.Protocol;
 import nl.justobjects.pushlet.core.Session;
 import nl.justobjects.pushlet.core.SessionManager;
 import nl.justobjects.pushlet.util.Log;
+import nl.justobjects.pushlet.util.Metrics;
+import nl.justobjects.pushlet.util.OpenMetrics;
 import nl.justobjects.pushlet.util.Servlets;
 
 /**
@@ -40,6 +44,8 @@ public class Pushlet extends HttpServlet implements Protocol {
       Config.load(webInfPath);
 
       Log.init();
+      Metrics.init();
+      EventTrace.init();
 
       // Start
       Log.info("init() Pushlet Webapp - version=" + Version.SOFTWARE_VERSION + " built=" + Version.BUILD_DATE);
@@ -75,6 +81,9 @@ public class Pushlet extends HttpServlet implements Protocol {
 
     // Should stop all sessions
     SessionManager.getInstance().stop();
+
+    // Stop watching pushlet.properties
+    Config.stop();
   }
 
   /**
@@ -151,6 +160,14 @@ public class Pushlet extends HttpServlet implements Protocol {
   protected void doRequest(Event anEvent, HttpServletRequest request, HttpServletResponse response) {
     // Must have valid event type.
     String eventType = anEvent.getEventType();
+    if (eventType.equals(Protocol.E_METRICS)) {
+      doMetrics(response);
+      return;
+    }
+    if (eventType.startsWith(Protocol.E_PUBLISH)) {
+      EventTrace.stamp(anEvent, EventTrace.INGRESS);
+    }
+
     try {
       // Get Session: either by creating (on Join eventType)
       // or by id (any other eventType, since client is supposed to have joined).
@@ -202,4 +219,20 @@ public class Pushlet extends HttpServlet implements Protocol {
     }
 
   }
+
+  /**
+   * Metrics of this node for a scrape, see {@link OpenMetrics}.
+   */
+  protected void doMetrics(HttpServletResponse response) {
+    try {
+      response.setContentType(OpenMetrics.CONTENT_TYPE);
+      response.setHeader("Cache-Control", "no-cache");
+      Writer out = response.getWriter();
+      OpenMetrics.write(out);
+      out.flush();
+    } catch (Throwable t) {
+      Log.warn("Pushlets:  Exception in doMetrics()", t);
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
 }
@@ -0,0 +1,143 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.test;
+
+import nl.justobjects.pushlet.core.Event;
+import nl.justobjects.pushlet.core.EventFilter;
+import nl.justobjects.pushlet.util.PushletException;
+
+/**
+ * Checks the "p_filter" expressions of {@link EventFilter} against a fixed
+ * event: syntax errors, comparisons, precedence and quoting. Prints every
+ * failure and exits with 1 when there is one.
+ */
+public class FilterTester {
+  private final Event event;
+  private int failures = 0;
+
+  public FilterTester() {
+    event = Event.createDataEvent("/stocks/aex");
+    event.setField("name", "abn amro");
+    event.setField("rate", "51.5");
+    event.setField("volume", "120");
+    event.setField("code", "AB-7");
+    event.setField("dot", ".");
+    event.setField("sign", "-");
+  }
+
+  public void run() {
+    // Comparisons: numeric when both sides are numbers, else on the strings
+    check("rate>50", true);
+    check("rate>=51.5", true);
+    check("rate<51.5", false);
+    check("rate<=51.5", true);
+    check("rate=51.50", true);
+    check("rate==51.5", true);
+    check("rate!=51.5", false);
+    check("volume>99", true); // 120 > 99 as numbers, not as strings
+    check("volume>'99'", true); // a quoted number still compares as number
+    check("code>AB", true);
+    check("code=AB-7", true);
+    check("volume>-1", true);
+    check("volume>+1", true);
+
+    // String operators
+    check("name^='abn'", true);
+    check("name$=\"amro\"", true);
+    check("name*='n a'", true);
+    check("name^=amro", false);
+
+    // A missing field matches nothing but !=
+    check("missing=1", false);
+    check("missing>1", false);
+    check("missing!=1", true);
+
+    // Numbers need a digit: "." and "-" are strings, not 0
+    check("dot=0", false);
+    check("dot='.'", true);
+    check("sign=0", false);
+    check("sign<0", true);
+    check("rate>.", true);
+
+    // && binds stronger than ||, ! stronger than both
+    check("rate>60 && volume>1 || name^=abn", true);
+    check("rate>60 && (volume>1 || name^=abn)", false);
+    check("name^=abn || rate>60 && volume>1000", true);
+    check("(name^=abn || rate>60) && volume>1000", false);
+    check("!rate>60", true);
+    check("!(rate>50 && volume>100)", false);
+    check("!!rate>50", true);
+    check("  rate > 50  &&  name ^= 'abn'  ", true);
+
+    // Quoting: operators and spaces inside quotes are part of the value
+    check("name='abn amro'", true);
+    check("name=\"abn amro\"", true);
+    check("name!='a && b'", true);
+    check("name*=\"'\"", false);
+    check("name=''", false);
+
+    // Syntax errors
+    error("");
+    error("rate");
+    error("rate>");
+    error("rate>50 &&");
+    error("rate>50 ||");
+    error("(rate>50");
+    error("rate>50)");
+    error("name='abn");
+    error("name=\"abn'");
+    error("&& rate>50");
+    error("rate>50 rate<60");
+    error("rate>50 & volume>1");
+    error("rate>50 | volume>1");
+
+    // Unknown operators
+    error("rate~50");
+    error("rate=>50");
+    error("rate<>50");
+    error("rate!50");
+    error("rate===50");
+    error("name%='abn'");
+
+    p(failures == 0 ? "all filters OK" : failures + " failures");
+  }
+
+  private void check(String expression, boolean expected) {
+    try {
+      boolean matches = EventFilter.compile(expression).matches(event);
+      if (matches != expected) {
+        fail(expression + " gives " + matches + ", expected " + expected);
+      }
+    } catch (PushletException e) {
+      fail(expression + " gives " + e.getMessage() + ", expected " + expected);
+    }
+  }
+
+  private void error(String expression) {
+    try {
+      EventFilter.compile(expression);
+      fail(expression + " compiles, expected a syntax error");
+    } catch (PushletException e) {
+      // expected
+    }
+  }
+
+  private void fail(String s) {
+    failures++;
+    p("FAIL " + s);
+  }
+
+  public void p(String s) {
+    System.out.println("[FilterTester] " + s);
+  }
+
+  /**
+   * Main program.
+   */
+  public static void main(String args[]) {
+    FilterTester tester = new FilterTester();
+    tester.run();
+    System.exit(tester.failures == 0 ? 0 : 1);
+  }
+}
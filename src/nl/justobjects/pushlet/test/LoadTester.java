@@ -0,0 +1,622 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.justobjects.pushlet.client.PushletClient;
+import nl.justobjects.pushlet.core.Event;
+import nl.justobjects.pushlet.core.EventParser;
+import nl.justobjects.pushlet.core.Protocol;
+import nl.justobjects.pushlet.util.Histogram;
+
+/**
+ * Load generator for capacity planning: simulates thousands of subscribers
+ * and a publisher against a running pushlet server and measures end-to-end
+ * latency from publish to delivery.
+ * <p/>
+ * All subscriber connections share one NIO selector thread, so the number of
+ * simulated clients is not bound by threads. Subscribers are spread over the
+ * stream, pull and poll modes by weight and speak the XML format; pull and
+ * poll clients follow the refresh events like the JavaScript client does.
+ * <p/>
+ * The publisher runs open loop (a fixed rate, the stamp of each event being
+ * its intended send time so a stalled server shows up as latency rather than
+ * as fewer samples) or closed loop (a number of publishers each sending the
+ * next event when the previous one is acknowledged). The harness publishes
+ * and receives in the same JVM, so events carry System.nanoTime().
+ * <p/>
+ * Options are name=value arguments, e.g.
+ * <pre>
+ * java nl.justobjects.pushlet.test.LoadTester url=http://localhost:8080/pushlet/pushlet.srv \
+ *      subscribers=5000 modes=stream:3,pull:1,poll:1 loop=open rate=200 duration=60 report=csv out=load.csv
+ * </pre>
+ * The report has one row per mode and one for all subscribers: events
+ * published and delivered, errors and the latency percentiles in
+ * microseconds.
+ */
+public class LoadTester implements Protocol {
+  private static final String USER_AGENT = "pushlet-loadtester java";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final String LATENCY_FIELD = "t";
+
+  private final Map<String, String> options = new LinkedHashMap<String, String>();
+  private URL url;
+  private String subject;
+  private String payload;
+
+  private Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "LoadTester-timer");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private volatile boolean running = true;
+  private volatile boolean publishing = true;
+
+  private final List<SimSubscriber> subscribers = new ArrayList<SimSubscriber>();
+  private final Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+  private final Stats total = new Stats("all");
+
+  private String publisherId;
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong publishErrors = new AtomicLong();
+  private final AtomicLong seqNr = new AtomicLong();
+
+  /**
+   * Counters and latencies of a group of subscribers.
+   */
+  static class Stats {
+    final String name;
+    int subscribers;
+    final AtomicLong delivered = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong reconnects = new AtomicLong();
+    final Histogram latency = new Histogram();
+
+    Stats(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Gets the events parsed from a response and the end of the response.
+   */
+  interface ResponseHandler {
+    void onEvent(Event anEvent);
+
+    void onClose(boolean ok);
+  }
+
+  public LoadTester(String[] args) {
+    options.put("url", "http://localhost:8080/pushlet/pushlet.srv");
+    options.put("subject", "/test/load");
+    options.put("subscribers", "1000");
+    options.put("modes", "stream:1");
+    options.put("rampup", "10");
+    options.put("loop", "open");
+    options.put("rate", "100");
+    options.put("publishers", "4");
+    options.put("payload", "0");
+    options.put("duration", "60");
+    options.put("drain", "5");
+    options.put("report", "csv");
+    options.put("out", "");
+
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq <= 0 || !options.containsKey(arg.substring(0, eq))) {
+        throw new IllegalArgumentException("Unknown option: " + arg + ", options are " + options.keySet());
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+  }
+
+  public void run() throws Exception {
+    url = new URL(options.get("url"));
+    subject = options.get("subject");
+    StringBuilder sb = new StringBuilder();
+    for (int i = Integer.parseInt(options.get("payload")); i > 0; i--) {
+      sb.append('x');
+    }
+    payload = sb.toString();
+    selector = Selector.open();
+
+    Thread reactor = new Thread(new Runnable() {
+      public void run() {
+        react();
+      }
+    }, "LoadTester-reactor");
+    reactor.start();
+
+    // The publisher is a single session; it only has to join once
+    PushletClient publisher = new PushletClient(options.get("url"));
+    publisher.join();
+    publisherId = publisher.getId();
+
+    startSubscribers();
+    p("started " + subscribers.size() + " subscribers over " + options.get("rampup") + "s, options=" + options);
+    Thread.sleep(Long.parseLong(options.get("rampup")) * 1000L);
+
+    long durationMillis = Long.parseLong(options.get("duration")) * 1000L;
+    long start = System.currentTimeMillis();
+    startPublishing();
+    while (System.currentTimeMillis() - start < durationMillis) {
+      Thread.sleep(Math.min(5000, durationMillis - (System.currentTimeMillis() - start)));
+      p("published=" + published.get() + " delivered=" + total.delivered.get() + " latency(us) " + total.latency);
+    }
+    publishing = false;
+
+    // Let the events in flight arrive before counting
+    Thread.sleep(Long.parseLong(options.get("drain")) * 1000L);
+    long elapsedMillis = System.currentTimeMillis() - start;
+    report(elapsedMillis);
+
+    for (final SimSubscriber subscriber : subscribers) {
+      execute(new Runnable() {
+        public void run() {
+          subscriber.leave();
+        }
+      });
+    }
+    publisher.leave(true);
+    Thread.sleep(1000);
+    running = false;
+    selector.wakeup();
+    reactor.join();
+  }
+
+  private void startSubscribers() {
+    int count = Integer.parseInt(options.get("subscribers"));
+    List<String> modes = new ArrayList<String>();
+    for (String weighted : options.get("modes").split(",")) {
+      String[] modeAndWeight = weighted.split(":");
+      int weight = modeAndWeight.length > 1 ? Integer.parseInt(modeAndWeight[1]) : 1;
+      for (int i = 0; i < weight; i++) {
+        modes.add(modeAndWeight[0]);
+      }
+      stats.put(modeAndWeight[0], new Stats(modeAndWeight[0]));
+    }
+
+    long rampUpNanos = Long.parseLong(options.get("rampup")) * 1000000000L;
+    for (int i = 0; i < count; i++) {
+      String mode = modes.get(i % modes.size());
+      final SimSubscriber subscriber = new SimSubscriber(mode, stats.get(mode));
+      subscribers.add(subscriber);
+      stats.get(mode).subscribers++;
+      total.subscribers++;
+      timer.schedule(new Runnable() {
+        public void run() {
+          execute(new Runnable() {
+            public void run() {
+              subscriber.join();
+            }
+          });
+        }
+      }, rampUpNanos * i / count, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void startPublishing() {
+    if (options.get("loop").equals("closed")) {
+      for (int i = Integer.parseInt(options.get("publishers")); i > 0; i--) {
+        execute(new Runnable() {
+          public void run() {
+            publishClosedLoop();
+          }
+        });
+      }
+      return;
+    }
+
+    final long periodNanos = (long) (1000000000L / Double.parseDouble(options.get("rate")));
+    final long startNanos = System.nanoTime();
+    timer.scheduleAtFixedRate(new Runnable() {
+      private long intended = startNanos;
+
+      public void run() {
+        if (!publishing) {
+          throw new IllegalStateException("done"); //@wjw_node 抛异常结束scheduleAtFixedRate
+        }
+        //@wjw_node 按计划的时间打戳,服务端卡住时算作延迟,而不是少发了事件(coordinated omission)
+        final long stamp = intended;
+        intended += periodNanos;
+        execute(new Runnable() {
+          public void run() {
+            publish(stamp, null);
+          }
+        });
+      }
+    }, 0, periodNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void publishClosedLoop() {
+    if (!publishing) {
+      return;
+    }
+    publish(System.nanoTime(), new Runnable() {
+      public void run() {
+        publishClosedLoop();
+      }
+    });
+  }
+
+  /**
+   * Publish one event stamped with the given nanoTime; then run next, if any.
+   */
+  private void publish(long stamp, final Runnable next) {
+    String query = P_EVENT + "=" + E_PUBLISH + "&" + P_ID + "=" + encode(publisherId) + "&" + P_SUBJECT + "="
+        + encode(subject) + "&" + P_FORMAT + "=" + FORMAT_XML + "&" + LATENCY_FIELD + "=" + stamp + "&seqNr="
+        + seqNr.incrementAndGet() + (payload.length() > 0 ? "&payload=" + payload : "");
+    request(url.getPath() + "?" + query, new ResponseHandler() {
+      private boolean acked = false;
+
+      public void onEvent(Event anEvent) {
+        acked = acked || E_PUBLISH_ACK.equals(anEvent.getEventType());
+      }
+
+      public void onClose(boolean ok) {
+        if (ok && acked) {
+          published.incrementAndGet();
+        } else {
+          publishErrors.incrementAndGet();
+        }
+        if (next != null) {
+          next.run();
+        }
+      }
+    });
+  }
+
+  /**
+   * A simulated client: joins and listens in its mode, follows refreshes and
+   * rejoins when its connection is lost.
+   */
+  private class SimSubscriber implements ResponseHandler {
+    private final String mode;
+    private final Stats modeStats;
+    private String id;
+    private String refreshPath;
+    private long refreshWait;
+
+    SimSubscriber(String mode, Stats modeStats) {
+      this.mode = mode;
+      this.modeStats = modeStats;
+    }
+
+    void join() {
+      id = null;
+      request(url.getPath() + "?" + P_EVENT + "=" + E_JOIN_LISTEN + "&" + P_FORMAT + "=" + FORMAT_XML + "&" + P_MODE
+          + "=" + mode + "&" + P_SUBJECT + "=" + encode(subject), this);
+    }
+
+    void leave() {
+      if (id != null) {
+        request(url.getPath() + "?" + P_EVENT + "=" + E_LEAVE + "&" + P_ID + "=" + encode(id), null);
+        id = null;
+      }
+    }
+
+    public void onEvent(Event anEvent) {
+      String eventType = anEvent.getEventType();
+      if (eventType.equals(E_DATA)) {
+        String stamp = anEvent.getField(LATENCY_FIELD);
+        if (stamp != null) {
+          long micros = (System.nanoTime() - Long.parseLong(stamp)) / 1000;
+          modeStats.latency.record(micros);
+          modeStats.delivered.incrementAndGet();
+          total.latency.record(micros);
+          total.delivered.incrementAndGet();
+        }
+      } else if (eventType.equals(E_JOIN_LISTEN_ACK)) {
+        id = anEvent.getField(P_ID);
+      } else if (eventType.equals(E_REFRESH)) {
+        refreshPath = anEvent.getField(P_URL);
+        refreshWait = Long.parseLong(anEvent.getField(P_WAIT, "0"));
+      } else if (eventType.equals(E_ABORT)) {
+        id = null;
+      }
+    }
+
+    public void onClose(boolean ok) {
+      if (!running || !publishing && id == null) {
+        return;
+      }
+
+      Runnable next;
+      long delay;
+      if (ok && refreshPath != null && id != null) {
+        final String path = refreshPath;
+        refreshPath = null;
+        next = new Runnable() {
+          public void run() {
+            request(path, SimSubscriber.this);
+          }
+        };
+        delay = refreshWait;
+      } else {
+        if (!ok) {
+          modeStats.errors.incrementAndGet();
+          total.errors.incrementAndGet();
+        }
+        modeStats.reconnects.incrementAndGet();
+        total.reconnects.incrementAndGet();
+        next = new Runnable() {
+          public void run() {
+            join();
+          }
+        };
+        delay = 1000;
+      }
+
+      final Runnable task = next;
+      timer.schedule(new Runnable() {
+        public void run() {
+          execute(task);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * One HTTP/1.0 request; the response is read until the server closes the
+   * connection, which for a stream is the end of the session.
+   */
+  private class Connection {
+    final SocketChannel channel;
+    final ByteBuffer request;
+    final ResponseHandler handler;
+    final CharsetDecoder decoder = UTF8.newDecoder();
+    final StringBuilder text = new StringBuilder(512);
+    int bodyStart = -1;
+    int parsed = 0;
+    boolean ok = false;
+
+    Connection(SocketChannel channel, String aPath, ResponseHandler handler) {
+      this.channel = channel;
+      this.handler = handler;
+      String host = url.getHost() + (url.getPort() > 0 ? ":" + url.getPort() : "");
+      request = ByteBuffer.wrap(("GET " + aPath + " HTTP/1.0\r\nHost: " + host + "\r\nUser-Agent: " + USER_AGENT
+          + "\r\nConnection: close\r\n\r\n").getBytes(UTF8));
+    }
+
+    void onRead(ByteBuffer data) {
+      CharBuffer chars = CharBuffer.allocate(data.remaining());
+      decoder.decode(data, chars, false);
+      chars.flip();
+      text.append(chars);
+
+      if (bodyStart < 0) {
+        int end = text.indexOf("\r\n\r\n");
+        if (end < 0) {
+          return;
+        }
+        ok = text.indexOf(" 200") == text.indexOf(" ");
+        bodyStart = end + 4;
+        parsed = bodyStart;
+      }
+
+      while (true) {
+        int start = text.indexOf("<event", parsed);
+        int end = start < 0 ? -1 : text.indexOf("/>", start);
+        if (end < 0) {
+          break;
+        }
+        parsed = end + 2;
+        if (handler != null) {
+          try {
+            handler.onEvent(EventParser.parse(text.substring(start, parsed)));
+          } catch (IOException e) {
+            ok = false;
+          }
+        }
+      }
+
+      //@wjw_node 流模式的响应不会结束,丢掉已解析的部分
+      if (parsed > 8192) {
+        text.delete(0, parsed);
+        parsed = 0;
+        bodyStart = 0;
+      }
+    }
+
+    void close(boolean error) {
+      try {
+        channel.close();
+      } catch (IOException ignore) {
+      }
+      if (handler != null) {
+        handler.onClose(ok && !error);
+      }
+    }
+  }
+
+  /**
+   * Open a connection for the request; only called on the reactor thread.
+   */
+  private void request(String aPath, ResponseHandler handler) {
+    Connection connection = null;
+    try {
+      SocketChannel channel = SocketChannel.open();
+      connection = new Connection(channel, aPath, handler);
+      channel.configureBlocking(false);
+      channel.connect(new InetSocketAddress(url.getHost(), url.getPort() > 0 ? url.getPort() : 80));
+      channel.register(selector, SelectionKey.OP_CONNECT, connection);
+    } catch (IOException e) {
+      if (connection != null) {
+        connection.close(true);
+      } else if (handler != null) {
+        handler.onClose(false);
+      }
+    }
+  }
+
+  /**
+   * Run the task on the reactor thread.
+   */
+  private void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  private void react() {
+    while (running) {
+      try {
+        selector.select(1000);
+        for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+          task.run();
+        }
+
+        for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext();) {
+          SelectionKey key = iter.next();
+          iter.remove();
+          handle(key);
+        }
+      } catch (Throwable t) {
+        err("reactor error", t);
+      }
+    }
+
+    for (SelectionKey key : selector.keys()) {
+      ((Connection) key.attachment()).close(true);
+    }
+  }
+
+  private void handle(SelectionKey key) {
+    Connection connection = (Connection) key.attachment();
+    try {
+      if (key.isConnectable()) {
+        connection.channel.finishConnect();
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else if (key.isWritable()) {
+        connection.channel.write(connection.request);
+        if (!connection.request.hasRemaining()) {
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      } else if (key.isReadable()) {
+        readBuffer.clear();
+        int n = connection.channel.read(readBuffer);
+        if (n < 0) {
+          key.cancel();
+          connection.close(false);
+          return;
+        }
+        readBuffer.flip();
+        connection.onRead(readBuffer);
+      }
+    } catch (IOException e) {
+      key.cancel();
+      connection.close(true);
+    }
+  }
+
+  private void report(long elapsedMillis) throws IOException {
+    List<Stats> rows = new ArrayList<Stats>(stats.values());
+    rows.add(total);
+
+    String out = options.get("out");
+    PrintWriter writer = out.length() == 0 ? new PrintWriter(System.out) : new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(out), UTF8));
+    try {
+      boolean json = options.get("report").equals("json");
+      if (json) {
+        writer.println("{\"options\": {");
+        int i = 0;
+        for (Map.Entry<String, String> option : options.entrySet()) {
+          writer.println("  \"" + option.getKey() + "\": \"" + option.getValue() + "\""
+              + (++i < options.size() ? "," : ""));
+        }
+        writer.println("}, \"elapsedMillis\": " + elapsedMillis + ", \"published\": " + published.get()
+            + ", \"publishErrors\": " + publishErrors.get() + ", \"results\": [");
+      } else {
+        writer.println("mode,subscribers,published,publishErrors,delivered,expected,errors,reconnects,"
+            + "deliveredPerSec,meanUs,p50Us,p90Us,p99Us,p999Us,maxUs");
+      }
+
+      for (int i = 0; i < rows.size(); i++) {
+        Stats row = rows.get(i);
+        Histogram latency = row.latency;
+        long delivered = row.delivered.get();
+        if (json) {
+          writer.println("  {\"mode\": \"" + row.name + "\", \"subscribers\": " + row.subscribers + ", \"delivered\": "
+              + delivered + ", \"expected\": " + published.get() * row.subscribers + ", \"errors\": "
+              + row.errors.get() + ", \"reconnects\": " + row.reconnects.get() + ", \"deliveredPerSec\": "
+              + delivered * 1000 / Math.max(1, elapsedMillis) + ", \"meanUs\": " + Math.round(latency.getMean())
+              + ", \"p50Us\": " + latency.getValueAtPercentile(50) + ", \"p90Us\": "
+              + latency.getValueAtPercentile(90) + ", \"p99Us\": " + latency.getValueAtPercentile(99)
+              + ", \"p999Us\": " + latency.getValueAtPercentile(99.9) + ", \"maxUs\": " + latency.getMax() + "}"
+              + (i < rows.size() - 1 ? "," : ""));
+        } else {
+          writer.println(row.name + "," + row.subscribers + "," + published.get() + "," + publishErrors.get() + ","
+              + delivered + "," + published.get() * row.subscribers + "," + row.errors.get() + ","
+              + row.reconnects.get() + "," + delivered * 1000 / Math.max(1, elapsedMillis) + ","
+              + Math.round(latency.getMean()) + "," + latency.getValueAtPercentile(50) + ","
+              + latency.getValueAtPercentile(90) + "," + latency.getValueAtPercentile(99) + ","
+              + latency.getValueAtPercentile(99.9) + "," + latency.getMax());
+        }
+      }
+      if (json) {
+        writer.println("]}");
+      }
+    } finally {
+      writer.flush();
+      if (out.length() > 0) {
+        writer.close();
+      }
+    }
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    } catch (IOException e) {
+      return s;
+    }
+  }
+
+  public void p(String s) {
+    System.out.println("[LoadTester] " + s);
+  }
+
+  public void err(String s, Throwable t) {
+    System.out.println("[LoadTester] ERROR " + s + " t=" + t);
+  }
+
+  /**
+   * Main program.
+   */
+  public static void main(String args[]) throws Exception {
+    new LoadTester(args).run();
+    System.exit(0);
+  }
+}
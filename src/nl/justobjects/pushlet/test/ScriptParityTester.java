@@ -0,0 +1,237 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nl.justobjects.pushlet.core.Config;
+import nl.justobjects.pushlet.core.EventQueue;
+import nl.justobjects.pushlet.core.EventSourceLeases;
+import nl.justobjects.pushlet.core.Session;
+import nl.justobjects.pushlet.redis.JedisRedisManager;
+import nl.justobjects.pushlet.redis.MemoryRedisManager;
+import nl.justobjects.pushlet.redis.RedisManager;
+import nl.justobjects.pushlet.redis.RedisScript;
+
+import internal.redis.clients.util.SafeEncoder;
+
+/**
+ * Runs every Lua script that has a Java emulation against a redis server and
+ * against {@link MemoryRedisManager}, step by step, and compares the replies
+ * and the keys the scripts touch after each step. Prints every difference and
+ * exits with 1 when there is one.
+ * <p/>
+ * Usage: ScriptParityTester [config dir]; the "redis.serverlist" of the
+ * pushlet.properties in that dir (default web-app/WEB-INF/classes) names the
+ * server. Only keys with the "{parity}" hash tag are used, and deleted.
+ */
+public class ScriptParityTester {
+  private static final String QUEUE = "parity:q{parity}";
+  private static final String CONFLATED = "parity:c{parity}";
+  private static final String THROTTLE = "parity:t{parity}";
+  private static final String PRIORITY = "parity:p{parity}";
+  private static final String LEASE = "parity:lease{parity}";
+  private static final String NODES = "parity:nodes{parity}";
+  private static final String SESSION = "parity:ss{parity}";
+  private static final String SUBSCRIPTIONS = "parity:subs{parity}";
+
+  private static final List<String> QUEUE_KEYS = Arrays.asList(QUEUE, CONFLATED, THROTTLE, PRIORITY);
+
+  private final RedisManager server;
+  private final RedisManager memory;
+  private int steps = 0;
+  private int failures = 0;
+
+  public ScriptParityTester(RedisManager server, RedisManager memory) {
+    this.server = server;
+    this.memory = memory;
+  }
+
+  public void run() {
+    clear();
+    testEnqueue();
+    clear();
+    testThrottle();
+    clear();
+    testLeases();
+    clear();
+    testPurge();
+    clear();
+
+    p(steps + " steps, " + (failures == 0 ? "all scripts match" : failures + " failures"));
+  }
+
+  /**
+   * Overflow policies, conflation, the high priority lane and reading back.
+   */
+  private void testEnqueue() {
+    enqueue("drop-newest", 2, "0", "1000", "", new String[] { "", "n", "e1", "", "n", "e2", "", "n", "e3" });
+    enqueue("drop-oldest", 2, "0", "1000", "", new String[] { "s:1", "n", "k1", "", "n", "e4" });
+    enqueue("drop-oldest", 2, "0", "1000", "", new String[] { "s:1", "n", "k1b", "s:2", "n", "k2" });
+    enqueue("conflate", 2, "0", "1000", "", new String[] { "", "n", "e5", "", "n", "e6", "", "h", "high1" });
+    enqueue("disconnect", 2, "0", "1000", "", new String[] { "", "n", "e7", "", "h", "high2", "", "h", "high3" });
+    step("SIZE", EventQueue.SIZE_SCRIPT, Arrays.asList(QUEUE, PRIORITY));
+    step("POP", EventQueue.POP_SCRIPT, Arrays.asList(QUEUE, CONFLATED, PRIORITY));
+    step("POP", EventQueue.POP_SCRIPT, Arrays.asList(QUEUE, CONFLATED, PRIORITY));
+    step("DRAIN", EventQueue.DRAIN_SCRIPT, Arrays.asList(QUEUE, CONFLATED, PRIORITY));
+    step("POP", EventQueue.POP_SCRIPT, Arrays.asList(QUEUE, CONFLATED, PRIORITY));
+  }
+
+  /**
+   * Deferring above the rate limit, with and without conflation key, the
+   * bound on deferred events and releasing them with fractional tokens.
+   */
+  private void testThrottle() {
+    String perMs = String.valueOf(1.0 / 3000);
+    enqueue("drop-newest", 3, perMs, "1000", "/a", new String[] { "", "n", "a1", "", "n", "a2", "s:1", "n", "a3" });
+    enqueue("drop-newest", 3, perMs, "1100", "/a", new String[] { "s:1", "n", "a4", "", "n", "a5", "", "n", "a6" });
+    enqueue("drop-newest", 3, "0.002", "1100", "/b", new String[] { "", "n", "b1", "", "n", "b2" });
+    step("RELEASE", EventQueue.RELEASE_SCRIPT, Arrays.asList(QUEUE, CONFLATED, THROTTLE), "3", "2000");
+    step("DRAIN", EventQueue.DRAIN_SCRIPT, Arrays.asList(QUEUE, CONFLATED, PRIORITY));
+    step("RELEASE", EventQueue.RELEASE_SCRIPT, Arrays.asList(QUEUE, CONFLATED, THROTTLE), "3", "4100");
+    enqueue("drop-newest", 3, perMs, "7100", "/a", new String[] {});
+    step("RELEASE", EventQueue.RELEASE_SCRIPT, Arrays.asList(QUEUE, CONFLATED, THROTTLE), "3", "99999");
+    step("DRAIN", EventQueue.DRAIN_SCRIPT, Arrays.asList(QUEUE, CONFLATED, PRIORITY));
+  }
+
+  private void testLeases() {
+    step("ACQUIRE", EventSourceLeases.ACQUIRE_SCRIPT, Arrays.asList(LEASE), "me", "10000");
+    step("ACQUIRE", EventSourceLeases.ACQUIRE_SCRIPT, Arrays.asList(LEASE), "you", "10000");
+    step("ACQUIRE", EventSourceLeases.ACQUIRE_SCRIPT, Arrays.asList(LEASE), "me", "10000");
+    step("RELEASE", EventSourceLeases.RELEASE_SCRIPT, Arrays.asList(LEASE), "you");
+    step("RELEASE", EventSourceLeases.RELEASE_SCRIPT, Arrays.asList(LEASE), "me");
+    step("ACQUIRE", EventSourceLeases.ACQUIRE_SCRIPT, Arrays.asList(LEASE), "you", "50");
+    try {
+      Thread.sleep(200);
+    } catch (InterruptedException e) {
+      return;
+    }
+    step("ACQUIRE", EventSourceLeases.ACQUIRE_SCRIPT, Arrays.asList(LEASE), "me", "10000");
+    step("NODES", EventSourceLeases.NODES_SCRIPT, Arrays.asList(NODES), "a", "10", "5");
+    step("NODES", EventSourceLeases.NODES_SCRIPT, Arrays.asList(NODES), "b", "20", "15");
+    step("NODES", EventSourceLeases.NODES_SCRIPT, Arrays.asList(NODES), "c", "20", "20");
+    step("NODES", EventSourceLeases.NODES_SCRIPT, Arrays.asList(NODES), "b", "30.5", "20.5");
+  }
+
+  private void testPurge() {
+    for (RedisManager redis : Arrays.asList(server, memory)) {
+      redis.hset(SESSION, "id", "s1");
+      redis.hset(SUBSCRIPTIONS, "s1-1", "{\"subject\":\"/a\"}");
+      redis.hset(SUBSCRIPTIONS, "s1-2", "{\"subject\":\"/b\"}");
+      redis.lpush(QUEUE, "e1");
+    }
+    step("PURGE", Session.PURGE_SCRIPT, Arrays.asList(SESSION, QUEUE, SUBSCRIPTIONS, CONFLATED));
+  }
+
+  private void enqueue(String policy, int capacity, String perMs, String now, String bucket, String[] items) {
+    List<String> args = new ArrayList<String>(Arrays.asList(String.valueOf(capacity), now, perMs, "1", bucket,
+        "/subject", policy));
+    args.addAll(Arrays.asList(items));
+    step("ENQUEUE " + policy + " " + Arrays.asList(items), EventQueue.ENQUEUE_SCRIPT, QUEUE_KEYS,
+        args.toArray(new String[args.size()]));
+  }
+
+  /**
+   * Run one script on both and compare reply and keys.
+   */
+  private void step(String name, RedisScript script, List<String> keys, String... args) {
+    steps++;
+    List<byte[]> rawArgs = new ArrayList<byte[]>(args.length);
+    for (String arg : args) {
+      rawArgs.add(SafeEncoder.encode(arg));
+    }
+    String expected;
+    String actual;
+    try {
+      expected = reply(server.evalRaw(script, keys, rawArgs), script == Session.PURGE_SCRIPT);
+    } catch (RuntimeException e) {
+      expected = "error " + e.getMessage();
+    }
+    try {
+      actual = reply(memory.evalRaw(script, keys, rawArgs), script == Session.PURGE_SCRIPT);
+    } catch (RuntimeException e) {
+      actual = "error " + e.getMessage();
+    }
+    if (!expected.equals(actual)) {
+      fail(name + " replies " + actual + ", redis " + expected);
+    }
+    expected = dump(server);
+    actual = dump(memory);
+    if (!expected.equals(actual)) {
+      fail(name + " leaves " + actual + ", redis " + expected);
+    }
+  }
+
+  /**
+   * Reply as text, bulk strings decoded; hash values come in no fixed order.
+   */
+  private static String reply(Object reply, boolean unordered) {
+    if (reply instanceof byte[]) {
+      return "'" + SafeEncoder.encode((byte[]) reply) + "'";
+    }
+    if (reply instanceof List) {
+      List<String> replies = new ArrayList<String>();
+      for (Object oneReply : (List<?>) reply) {
+        replies.add(reply(oneReply, false));
+      }
+      if (unordered) {
+        Collections.sort(replies);
+      }
+      return replies.toString();
+    }
+    return String.valueOf(reply);
+  }
+
+  /**
+   * All keys the scripts use, with their contents.
+   */
+  private static String dump(RedisManager redis) {
+    Map<String, Object> keys = new TreeMap<String, Object>();
+    for (String list : Arrays.asList(QUEUE, PRIORITY)) {
+      keys.put(list, redis.lrange(list, 0, -1));
+    }
+    for (String hash : Arrays.asList(CONFLATED, THROTTLE, SESSION, SUBSCRIPTIONS)) {
+      keys.put(hash, new TreeMap<String, String>(redis.hgetAll(hash)));
+    }
+    keys.put(LEASE, redis.get(LEASE));
+    Map<String, Double> nodes = new TreeMap<String, Double>();
+    for (String node : redis.zrange(NODES, 0, -1)) {
+      nodes.put(node, redis.zscore(NODES, node));
+    }
+    keys.put(NODES, nodes);
+    return keys.toString().replace("\0", "\\0").replace("\n", "\\n");
+  }
+
+  private void clear() {
+    for (RedisManager redis : Arrays.asList(server, memory)) {
+      for (String key : Arrays.asList(QUEUE, CONFLATED, THROTTLE, PRIORITY, LEASE, NODES, SESSION, SUBSCRIPTIONS)) {
+        redis.del(key);
+      }
+    }
+  }
+
+  private void fail(String s) {
+    failures++;
+    p("FAIL " + s);
+  }
+
+  public void p(String s) {
+    System.out.println("[ScriptParityTester] " + s);
+  }
+
+  /**
+   * Main program.
+   */
+  public static void main(String args[]) {
+    Config.load(args.length > 0 ? args[0] : "web-app/WEB-INF/classes");
+    ScriptParityTester tester = new ScriptParityTester(new JedisRedisManager(), new MemoryRedisManager());
+    tester.run();
+    System.exit(tester.failures == 0 ? 0 : 1);
+  }
+}
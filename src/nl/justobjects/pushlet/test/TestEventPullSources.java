@@ -3,6 +3,9 @@
 
 package nl.justobjects.pushlet.test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import nl.justobjects.pushlet.core.Event;
 import nl.justobjects.pushlet.core.EventPullSource;
 import nl.justobjects.pushlet.core.SessionManager;
@@ -23,6 +26,10 @@ public class TestEventPullSources {
   static public class TemperatureEventPullSource extends EventPullSource {
     String[] cities = { "amsterdam", null, "rotterdam", null, "leeuwarden", null, "twente", null, "limburg", null };
 
+    public String[] getSubjects() {
+      return new String[] { "/temperature" };
+    }
+
     public long getSleepTime() {
       return Rand.randomLong(3000, 5000);
     }
@@ -50,6 +57,10 @@ public class TestEventPullSources {
    * Produces a ping event.
    */
   static public class PingEventPullSource extends EventPullSource {
+    public String[] getSubjects() {
+      return new String[] { "/pushlet/ping" };
+    }
+
     public long getSleepTime() {
       return 3000;
     }
@@ -66,6 +77,10 @@ public class TestEventPullSources {
   static public class SystemStatusEventPullSource extends EventPullSource {
     Runtime runtime = Runtime.getRuntime();
 
+    public String[] getSubjects() {
+      return new String[] { "/system/jvm" };
+    }
+
     public long getSleepTime() {
       return 4000;
     }
@@ -87,6 +102,10 @@ public class TestEventPullSources {
    */
   static public class PushletStatusEventPullSource extends EventPullSource {
 
+    public String[] getSubjects() {
+      return new String[] { "/system/pushlet" };
+    }
+
     public long getSleepTime() {
       return 5000;
     }
@@ -110,13 +129,33 @@ public class TestEventPullSources {
         "44", "philips, kon", "38", "tnt", "26", "unilever c", "62", "vendex kbb", "16", "vnu", "49", "wolt-kluw c",
         "25" };
 
+    public String[] getSubjects() {
+      return new String[] { "/stocks/aex" };
+    }
+
     public long getSleepTime() {
       return Rand.randomLong(2000, 4000);
     }
 
     public Event pullEvent() {
+      return stockEvent(Rand.randomInt(0, (stocks.length) / 2 - 1));
+    }
+
+    /**
+     * All stocks that moved since the last pull, sent as one batch.
+     */
+    public List<Event> pullEvents() {
+      List<Event> events = new ArrayList<Event>();
+      for (int stockNumber = 0; stockNumber < stocks.length / 2; stockNumber++) {
+        if (Rand.randomInt(0, 2) == 0) {
+          events.add(stockEvent(stockNumber));
+        }
+      }
+      return events;
+    }
+
+    private Event stockEvent(int stockNumber) {
       Event event = Event.createDataEvent("/stocks/aex");
-      int stockNumber = Rand.randomInt(0, (stocks.length) / 2 - 1);
       int nextStockIndex = 2 * stockNumber;
 
       event.setField("number", "" + stockNumber);
@@ -143,6 +182,10 @@ public class TestEventPullSources {
 
     int nextSlideNumber = 0;
 
+    public String[] getSubjects() {
+      return new String[] { "/webpres/auto" };
+    }
+
     public long getSleepTime() {
       return 5000;
     }
@@ -164,6 +207,10 @@ public class TestEventPullSources {
   static public class TestEventPullSource extends EventPullSource {
     private int number = 0;
 
+    public String[] getSubjects() {
+      return new String[] { "/system/test" };
+    }
+
     public long getSleepTime() {
       return 2000;
     }
@@ -14,6 +14,7 @@ import java.util.Vector;
 import nl.justobjects.pushlet.core.Dispatcher;
 import nl.justobjects.pushlet.core.Event;
 import nl.justobjects.pushlet.core.EventSource;
+import nl.justobjects.pushlet.core.SubjectSource;
 import nl.justobjects.pushlet.util.Rand;
 
 /**
@@ -34,7 +35,7 @@ public class TestEventPushSources {
   /**
    * Produces events from REAL stocks from the AEX.
    */
-  static public class AEXStocksEventPushSource implements EventSource, Runnable {
+  static public class AEXStocksEventPushSource implements EventSource, SubjectSource, Runnable {
     /**
      * Here we get our stocks from.
      */
@@ -101,6 +102,10 @@ public class TestEventPushSources {
     synchronized public void stop() {
     }
 
+    public String[] getSubjects() {
+      return new String[] { "/stocks/aex" };
+    }
+
     public void run() {
       // Publish cache content (if any) first.
       publishStocks();
@@ -0,0 +1,211 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.util;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import nl.justobjects.pushlet.core.Config;
+
+/**
+ * Logger that never blocks the logging thread: messages go into a lock-free
+ * ring buffer and a single writer thread writes them out in batches, to the
+ * file "logger.async.file" or to stdout, flushing once per batch. When the
+ * ring ("logger.async.capacity" messages) is full a message is dropped and
+ * counted in the metric "log_dropped"; the writer reports the drops in the
+ * log.
+ * <p/>
+ * Set "logger.class" in pushlet.properties to
+ * nl.justobjects.pushlet.util.AsyncLogger to use it.
+ */
+public class AsyncLogger extends DefaultLogger implements Runnable {
+  private static final int MAX_BATCH = 512;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /**
+   * Set in tail by stop(): no slot can be claimed any more.
+   */
+  private static final long CLOSED = 1L << 62;
+
+  private AtomicReferenceArray<String> ring;
+  private int mask;
+
+  /**
+   * Producers claim slots at tail, the writer takes them at head. Only the
+   * writer thread writes to out, or stop() once that thread has ended.
+   */
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head;
+
+  private volatile Thread writerThread;
+  private volatile boolean parked;
+  private volatile boolean stopped;
+  private Writer out;
+
+  private final Counter dropped = Metrics.counter("log_dropped");
+  private long droppedReported;
+
+  public void init() {
+    int capacity = 2;
+    int configured = Config.getIntProperty(LOGGER_ASYNC_CAPACITY, 8192);
+    while (capacity < configured) {
+      capacity <<= 1;
+    }
+    ring = new AtomicReferenceArray<String>(capacity);
+    mask = capacity - 1;
+
+    String file = Config.getProperty(LOGGER_ASYNC_FILE, "");
+    try {
+      out = new BufferedWriter(file.length() == 0 ? new OutputStreamWriter(System.out) : new OutputStreamWriter(
+          new FileOutputStream(file, true), "UTF-8"), 64 * 1024);
+    } catch (IOException e) {
+      System.out.println("AsyncLogger: cannot open " + file + ", logging to stdout ex=" + e);
+      out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+    }
+
+    Thread thread = new Thread(this, "AsyncLogger");
+    thread.setDaemon(true);
+    writerThread = thread;
+    thread.start();
+
+    //@wjw_node JVM退出时写完缓冲区里剩下的日志
+    Runtime.getRuntime().addShutdownHook(new Thread("AsyncLogger-shutdown") {
+      public void run() {
+        AsyncLogger.this.stop();
+      }
+    });
+  }
+
+  /**
+   * Queue the line for the writer thread; never waits.
+   */
+  protected void print(String aTag, String aMessage) {
+    if (writerThread == null || stopped) {
+      super.print(aTag, aMessage);
+      return;
+    }
+
+    String line = "Pushlet[" + aTag + "] " + aMessage;
+    long slot;
+    do {
+      slot = tail.get();
+      if ((slot & CLOSED) != 0) {
+        super.print(aTag, aMessage);
+        return;
+      }
+      if (slot - head >= ring.length()) {
+        dropped.increment();
+        return;
+      }
+    } while (tail.compareAndSet(slot, slot + 1) == false);
+    ring.lazySet((int) slot & mask, line);
+
+    if (parked) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  public void run() {
+    //@wjw_node stop()之后剩下的日志由stop()在本线程结束后写完,避免两个线程同时写out
+    while (!stopped) {
+      try {
+        int written = drain();
+        if (written > 0) {
+          reportDropped();
+          out.flush();
+          continue;
+        }
+
+        parked = true;
+        if (head == claimed() && !stopped) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        parked = false;
+      } catch (Throwable t) {
+        System.out.println("AsyncLogger: write error ex=" + t);
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  /**
+   * Write at most MAX_BATCH lines from the ring.
+   */
+  private int drain() throws IOException {
+    int written = 0;
+    long next = head;
+    while (written < MAX_BATCH && next < claimed()) {
+      int index = (int) next & mask;
+      String line = ring.get(index);
+      if (line == null) {
+        //@wjw_node 生产者已占了这个位置但还没写入,稍等
+        Thread.yield();
+        continue;
+      }
+      ring.set(index, null);
+      head = ++next;
+
+      out.write(line);
+      out.write('\n');
+      written++;
+    }
+    return written;
+  }
+
+  /**
+   * End of the claimed slots.
+   */
+  private long claimed() {
+    return tail.get() & ~CLOSED;
+  }
+
+  private void reportDropped() throws IOException {
+    long total = dropped.get();
+    if (total != droppedReported) {
+      out.write("Pushlet[WARN] AsyncLogger: ring full, dropped " + (total - droppedReported) + " messages\n");
+      droppedReported = total;
+    }
+  }
+
+  /**
+   * Stop the writer thread and write what is still in the ring; later
+   * messages go to stdout directly.
+   */
+  public synchronized void stop() {
+    Thread thread = writerThread;
+    if (thread == null || stopped) {
+      return;
+    }
+    stopped = true;
+
+    // Close the ring: producers that claimed a slot before will fill it, no
+    // producer can claim one after, so the drain below gets every line.
+    long slot;
+    do {
+      slot = tail.get();
+    } while (tail.compareAndSet(slot, slot | CLOSED) == false);
+
+    LockSupport.unpark(thread);
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+      if (thread.isAlive()) {
+        //@wjw_node writer还卡在写操作上,不能再从这个线程写out
+        return;
+      }
+      while (drain() > 0) {
+      }
+      reportDropped();
+      out.flush();
+    } catch (Throwable t) {
+      // Nothing to log to anymore
+    }
+  }
+}
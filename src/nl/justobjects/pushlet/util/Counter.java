@@ -0,0 +1,55 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for hot paths, in the manner of LongAdder (Java 8): each thread adds
+ * to one of several cells, each on its own cache line, so threads counting at
+ * the same time do not contend; reading sums the cells.
+ */
+public class Counter {
+  private static final int PADDING = 8; //@wjw_node 8个long正好是一个64字节的缓存行
+  private static final int CELLS = cellCount(Runtime.getRuntime().availableProcessors());
+
+  private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+  public void increment() {
+    add(1);
+  }
+
+  public void add(long x) {
+    cells.addAndGet((int) (Thread.currentThread().getId() & (CELLS - 1)) * PADDING, x);
+  }
+
+  public long get() {
+    long sum = 0;
+    for (int i = 0; i < CELLS; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  public void reset() {
+    for (int i = 0; i < CELLS; i++) {
+      cells.set(i * PADDING, 0);
+    }
+  }
+
+  /**
+   * Power of two of at least twice the processors, at most 64.
+   */
+  private static int cellCount(int processors) {
+    int cells = 2;
+    while (cells < processors * 2 && cells < 64) {
+      cells <<= 1;
+    }
+    return cells;
+  }
+
+  public String toString() {
+    return String.valueOf(get());
+  }
+}
@@ -12,7 +12,7 @@ package nl.justobjects.pushlet.util;
  * @author Just van den Broecke
  * @version $Id: DefaultLogger.java,v 1.2 2007/12/07 12:57:40 justb Exp $
  */
-public class DefaultLogger implements PushletLogger {
+public class DefaultLogger implements PushletLogger, LevelAware {
 
   /**
    * Level intialized with default.
@@ -140,6 +140,16 @@ public class DefaultLogger implements PushletLogger {
     fatal(aMessage + " exception=" + aThrowable);
   }
 
+  /**
+   * Check whether messages of a level are logged.
+   * 
+   * @param aLevel
+   *          a valid Level from ConfigDefs
+   */
+  public boolean isEnabled(int aLevel) {
+    return level >= aLevel;
+  }
+
   /**
    * Set log level
    * 
@@ -158,7 +168,7 @@ public class DefaultLogger implements PushletLogger {
    * @param aMessage
    *          the message to be logged
    */
-  private void print(String aTag, String aMessage) {
+  protected void print(String aTag, String aMessage) {
     // SImple std out e.g. to catalina.out in Tomcat
     System.out.println("Pushlet[" + aTag + "] " + aMessage);
   }
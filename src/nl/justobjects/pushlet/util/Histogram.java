@@ -0,0 +1,157 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative long values (e.g. latencies in microseconds) with
+ * log-linear buckets, in the manner of HdrHistogram: values below 64 are
+ * counted exactly, above that every power of two is split into 32 linear
+ * sub-buckets, so any percentile is off by at most about 3%.
+ * <p/>
+ * Recording is lock-free and does not allocate; the whole range of long fits
+ * in under 2000 counters.
+ */
+public class Histogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+  private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Count one value; negative values count as 0.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(indexOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  /**
+   * For each of the ascending bounds the number of values up to it, plus the
+   * total at the end; a value counts below a bound when its whole bucket is.
+   */
+  public long[] getCumulativeCounts(long[] bounds) {
+    long[] result = new long[bounds.length + 1];
+    long seen = 0;
+    int b = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long highest = highestValueOf(i);
+      while (b < bounds.length && highest > bounds[b]) {
+        result[b++] = seen;
+      }
+      seen += counts.get(i);
+    }
+    while (b < bounds.length) {
+      result[b++] = seen;
+    }
+    result[bounds.length] = seen;
+    return result;
+  }
+
+  /**
+   * The value below which the given percentage (0..100) of the recorded
+   * values fall, 0 when nothing was recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Add the counts of another histogram to this one.
+   */
+  public void add(Histogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long n = other.counts.get(i);
+      if (n > 0) {
+        counts.addAndGet(i, n);
+      }
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+
+    long otherMax = other.max.get();
+    long current = max.get();
+    while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+      current = max.get();
+    }
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  static int indexOf(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+  }
+
+  static long highestValueOf(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+    long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+    long highest = ((subBucket + 1) << shift) - 1;
+    return highest < 0 ? Long.MAX_VALUE : highest;
+  }
+
+  public String toString() {
+    return "count=" + getCount() + " mean=" + Math.round(getMean()) + " p50=" + getValueAtPercentile(50) + " p99="
+        + getValueAtPercentile(99) + " max=" + getMax();
+  }
+}
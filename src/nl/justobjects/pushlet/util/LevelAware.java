@@ -0,0 +1,21 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.util;
+
+/**
+ * Optional for a {@link PushletLogger}: tells which levels it logs, so that
+ * {@link Log} can skip building messages that would not be logged. A logger
+ * without it gets every message.
+ */
+public interface LevelAware {
+
+  /**
+   * Check whether messages of a level are logged.
+   * 
+   * @param aLevel
+   *          a valid Level from ConfigDefs
+   * @return true when the level is logged
+   */
+  public boolean isEnabled(int aLevel);
+}
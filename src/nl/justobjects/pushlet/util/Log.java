@@ -12,6 +12,11 @@ import nl.justobjects.pushlet.core.ConfigDefs;
  * Provides a hook to direct logging to your own logging library. Override the
  * DefaultLogger class by setting "logger.class" in pushlet.properties to your
  * own logger to integrate your own logging library.
+ * <p/>
+ * On hot paths use the level checks or the methods with a format, e.g.
+ * <code>Log.debug("event={}", anEvent)</code>: the "{}" are replaced by the
+ * arguments only when the level is logged, so a message that is not logged
+ * is never built.
  * 
  * @author Just van den Broecke
  * @version $Id: Log.java,v 1.5 2007/12/07 12:57:40 justb Exp $
@@ -49,7 +54,7 @@ public class Log implements ConfigDefs {
    *          the message to be logged
    */
   static public void trace(String aMessage) {
-    logger.debug(aMessage);
+    logger.trace(aMessage);
   }
 
   /**
@@ -138,6 +143,144 @@ public class Log implements ConfigDefs {
     logger.fatal(aMessage, aThrowable);
   }
 
+  /**
+   * Is the level logged; always for a logger that is not {@link LevelAware}.
+   */
+  static private boolean isEnabled(int aLevel) {
+    PushletLogger current = logger;
+    return !(current instanceof LevelAware) || ((LevelAware) current).isEnabled(aLevel);
+  }
+
+  static public boolean isTraceEnabled() {
+    return isEnabled(LOG_LEVEL_TRACE);
+  }
+
+  static public boolean isDebugEnabled() {
+    return isEnabled(LOG_LEVEL_DEBUG);
+  }
+
+  static public boolean isInfoEnabled() {
+    return isEnabled(LOG_LEVEL_INFO);
+  }
+
+  static public boolean isWarnEnabled() {
+    return isEnabled(LOG_LEVEL_WARN);
+  }
+
+  /**
+   * Log message for trace level, built only when logged.
+   * 
+   * @param aFormat
+   *          the message with a "{}" for each argument
+   */
+  static public void trace(String aFormat, Object anArg) {
+    if (isEnabled(LOG_LEVEL_TRACE)) {
+      logger.trace(format(aFormat, new Object[] { anArg }));
+    }
+  }
+
+  static public void trace(String aFormat, Object anArg1, Object anArg2) {
+    if (isEnabled(LOG_LEVEL_TRACE)) {
+      logger.trace(format(aFormat, new Object[] { anArg1, anArg2 }));
+    }
+  }
+
+  static public void trace(String aFormat, Object... theArgs) {
+    if (isEnabled(LOG_LEVEL_TRACE)) {
+      logger.trace(format(aFormat, theArgs));
+    }
+  }
+
+  /**
+   * Log message for debug level, built only when logged.
+   * 
+   * @param aFormat
+   *          the message with a "{}" for each argument
+   */
+  static public void debug(String aFormat, Object anArg) {
+    if (isEnabled(LOG_LEVEL_DEBUG)) {
+      logger.debug(format(aFormat, new Object[] { anArg }));
+    }
+  }
+
+  static public void debug(String aFormat, Object anArg1, Object anArg2) {
+    if (isEnabled(LOG_LEVEL_DEBUG)) {
+      logger.debug(format(aFormat, new Object[] { anArg1, anArg2 }));
+    }
+  }
+
+  static public void debug(String aFormat, Object... theArgs) {
+    if (isEnabled(LOG_LEVEL_DEBUG)) {
+      logger.debug(format(aFormat, theArgs));
+    }
+  }
+
+  /**
+   * Log message for info level, built only when logged.
+   * 
+   * @param aFormat
+   *          the message with a "{}" for each argument
+   */
+  static public void info(String aFormat, Object anArg) {
+    if (isEnabled(LOG_LEVEL_INFO)) {
+      logger.info(format(aFormat, new Object[] { anArg }));
+    }
+  }
+
+  static public void info(String aFormat, Object anArg1, Object anArg2) {
+    if (isEnabled(LOG_LEVEL_INFO)) {
+      logger.info(format(aFormat, new Object[] { anArg1, anArg2 }));
+    }
+  }
+
+  static public void info(String aFormat, Object... theArgs) {
+    if (isEnabled(LOG_LEVEL_INFO)) {
+      logger.info(format(aFormat, theArgs));
+    }
+  }
+
+  /**
+   * Log message for warning level, built only when logged.
+   * 
+   * @param aFormat
+   *          the message with a "{}" for each argument
+   */
+  static public void warn(String aFormat, Object anArg) {
+    if (isEnabled(LOG_LEVEL_WARN)) {
+      logger.warn(format(aFormat, new Object[] { anArg }));
+    }
+  }
+
+  static public void warn(String aFormat, Object anArg1, Object anArg2) {
+    if (isEnabled(LOG_LEVEL_WARN)) {
+      logger.warn(format(aFormat, new Object[] { anArg1, anArg2 }));
+    }
+  }
+
+  static public void warn(String aFormat, Object... theArgs) {
+    if (isEnabled(LOG_LEVEL_WARN)) {
+      logger.warn(format(aFormat, theArgs));
+    }
+  }
+
+  /**
+   * Replace each "{}" by the next argument; surplus "{}" stay as they are.
+   */
+  static String format(String aFormat, Object[] theArgs) {
+    StringBuilder message = new StringBuilder(aFormat.length() + 32);
+    int start = 0;
+    for (int i = 0; i < theArgs.length; i++) {
+      int placeholder = aFormat.indexOf("{}", start);
+      if (placeholder < 0) {
+        break;
+      }
+      message.append(aFormat, start, placeholder).append(theArgs[i]);
+      start = placeholder + 2;
+    }
+    message.append(aFormat, start, aFormat.length());
+    return message.toString();
+  }
+
   /**
    * Set log level
    * 
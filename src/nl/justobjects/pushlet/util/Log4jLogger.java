@@ -16,7 +16,7 @@ import org.apache.log4j.Logger;
  * @author Uli Romahn
  * @version $Id: Log4jLogger.java,v 1.1 2007/12/07 12:57:40 justb Exp $
  */
-public class Log4jLogger implements PushletLogger {
+public class Log4jLogger implements PushletLogger, LevelAware {
 
   /**
    * Level intialized with default.
@@ -122,6 +122,15 @@ public class Log4jLogger implements PushletLogger {
     logger.warn(aMessage, aThrowable);
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see nl.justobjects.pushlet.util.LevelAware#isEnabled(int)
+   */
+  public boolean isEnabled(int aLevel) {
+    return logger.isEnabledFor(toLevel(aLevel));
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -131,28 +140,26 @@ public class Log4jLogger implements PushletLogger {
     if (aLevel < LOG_LEVEL_FATAL) {
       logger.setLevel(Level.OFF);
     } else {
-      switch (aLevel) {
-      case LOG_LEVEL_FATAL:
-        logger.setLevel(Level.FATAL);
-        break;
-      case LOG_LEVEL_ERROR:
-        logger.setLevel(Level.ERROR);
-        break;
-      case LOG_LEVEL_WARN:
-        logger.setLevel(Level.WARN);
-        break;
-      case LOG_LEVEL_INFO:
-        logger.setLevel(Level.INFO);
-        break;
-      case LOG_LEVEL_DEBUG:
-        logger.setLevel(Level.DEBUG);
-        break;
-      case LOG_LEVEL_TRACE:
-        logger.setLevel(Level.TRACE);
-        break;
-      default:
-        logger.setLevel(Level.INFO);
-      }
+      logger.setLevel(toLevel(aLevel));
+    }
+  }
+
+  private static Level toLevel(int aLevel) {
+    switch (aLevel) {
+    case LOG_LEVEL_FATAL:
+      return Level.FATAL;
+    case LOG_LEVEL_ERROR:
+      return Level.ERROR;
+    case LOG_LEVEL_WARN:
+      return Level.WARN;
+    case LOG_LEVEL_INFO:
+      return Level.INFO;
+    case LOG_LEVEL_DEBUG:
+      return Level.DEBUG;
+    case LOG_LEVEL_TRACE:
+      return Level.TRACE;
+    default:
+      return Level.INFO;
     }
   }
 }
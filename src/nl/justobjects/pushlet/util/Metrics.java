@@ -0,0 +1,237 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nl.justobjects.pushlet.core.Config;
+import nl.justobjects.pushlet.core.ConfigDefs;
+
+/**
+ * Registry of the runtime metrics of this node: counters, histograms of sizes
+ * and timers (histograms of durations in nanoseconds).
+ * <p/>
+ * Updating a metric takes no lock and does not allocate; hot paths look their
+ * metrics up once and keep them in static fields. A metric may carry one
+ * label, e.g. the subject, keyed as <code>name{label="value"}</code>; a name
+ * takes at most "metrics.labels.max" label values, further values are counted
+ * under "other". Hot paths that label by a value known only per call keep a
+ * {@link Family} instead.
+ */
+public class Metrics implements ConfigDefs {
+  public static final String OTHER = "other";
+
+  /**
+   * A value read when the metrics are collected, e.g. the number of sessions.
+   */
+  public interface Gauge {
+    long getValue();
+  }
+
+  private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+  private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+  private static final ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+  private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+  private static final ConcurrentMap<String, Set<String>> labelValues = new ConcurrentHashMap<String, Set<String>>();
+
+  private static volatile int maxLabels = 100;
+
+  /**
+   * Read the settings from the config.
+   */
+  public static void init() {
+    maxLabels = Config.getIntProperty(METRICS_LABELS_MAX, 100);
+  }
+
+  public static Counter counter(String name) {
+    return counter(name, null, null);
+  }
+
+  public static Counter counter(String name, String label, String value) {
+    String key = key(name, label, value);
+    Counter counter = counters.get(key);
+    if (counter == null) {
+      Counter created = new Counter();
+      counter = counters.putIfAbsent(key, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Histogram of sizes, e.g. events per drain.
+   */
+  public static Histogram histogram(String name) {
+    return histogram(name, null, null);
+  }
+
+  public static Histogram histogram(String name, String label, String value) {
+    return lookup(histograms, key(name, label, value));
+  }
+
+  /**
+   * Histogram of durations in nanoseconds.
+   */
+  public static Histogram timer(String name) {
+    return timer(name, null, null);
+  }
+
+  public static Histogram timer(String name, String label, String value) {
+    return lookup(timers, key(name, label, value));
+  }
+
+  /**
+   * The histograms of one name by the value of one label, e.g. the subject:
+   * a value seen before is one map lookup, without building the key.
+   */
+  public static Family histogramFamily(String name, String label) {
+    return new Family(histograms, name, label);
+  }
+
+  /**
+   * The timers of one name by the value of one label.
+   */
+  public static Family timerFamily(String name, String label) {
+    return new Family(timers, name, label);
+  }
+
+  public static class Family {
+    private final ConcurrentMap<String, Histogram> registry;
+    private final String name;
+    private final String label;
+    private final ConcurrentMap<String, Histogram> byValue = new ConcurrentHashMap<String, Histogram>();
+    private volatile Histogram other;
+
+    Family(ConcurrentMap<String, Histogram> registry, String name, String label) {
+      this.registry = registry;
+      this.name = name;
+      this.label = label;
+    }
+
+    public Histogram get(String value) {
+      Histogram histogram = byValue.get(value);
+      if (histogram != null) {
+        return histogram;
+      }
+      //@wjw_node 缓存和标签值一样有上限,超出的值都记到other,不再每次拼接key
+      if (byValue.size() >= maxLabels) {
+        if (other == null) {
+          other = lookup(registry, key(name, label, OTHER));
+        }
+        return other;
+      }
+      histogram = lookup(registry, key(name, label, value));
+      byValue.putIfAbsent(value, histogram);
+      return histogram;
+    }
+  }
+
+  /**
+   * Register a gauge, replacing any gauge with the same name and label.
+   */
+  public static void gauge(String name, Gauge gauge) {
+    gauge(name, null, null, gauge);
+  }
+
+  public static void gauge(String name, String label, String value, Gauge gauge) {
+    gauges.put(key(name, label, value), gauge);
+  }
+
+  private static Histogram lookup(ConcurrentMap<String, Histogram> map, String key) {
+    Histogram histogram = map.get(key);
+    if (histogram == null) {
+      Histogram created = new Histogram();
+      histogram = map.putIfAbsent(key, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    return histogram;
+  }
+
+  private static String key(String name, String label, String value) {
+    if (label == null) {
+      return name;
+    }
+
+    Set<String> values = labelValues.get(name);
+    if (values == null) {
+      Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      values = labelValues.putIfAbsent(name, created);
+      if (values == null) {
+        values = created;
+      }
+    }
+    if (values.contains(value) == false) {
+      //@wjw_node 标签值的个数有上限,防止按subject等标签无限增长
+      if (values.size() >= maxLabels) {
+        value = OTHER;
+      } else {
+        values.add(value);
+      }
+    }
+    return name + '{' + label + "=\"" + escape(value) + "\"}";
+  }
+
+  /**
+   * Escape a label value as in the Prometheus text format.
+   */
+  private static String escape(String value) {
+    if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+      return value;
+    }
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  /**
+   * Sorted snapshots of the registry, keyed as described above.
+   */
+  public static SortedMap<String, Counter> getCounters() {
+    return new TreeMap<String, Counter>(counters);
+  }
+
+  public static SortedMap<String, Histogram> getHistograms() {
+    return new TreeMap<String, Histogram>(histograms);
+  }
+
+  public static SortedMap<String, Histogram> getTimers() {
+    return new TreeMap<String, Histogram>(timers);
+  }
+
+  public static SortedMap<String, Gauge> getGauges() {
+    return new TreeMap<String, Gauge>(gauges);
+  }
+
+  /**
+   * All metrics, one per line, durations in microseconds.
+   */
+  public static String getStatus() {
+    StringBuilder status = new StringBuilder();
+    for (Map.Entry<String, Gauge> entry : getGauges().entrySet()) {
+      status.append(entry.getKey()).append(' ').append(entry.getValue().getValue()).append('\n');
+    }
+    for (Map.Entry<String, Counter> entry : getCounters().entrySet()) {
+      status.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+    }
+    for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+      status.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+    }
+    for (Map.Entry<String, Histogram> entry : getTimers().entrySet()) {
+      Histogram timer = entry.getValue();
+      status.append(entry.getKey()).append(" count=").append(timer.getCount()).append(" mean=")
+          .append(Math.round(timer.getMean() / 1000)).append("us p50=").append(timer.getValueAtPercentile(50) / 1000)
+          .append("us p99=").append(timer.getValueAtPercentile(99) / 1000).append("us max=")
+          .append(timer.getMax() / 1000).append("us\n");
+    }
+    return status.toString();
+  }
+}
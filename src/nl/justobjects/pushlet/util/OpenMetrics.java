@@ -0,0 +1,129 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Renders the {@link Metrics} registry in the OpenMetrics text format, as
+ * scraped by Prometheus. Only reads the counters, nothing is locked.
+ * <p/>
+ * Every metric gets the prefix "pushlet_"; timers are exported in seconds
+ * with the suffix "_seconds".
+ */
+public class OpenMetrics {
+  public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+  static final String PREFIX = "pushlet_";
+
+  /**
+   * Bucket bounds of the timers in nanoseconds (100us .. 10s) and of the size
+   * histograms.
+   */
+  private static final long[] TIMER_BOUNDS = { 100000L, 250000L, 500000L, 1000000L, 2500000L, 5000000L, 10000000L,
+      25000000L, 50000000L, 100000000L, 250000000L, 500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L };
+  private static final long[] SIZE_BOUNDS = { 0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000,
+      50000, 100000 };
+
+  public static void write(Writer out) throws IOException {
+    for (Map.Entry<String, List<Map.Entry<String, Metrics.Gauge>>> family : families(Metrics.getGauges()).entrySet()) {
+      out.write("# TYPE " + PREFIX + family.getKey() + " gauge\n");
+      for (Map.Entry<String, Metrics.Gauge> sample : family.getValue()) {
+        out.write(PREFIX + sample.getKey() + " " + sample.getValue().getValue() + "\n");
+      }
+    }
+
+    for (Map.Entry<String, List<Map.Entry<String, Counter>>> family : families(Metrics.getCounters()).entrySet()) {
+      out.write("# TYPE " + PREFIX + family.getKey() + " counter\n");
+      for (Map.Entry<String, Counter> sample : family.getValue()) {
+        out.write(PREFIX + withSuffix(sample.getKey(), "_total", null) + " " + sample.getValue().get() + "\n");
+      }
+    }
+
+    for (Map.Entry<String, List<Map.Entry<String, Histogram>>> family : families(Metrics.getHistograms()).entrySet()) {
+      out.write("# TYPE " + PREFIX + family.getKey() + " histogram\n");
+      for (Map.Entry<String, Histogram> sample : family.getValue()) {
+        writeHistogram(out, sample.getKey(), sample.getValue(), SIZE_BOUNDS, 1);
+      }
+    }
+
+    for (Map.Entry<String, List<Map.Entry<String, Histogram>>> family : families(Metrics.getTimers()).entrySet()) {
+      out.write("# TYPE " + PREFIX + family.getKey() + "_seconds histogram\n");
+      out.write("# UNIT " + PREFIX + family.getKey() + "_seconds seconds\n");
+      for (Map.Entry<String, Histogram> sample : family.getValue()) {
+        writeHistogram(out, withSuffix(sample.getKey(), "_seconds", null), sample.getValue(), TIMER_BOUNDS, 1000000000L);
+      }
+    }
+
+    out.write("# EOF\n");
+  }
+
+  /**
+   * Buckets, count and sum of one histogram; values are divided by scale (a
+   * power of ten).
+   */
+  private static void writeHistogram(Writer out, String key, Histogram histogram, long[] bounds, long scale)
+      throws IOException {
+    long[] cumulative = histogram.getCumulativeCounts(bounds);
+    for (int i = 0; i < bounds.length; i++) {
+      String le = new BigDecimal(bounds[i]).divide(BigDecimal.valueOf(scale)).toPlainString();
+      out.write(PREFIX + withSuffix(key, "_bucket", "le=\"" + (le.indexOf('.') < 0 ? le + ".0" : le) + "\"") + " "
+          + cumulative[i] + "\n");
+    }
+    //@wjw_node +Inf和_count都用桶的合计,采集时有并发写入也保持一致
+    long count = cumulative[bounds.length];
+    out.write(PREFIX + withSuffix(key, "_bucket", "le=\"+Inf\"") + " " + count + "\n");
+    out.write(PREFIX + withSuffix(key, "_count", null) + " " + count + "\n");
+    out.write(PREFIX + withSuffix(key, "_sum", null) + " " + format((double) histogram.getSum() / scale) + "\n");
+  }
+
+  /**
+   * Group the registry keys by metric name, keeping the samples of one
+   * metric together.
+   */
+  private static <T> Map<String, List<Map.Entry<String, T>>> families(SortedMap<String, T> metrics) {
+    Map<String, List<Map.Entry<String, T>>> families = new LinkedHashMap<String, List<Map.Entry<String, T>>>();
+    for (Map.Entry<String, T> entry : metrics.entrySet()) {
+      String name = nameOf(entry.getKey());
+      List<Map.Entry<String, T>> samples = families.get(name);
+      if (samples == null) {
+        samples = new ArrayList<Map.Entry<String, T>>();
+        families.put(name, samples);
+      }
+      samples.add(entry);
+    }
+    return families;
+  }
+
+  private static String nameOf(String key) {
+    int brace = key.indexOf('{');
+    return brace < 0 ? key : key.substring(0, brace);
+  }
+
+  /**
+   * name{labels} to name + suffix{labels,extraLabel}.
+   */
+  private static String withSuffix(String key, String suffix, String extraLabel) {
+    int brace = key.indexOf('{');
+    String name = brace < 0 ? key : key.substring(0, brace);
+    String labels = brace < 0 ? "" : key.substring(brace + 1, key.length() - 1);
+    if (extraLabel != null) {
+      labels = labels.length() == 0 ? extraLabel : labels + "," + extraLabel;
+    }
+    return labels.length() == 0 ? name + suffix : name + suffix + "{" + labels + "}";
+  }
+
+  private static String format(double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return String.valueOf((long) value) + ".0";
+    }
+    return String.valueOf(value);
+  }
+}
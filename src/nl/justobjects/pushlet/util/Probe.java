@@ -0,0 +1,80 @@
+// Copyright (c) 2000 Just Objects B.V. <just@justobjects.nl>
+// Distributable under LGPL license. See terms of license at gnu.org.
+
+package nl.justobjects.pushlet.util;
+
+import nl.justobjects.pushlet.core.Config;
+import nl.justobjects.pushlet.core.ConfigDefs;
+
+/**
+ * Hook for a profiler to see the stages of the event path: publish, fan-out,
+ * enqueue, dequeue and the write to the client. Each stage is a span from
+ * {@link #begin(int)} to {@link #end(Object, String, int, long)}.
+ * <p/>
+ * Override this class by setting "probe.class" in pushlet.properties, e.g. to
+ * nl.justobjects.pushlet.jfr.JfrProbe (the jfr module) to record the spans as
+ * JDK Flight Recorder events. This default records nothing: a span is null
+ * and costs two empty calls.
+ */
+public class Probe implements ConfigDefs {
+  /**
+   * Stages.
+   */
+  public static final int PUBLISH = 0;
+  public static final int FANOUT = 1;
+  public static final int ENQUEUE = 2;
+  public static final int DEQUEUE = 3;
+  public static final int FLUSH = 4;
+
+  /**
+   * Singleton pattern: single instance.
+   */
+  private static Probe instance;
+
+  static {
+    try {
+      instance = (Probe) Config.createObject(PROBE_CLASS, "nl.justobjects.pushlet.util.Probe");
+      Log.info("Probe created className=" + instance.getClass());
+    } catch (Throwable t) {
+      //@wjw_node 没有加载配置时(例如基准测试)不记录
+      instance = new Probe();
+    }
+  }
+
+  /**
+   * Singleton pattern: protected constructor needed for derived classes.
+   */
+  protected Probe() {
+  }
+
+  /**
+   * Singleton pattern: get single instance.
+   */
+  public static Probe getInstance() {
+    return instance;
+  }
+
+  /**
+   * Start a span of the stage.
+   *
+   * @return the span to end, null when the stage is not recorded
+   */
+  public Object begin(int stage) {
+    return null;
+  }
+
+  /**
+   * End a span; spans of a failed stage are left without end.
+   *
+   * @param span
+   *          result of begin(), may be null
+   * @param subject
+   *          subject of the event(s), null when mixed or unknown
+   * @param count
+   *          recipients for FANOUT, else the number of events
+   * @param bytes
+   *          size written or read, 0 when unknown
+   */
+  public void end(Object span, String subject, int count, long bytes) {
+  }
+}